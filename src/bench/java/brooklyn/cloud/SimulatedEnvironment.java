@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.cloud;
+
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.BasicApplication;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.cloud.CloudEnvironment;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.cloud.CloudLocation;
+import brooklyn.location.cloud.SimulatedProvisioningLocation;
+import brooklyn.management.internal.LocalManagementContext;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A started {@link CloudEnvironment} of fake machines that boot instantly, for benchmarks.
+ */
+public class SimulatedEnvironment {
+
+    private final LocalManagementContext management;
+    private final BasicApplication app;
+    private final CloudEnvironment environment;
+
+    public SimulatedEnvironment(int machines) {
+        management = new LocalManagementContext();
+        LocationSpec<SimulatedProvisioningLocation> provisioner = LocationSpec.create(SimulatedProvisioningLocation.class)
+                .configure(SimulatedProvisioningLocation.FAKE_SSH, true)
+                .configure(SimulatedProvisioningLocation.BOOT_TIME, Duration.ZERO);
+        app = ApplicationBuilder.newManagedApp(EntitySpec.create(BasicApplication.class)
+                .child(EntitySpec.create(CloudEnvironment.class)
+                        .configure(CloudEnvironment.CLOUD_LOCATION_SPEC, provisioner)
+                        .configure(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE, machines)), management);
+        app.start(ImmutableList.<Location>of());
+        environment = (CloudEnvironment) app.getChildren().iterator().next();
+    }
+
+    public LocalManagementContext getManagementContext() { return management; }
+
+    public BasicApplication getApplication() { return app; }
+
+    public CloudEnvironment getEnvironment() { return environment; }
+
+    public CloudLocation getLocation() { return environment.getDynamicLocation(); }
+
+    public void destroy() {
+        Entities.destroyAll(management);
+    }
+
+}
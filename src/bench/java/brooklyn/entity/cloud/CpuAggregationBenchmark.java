@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import brooklyn.enricher.Enrichers;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.BasicApplication;
+import brooklyn.entity.basic.BasicEntity;
+import brooklyn.entity.basic.BasicGroup;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.event.SensorEventListener;
+import brooklyn.event.basic.BasicSensorEvent;
+import brooklyn.management.internal.LocalManagementContext;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The CPU usage aggregator that each machine shard uses to publish {@link CloudAttributes#AVERAGE_CPU_USAGE}.
+ * <p>
+ * Events are delivered to the enricher directly, so this measures recomputing the average
+ * over all members for one update rather than subscription delivery.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CpuAggregationBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int members;
+
+    private LocalManagementContext management;
+    private List<Entity> machines;
+    private SensorEventListener<Double> aggregator;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        management = new LocalManagementContext();
+        BasicApplication app = ApplicationBuilder.newManagedApp(BasicApplication.class, management);
+        BasicGroup shard = app.addChild(EntitySpec.create(BasicGroup.class));
+        Entities.manage(shard);
+
+        machines = Lists.newArrayListWithCapacity(members);
+        for (int i = 0; i < members; i++) {
+            Entity machine = app.addChild(EntitySpec.create(BasicEntity.class));
+            Entities.manage(machine);
+            ((EntityInternal) machine).setAttribute(MachineEntity.CPU_USAGE, 0.5d);
+            shard.addMember(machine);
+            machines.add(machine);
+        }
+
+        aggregator = (SensorEventListener<Double>) shard.addEnricher(Enrichers.builder()
+                .aggregating(MachineEntity.CPU_USAGE)
+                .computingAverage()
+                .fromMembers()
+                .publishing(CloudAttributes.AVERAGE_CPU_USAGE)
+                .build());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Entities.destroyAll(management);
+    }
+
+    @Benchmark
+    public void update() {
+        Entity machine = machines.get(next++ % members);
+        aggregator.onEvent(new BasicSensorEvent<Double>(MachineEntity.CPU_USAGE, machine, (next % 100) / 100d));
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import brooklyn.cloud.SimulatedEnvironment;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.BasicEntity;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The {@code sameInfrastructure} filter that the environment's application buckets apply to every entity on each rescan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SameInfrastructureBenchmark {
+
+    private SimulatedEnvironment simulated;
+    private Predicate<Entity> sameInfrastructure;
+    private Entity deployed;
+    private Entity elsewhere;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        simulated = new SimulatedEnvironment(1);
+        sameInfrastructure = ((CloudEnvironmentImpl) Entities.deproxy(simulated.getEnvironment())).sameInfrastructure;
+
+        deployed = simulated.getApplication().addChild(EntitySpec.create(BasicEntity.class));
+        elsewhere = simulated.getApplication().addChild(EntitySpec.create(BasicEntity.class));
+        Entities.manage(deployed);
+        Entities.manage(elsewhere);
+        ((EntityInternal) deployed).addLocations(ImmutableList.<Location>of(simulated.getLocation().obtain()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulated.destroy();
+    }
+
+    @Benchmark
+    public boolean deployedEntity() {
+        return sameInfrastructure.apply(deployed);
+    }
+
+    @Benchmark
+    public boolean otherEntity() {
+        return sameInfrastructure.apply(elsewhere);
+    }
+
+}
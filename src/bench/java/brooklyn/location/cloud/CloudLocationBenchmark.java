@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import brooklyn.cloud.SimulatedEnvironment;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.BasicEntity;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.MachineLocation;
+import brooklyn.location.NoMachinesAvailableException;
+import brooklyn.location.basic.LocationConfigKeys;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Obtaining and releasing machines from a {@link CloudLocation} pool under contention.
+ * <p>
+ * Each thread obtains for its own tenant entity, as deployments do. When there are more threads
+ * than idle machines a miss provisions an instantly booted fake machine, which is returned to the
+ * provisioner on release, so the smaller pools also measure the cost of provisioning on a miss.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CloudLocationBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int poolSize;
+
+    private SimulatedEnvironment simulated;
+    private CloudLocation cloud;
+
+    /** The tenant entity of one benchmark thread. */
+    @State(Scope.Thread)
+    public static class Tenant {
+        private Map<String, ?> flags;
+
+        @Setup(Level.Trial)
+        public void setUp(CloudLocationBenchmark benchmark) {
+            Entity tenant = benchmark.simulated.getApplication().addChild(EntitySpec.create(BasicEntity.class));
+            flags = ImmutableMap.of(LocationConfigKeys.CALLER_CONTEXT.getName(), tenant);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        simulated = new SimulatedEnvironment(poolSize);
+        cloud = simulated.getLocation();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulated.destroy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public MachineLocation obtainRelease1(Tenant tenant) throws NoMachinesAvailableException {
+        return obtainRelease(tenant);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public MachineLocation obtainRelease4(Tenant tenant) throws NoMachinesAvailableException {
+        return obtainRelease(tenant);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public MachineLocation obtainRelease16(Tenant tenant) throws NoMachinesAvailableException {
+        return obtainRelease(tenant);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public MachineLocation obtainRelease64(Tenant tenant) throws NoMachinesAvailableException {
+        return obtainRelease(tenant);
+    }
+
+    private MachineLocation obtainRelease(Tenant tenant) throws NoMachinesAvailableException {
+        MachineLocation machine = cloud.obtain(tenant.flags);
+        cloud.release(machine);
+        return machine;
+    }
+
+}
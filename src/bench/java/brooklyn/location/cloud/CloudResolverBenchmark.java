@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import brooklyn.cloud.SimulatedEnvironment;
+import brooklyn.entity.Entity;
+import brooklyn.entity.cloud.CloudMachine;
+import brooklyn.location.Location;
+import brooklyn.location.LocationRegistry;
+import brooklyn.management.LocationManager;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+
+/**
+ * Resolving environment and machine location specs with the {@link CloudResolver}.
+ * <p>
+ * Each resolution creates a managed location, which is unmanaged again inside the
+ * benchmark so the location manager does not grow during a run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CloudResolverBenchmark {
+
+    private SimulatedEnvironment simulated;
+    private CloudResolver resolver;
+    private LocationRegistry registry;
+    private LocationManager locations;
+    private String environmentSpec;
+    private String machineSpec;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        simulated = new SimulatedEnvironment(10);
+        resolver = new CloudResolver();
+        resolver.init(simulated.getManagementContext());
+        registry = simulated.getManagementContext().getLocationRegistry();
+        locations = simulated.getManagementContext().getLocationManager();
+
+        String environmentId = simulated.getEnvironment().getId();
+        Entity machine = Iterables.find(simulated.getManagementContext().getEntityManager().getEntities(),
+                Predicates.instanceOf(CloudMachine.class));
+        environmentSpec = String.format(CloudResolver.CLOUD_ENVIRONMENT_SPEC, environmentId);
+        machineSpec = String.format(CloudResolver.CLOUD_MACHINE_SPEC, environmentId, machine.getId());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulated.destroy();
+    }
+
+    @Benchmark
+    public Location resolveEnvironment() {
+        return resolveAndUnmanage(environmentSpec);
+    }
+
+    @Benchmark
+    public Location resolveMachine() {
+        return resolveAndUnmanage(machineSpec);
+    }
+
+    private Location resolveAndUnmanage(String spec) {
+        Location location = resolver.newLocationFromString(ImmutableMap.of(), spec, registry);
+        locations.unmanage(location);
+        return location;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Set;
+
+import org.reflections.Reflections;
+import org.reflections.scanners.SubTypesScanner;
+import org.reflections.scanners.TypeAnnotationsScanner;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.util.ConfigurationBuilder;
+
+import brooklyn.catalog.Catalog;
+import brooklyn.entity.Application;
+import brooklyn.entity.Entity;
+import brooklyn.policy.Policy;
+import brooklyn.util.text.Strings;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.escape.Escaper;
+import com.google.common.io.Files;
+import com.google.common.xml.XmlEscapers;
+
+/**
+ * Writes a catalog listing every {@link Catalog} annotated type on the classpath, run when the jar is built.
+ * This is a build tool in {@code src/build/java}; it runs on the test classpath, but test classes and
+ * test jars are not indexed, and it is not packaged in the jar.
+ * <p>
+ * {@link CloudMain} loads this catalog instead of scanning the classpath for annotations at
+ * startup, which opens every jar including the jclouds providers. The types in it are only
+ * loaded when the catalog item is first used.
+ * <p>
+ * Usage: {@code CatalogIndexer <file>}
+ */
+public class CatalogIndexer {
+
+    private static final Escaper XML = XmlEscapers.xmlAttributeEscaper();
+
+    public static void main(String... args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: CatalogIndexer <file>");
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        List<Class<?>> types = scan();
+        Files.createParentDirs(file);
+        Files.write(toXml(types), file, Charsets.UTF_8);
+        System.out.printf("Indexed %d catalog types in %s%n", types.size(), file);
+    }
+
+    public static List<Class<?>> scan() {
+        Reflections reflections = new Reflections(new ConfigurationBuilder()
+                .addUrls(Collections2.filter(ClasspathHelper.forJavaClassPath(), new Predicate<URL>() {
+                    @Override
+                    public boolean apply(URL input) {
+                        String path = input.getPath();
+                        return !path.contains("/test-classes") && !path.endsWith("-tests.jar");
+                    }
+                }))
+                .setScanners(new TypeAnnotationsScanner(), new SubTypesScanner()));
+        Set<Class<?>> annotated = reflections.getTypesAnnotatedWith(Catalog.class);
+        List<Class<?>> types = Lists.newArrayList();
+        for (Class<?> type : annotated) {
+            if (element(type) != null) types.add(type);
+        }
+        return Ordering.usingToString().sortedCopy(types);
+    }
+
+    public static String toXml(List<Class<?>> types) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<catalog>\n")
+                .append("    <name>Brooklyn Cloud</name>\n")
+                .append("    <description>Catalog types indexed at build time</description>\n");
+        for (Class<?> type : types) {
+            Catalog catalog = type.getAnnotation(Catalog.class);
+            String name = Strings.isNonBlank(catalog.name()) ? catalog.name() : type.getSimpleName();
+            xml.append("    <").append(element(type))
+                    .append(" type=\"").append(XML.escape(type.getName())).append('"')
+                    .append(" name=\"").append(XML.escape(name)).append("\">\n");
+            if (Strings.isNonBlank(catalog.description())) {
+                xml.append("        <description>").append(XML.escape(catalog.description())).append("</description>\n");
+            }
+            if (Strings.isNonBlank(catalog.iconUrl())) {
+                xml.append("        <iconUrl>").append(XML.escape(catalog.iconUrl())).append("</iconUrl>\n");
+            }
+            xml.append("    </").append(element(type)).append(">\n");
+        }
+        return xml.append("</catalog>\n").toString();
+    }
+
+    /** The catalog element for a type, or null if it is not an entity or policy. */
+    private static String element(Class<?> type) {
+        if (Application.class.isAssignableFrom(type)) return "template";
+        if (Entity.class.isAssignableFrom(type)) return "entity";
+        if (Policy.class.isAssignableFrom(type)) return "policy";
+        return null;
+    }
+
+}
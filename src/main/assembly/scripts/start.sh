@@ -30,6 +30,6 @@ if [ ! -f brooklyn-cloud-*.jar ] ; then
   exit 4
 fi
 
-$JAVA -Xms256m -Xmx1024m -XX:MaxPermSize=1024m \
+$JAVA -Xms256m -Xmx1024m -XX:MaxPermSize=1024m -XX:+TieredCompilation ${JAVA_OPTS} \
     -classpath "conf/:patch/*:*:lib/*" brooklyn.cloud.CloudMain "$@"
 
@@ -15,6 +15,7 @@
  */
 package brooklyn.cloud;
 
+import java.util.List;
 import java.util.Map;
 
 import brooklyn.catalog.Catalog;
@@ -30,6 +31,9 @@ import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.text.Strings;
 
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+
 /**
  * Brooklyn managed AWS cloud environment.
  */
@@ -41,6 +45,10 @@ public class AmazonEnvironment extends AbstractApplication {
     @CatalogConfig(label="Region", priority=0)
     public static final ConfigKey<String> REGION = ConfigKeys.newStringConfigKey("cloud.region", "The AWS region name", "eu-west-1");
 
+    @CatalogConfig(label="Additional Regions (Optional)", priority=0)
+    public static final ConfigKey<String> ADDITIONAL_REGIONS = ConfigKeys.newStringConfigKey("cloud.regions.additional",
+            "Comma separated list of further AWS regions or availability zones to provision in");
+
     @CatalogConfig(label="Hardware", priority=0)
     public static final ConfigKey<String> HARDWARE = ConfigKeys.newStringConfigKey("cloud.hardware", "The AWS hardware type", "m1.medium");
 
@@ -56,17 +64,20 @@ public class AmazonEnvironment extends AbstractApplication {
     @CatalogConfig(label="Cloud Cluster Minimum Size", priority=1)
     public static final ConfigKey<Integer> CLOUD_MACHINE_CLUSTER_MIN_SIZE = ConfigKeys.newConfigKeyWithDefault(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE, 1);
 
+    @CatalogConfig(label="Bake Machine Images", priority=1)
+    public static final ConfigKey<Boolean> BAKE_IMAGES = ConfigKeys.newConfigKeyWithDefault(CloudEnvironment.BAKE_IMAGES, Boolean.FALSE);
+
     @CatalogConfig(label="Cloud Flags", priority=1)
     public static final ConfigKey<Map<String, Object>> LOCATION_FLAGS = ConfigKeys.newConfigKeyWithDefault(CloudEnvironment.LOCATION_FLAGS, MutableMap.<String, Object>of());
 
     @Override
     public void init() {
-        LocationSpec<?> awsSpec = LocationSpec.create(JcloudsLocation.class)
-                .configure(JcloudsLocation.CLOUD_PROVIDER, "aws-ec2:" + getConfig(REGION))
-                .configure(JcloudsLocation.HARDWARE_ID, getConfig(HARDWARE));
-        if (Strings.isNonEmpty(getConfig(IDENTITY)) && Strings.isNonEmpty(getConfig(CREDENTIAL))) {
-            awsSpec.configure(JcloudsLocation.ACCESS_IDENTITY, getConfig(IDENTITY))
-                    .configure(JcloudsLocation.ACCESS_CREDENTIAL, getConfig(CREDENTIAL));
+        LocationSpec<?> awsSpec = awsSpec(getConfig(REGION));
+        List<LocationSpec<?>> additionalSpecs = Lists.newArrayList();
+        if (Strings.isNonBlank(getConfig(ADDITIONAL_REGIONS))) {
+            for (String region : Splitter.on(',').trimResults().omitEmptyStrings().split(getConfig(ADDITIONAL_REGIONS))) {
+                additionalSpecs.add(awsSpec(region));
+            }
         }
 
         EntitySpec<?> vmSpec = EntitySpec.create(CloudMachine.class)
@@ -77,9 +88,22 @@ public class AmazonEnvironment extends AbstractApplication {
                 .configure(CloudEnvironment.OPEN_IPTABLES, true)
                 .configure(CloudEnvironment.LOCATION_NAME, getConfig(LOCATION_NAME))
                 .configure(CloudEnvironment.CLOUD_LOCATION_SPEC, awsSpec)
+                .configure(CloudEnvironment.ADDITIONAL_LOCATION_SPECS, additionalSpecs)
                 .configure(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE, getConfig(CLOUD_MACHINE_CLUSTER_MIN_SIZE))
                 .configure(CloudEnvironment.CLOUD_MACHINE_SPEC, vmSpec)
+                .configure(CloudEnvironment.BAKE_IMAGES, getConfig(BAKE_IMAGES))
                 .displayName("Amazon Environment"));
     }
 
+    protected LocationSpec<?> awsSpec(String region) {
+        LocationSpec<?> awsSpec = LocationSpec.create(JcloudsLocation.class)
+                .configure(JcloudsLocation.CLOUD_PROVIDER, "aws-ec2:" + region)
+                .configure(JcloudsLocation.HARDWARE_ID, getConfig(HARDWARE));
+        if (Strings.isNonEmpty(getConfig(IDENTITY)) && Strings.isNonEmpty(getConfig(CREDENTIAL))) {
+            awsSpec.configure(JcloudsLocation.ACCESS_IDENTITY, getConfig(IDENTITY))
+                    .configure(JcloudsLocation.ACCESS_CREDENTIAL, getConfig(CREDENTIAL));
+        }
+        return awsSpec;
+    }
+
 }
@@ -20,11 +20,17 @@ import io.airlift.command.Option;
 
 import java.util.Arrays;
 
+import javax.annotation.Nullable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.catalog.BrooklynCatalog;
+import brooklyn.catalog.CatalogItem;
 import brooklyn.cli.Main;
+import brooklyn.config.BrooklynProperties;
+import brooklyn.config.BrooklynServerConfig;
+import brooklyn.launcher.BrooklynLauncher;
 
 import com.google.common.base.Objects.ToStringHelper;
 
@@ -40,11 +46,25 @@ public class CloudMain extends Main {
 
     public static final String DEFAULT_LOCATION = "localhost";
 
+    /** The catalog written by the build-time {@code CatalogIndexer}, if the jar was built with it. */
+    public static final String CATALOG_INDEX = "brooklyn/cloud/catalog.xml";
+
     public static void main(String... args) {
         log.debug("CLI invoked with args "+ Arrays.asList(args));
         new CloudMain().execCli(args);
     }
 
+    /**
+     * The URL of the prebuilt catalog index, to load instead of scanning the classpath, or null if a
+     * catalog URL is already set as a system property or in the brooklyn properties, or there is no index.
+     */
+    @Nullable
+    protected static String catalogIndexUrl(BrooklynProperties properties) {
+        if (properties.containsKey(BrooklynServerConfig.BROOKLYN_CATALOG_URL.getName())) return null;
+        if (CloudMain.class.getClassLoader().getResource(CATALOG_INDEX) == null) return null;
+        return "classpath://" + CATALOG_INDEX;
+    }
+
     @Override
     protected String cliScriptName() {
         return "start.sh";
@@ -69,9 +89,26 @@ public class CloudMain extends Main {
             return super.call();
         }
 
+        @Override
+        protected BrooklynLauncher createLauncher() {
+            BrooklynLauncher launcher = super.createLauncher();
+            BrooklynProperties properties = BrooklynProperties.Factory.builderDefault()
+                    .localPropertiesFile(localBrooklynProperties)
+                    .build();
+            String index = catalogIndexUrl(properties);
+            if (index != null) {
+                launcher.brooklynProperties(BrooklynServerConfig.BROOKLYN_CATALOG_URL.getName(), index);
+                log.debug("Using catalog index {}", CATALOG_INDEX);
+            }
+            return launcher;
+        }
+
         @Override
         protected void populateCatalog(BrooklynCatalog catalog) {
             super.populateCatalog(catalog);
+            for (CatalogItem item : catalog.getCatalogItems()) {
+                if (AmazonEnvironment.class.getName().equals(item.getJavaType())) return;
+            }
             catalog.addItem(AmazonEnvironment.class);
         }
 
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.jclouds.JcloudsSshMachineLocation;
+import brooklyn.management.ExecutionContext;
+import brooklyn.management.Task;
+import brooklyn.util.ResourceUtils;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * Distributes an artifact to many {@link CloudMachine}s along a tree.
+ * <p>
+ * The Brooklyn server downloads the artifact once and uploads it to a few seed machines.
+ * Each machine that has a verified copy serves it over HTTP to its children, which fetch
+ * it, check the SHA-256 checksum and retry as needed. Machines whose parent fails, or that
+ * cannot fetch from their parent, are uploaded to directly by the server instead. Server
+ * egress is therefore roughly constant and distribution time grows with the tree depth.
+ * <p>
+ * Each parent serves on its own port, so several machines on one host (such as localhost) do not clash.
+ * A parent serves a temporary directory holding only the artifact, bound to its private address on
+ * jclouds, which machines in one security group or network can reach; the rest of the artifact cache
+ * is never served. Every server is stopped and its directory removed once distribution ends.
+ * Fetches give up after the connect timeout, and if the first fetch from a parent fails before any
+ * has succeeded the peers are taken to be unreachable from each other, and every remaining machine
+ * is uploaded to by the server.
+ * <p>
+ * Deliveries run in worker tasks in the given execution context, up to the parallelism limit, so
+ * they show in the activity view and can be cancelled.
+ */
+public class ArtifactDistributor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArtifactDistributor.class);
+
+    private final ExecutionContext context;
+    private int seeds = 3;
+    private int fanout = 3;
+    private int retries = 3;
+    private int basePort = 18080;
+    private int parallelism = 50;
+    private Duration connectTimeout = Duration.seconds(5);
+
+    private final AtomicInteger serverUploads = new AtomicInteger();
+    private final AtomicInteger peerFetches = new AtomicInteger();
+    private final AtomicBoolean peersUnreachable = new AtomicBoolean(false);
+    private final Map<String, String> failures = Maps.newConcurrentMap();
+
+    public ArtifactDistributor(ExecutionContext context) {
+        this.context = context;
+    }
+
+    public ArtifactDistributor seeds(int seeds) {
+        this.seeds = Math.max(1, seeds);
+        return this;
+    }
+
+    public ArtifactDistributor fanout(int fanout) {
+        this.fanout = Math.max(1, fanout);
+        return this;
+    }
+
+    public ArtifactDistributor retries(int retries) {
+        this.retries = Math.max(1, retries);
+        return this;
+    }
+
+    public ArtifactDistributor basePort(int basePort) {
+        this.basePort = basePort;
+        return this;
+    }
+
+    public ArtifactDistributor parallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /** Time allowed for a child to connect to its parent before falling back to the server. */
+    public ArtifactDistributor connectTimeout(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * Copy the artifact at the URL into the artifact cache of every machine.
+     *
+     * @return a summary with the delivered and failed counts, failures by machine id, server uploads and duration
+     */
+    public Map<String, Object> distribute(String url, List<CloudMachine> machines) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        File local = download(url);
+        try {
+            String name = url.substring(url.lastIndexOf('/') + 1);
+            String checksum = Files.hash(local, Hashing.sha256()).toString();
+            run(local, name, checksum, url, ImmutableList.copyOf(machines));
+        } catch (IOException ioe) {
+            throw Exceptions.propagate(ioe);
+        } finally {
+            local.delete();
+        }
+
+        Map<String, Object> summary = ImmutableMap.<String, Object>of(
+                "delivered", machines.size() - failures.size(),
+                "failed", failures.size(),
+                "failures", ImmutableMap.copyOf(failures),
+                "serverUploads", serverUploads.get(),
+                "peerFetches", peerFetches.get(),
+                "durationMillis", stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        LOG.info("Distributed {} to {} machines: {}", new Object[] { url, machines.size(), summary });
+        return summary;
+    }
+
+    private void run(final File local, final String name, final String checksum, final String url, final List<CloudMachine> machines)
+            throws IOException {
+        final int total = machines.size();
+        final CountDownLatch done = new CountDownLatch(total);
+        final BlockingQueue<Runnable> deliveries = new LinkedBlockingQueue<Runnable>();
+        final List<Integer> serving = Lists.newCopyOnWriteArrayList();
+
+        // Node i >= seeds fetches from node (i - seeds) / fanout; seeds come from the server
+        final class Delivery implements Runnable {
+            private final int node;
+            @Nullable private final Integer parent;
+
+            Delivery(int node, @Nullable Integer parent) {
+                this.node = node;
+                this.parent = parent;
+            }
+
+            @Override
+            public void run() {
+                CloudMachine machine = machines.get(node);
+                boolean delivered = false;
+                try {
+                    if (parent != null && !peersUnreachable.get()) {
+                        delivered = fetchFromParent(machines.get(parent), basePort + parent, machine, name, checksum);
+                    }
+                    if (!delivered) {
+                        delivered = uploadFromServer(local, machine, name, checksum);
+                    }
+                    if (delivered) {
+                        machine.recordInstalledArtifact(url);
+                        List<Integer> children = children(node, total);
+                        if (children.size() > 0) {
+                            serving.add(node);
+                            if (serve(machine, basePort + node, name)) {
+                                for (Integer child : children) {
+                                    deliveries.add(new Delivery(child, node));
+                                }
+                                return;
+                            }
+                        }
+                        for (Integer child : children) {
+                            deliveries.add(new Delivery(child, null));
+                        }
+                    } else {
+                        failures.put(machine.getId(), "checksum mismatch or copy failed after " + retries + " attempts");
+                        for (Integer child : children(node, total)) {
+                            deliveries.add(new Delivery(child, null));
+                        }
+                    }
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    failures.put(machine.getId(), String.valueOf(e.getMessage()));
+                    for (Integer child : children(node, total)) {
+                        deliveries.add(new Delivery(child, null));
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        for (int i = 0; i < Math.min(seeds, total); i++) {
+            deliveries.add(new Delivery(i, null));
+        }
+        List<Task<?>> workers = Lists.newArrayList();
+        for (int w = 0; w < Math.min(parallelism, Math.max(1, total)); w++) {
+            workers.add(Tasks.builder().name("Distribute " + name + " (worker " + w + ")").body(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (done.getCount() > 0) {
+                            Runnable delivery = deliveries.poll(100, TimeUnit.MILLISECONDS);
+                            if (delivery != null) delivery.run();
+                        }
+                    } catch (InterruptedException ie) {
+                        throw Exceptions.propagate(ie);
+                    }
+                }
+            }).build());
+        }
+        Task<?> distributing = context.submit(Tasks.parallel("Distribute " + name + " to " + total + " machines", workers));
+        try {
+            distributing.get();
+        } catch (InterruptedException ie) {
+            distributing.cancel(true);
+            throw Exceptions.propagate(ie);
+        } catch (ExecutionException ee) {
+            throw Exceptions.propagate(ee.getCause());
+        } finally {
+            for (Integer node : serving) {
+                stopServing(machines.get(node), basePort + node);
+            }
+        }
+    }
+
+    private List<Integer> children(int node, int total) {
+        List<Integer> result = Lists.newArrayList();
+        int first = seeds + node * fanout;
+        for (int child = first; child < first + fanout && child < total; child++) {
+            result.add(child);
+        }
+        return result;
+    }
+
+    private File download(String url) {
+        InputStream in = ResourceUtils.create(this).getResourceFromUrl(url);
+        try {
+            File local = File.createTempFile("brooklyn-artifact", ".tmp");
+            Files.asByteSink(local).writeFrom(in);
+            return local;
+        } catch (IOException ioe) {
+            throw Exceptions.propagate(ioe);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private boolean uploadFromServer(File local, CloudMachine machine, String name, String checksum) {
+        SshMachineLocation ssh = machine.getSshMachine();
+        String dir = machine.getConfig(CloudMachine.ARTIFACT_CACHE_DIR);
+        for (int attempt = 0; attempt < retries; attempt++) {
+            serverUploads.incrementAndGet();
+            ssh.execCommands("mkdir", ImmutableList.of(format("mkdir -p %s", dir)));
+            if (ssh.copyTo(local, format("%s/%s", dir, name)) == 0 && verify(machine, name, checksum)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean fetchFromParent(CloudMachine parent, int port, CloudMachine machine, String name, String checksum) {
+        String dir = machine.getConfig(CloudMachine.ARTIFACT_CACHE_DIR);
+        String source = format("http://%s:%d/%s", peerAddress(parent.getSshMachine()), port, name);
+        long seconds = Math.max(1, connectTimeout.toSeconds());
+        for (int attempt = 0; attempt < retries; attempt++) {
+            int result = machine.getSshMachine().execCommands("fetchArtifact", ImmutableList.of(
+                    format("mkdir -p %s", dir),
+                    format("curl -fsS --connect-timeout %d -o %s/%s.part %s || wget -q -T %d -t 1 -O %s/%s.part %s",
+                            seconds, dir, name, source, seconds, dir, name, source),
+                    format("mv %s/%s.part %s/%s", dir, name, dir, name)));
+            if (result == 0 && verify(machine, name, checksum)) {
+                peerFetches.incrementAndGet();
+                return true;
+            }
+        }
+        if (peerFetches.get() == 0 && peersUnreachable.compareAndSet(false, true)) {
+            LOG.warn("Failed to fetch {} from {}, peers appear unreachable so uploading from the server", name, parent);
+        } else {
+            LOG.debug("Failed to fetch {} from {}, falling back to the server", name, parent);
+        }
+        return false;
+    }
+
+    /**
+     * The private address of a jclouds machine, reachable from its peers, or the SSH address.
+     */
+    private static String peerAddress(SshMachineLocation machine) {
+        if (machine instanceof JcloudsSshMachineLocation) {
+            NodeMetadata node = ((JcloudsSshMachineLocation) machine).getNode();
+            String address = (node == null) ? null : Iterables.getFirst(node.getPrivateAddresses(), null);
+            if (address != null) return address;
+        }
+        return machine.getAddress().getHostAddress();
+    }
+
+    private boolean verify(CloudMachine machine, String name, String checksum) {
+        String dir = machine.getConfig(CloudMachine.ARTIFACT_CACHE_DIR);
+        return machine.getSshMachine().execCommands("verifyArtifact", ImmutableList.of(
+                format("echo '%s  %s/%s' | sha256sum -c -", checksum, dir, name))) == 0;
+    }
+
+    /**
+     * Serve a temporary directory holding only the artifact, bound to the address peers fetch from.
+     */
+    private boolean serve(CloudMachine machine, int port, String name) {
+        String dir = machine.getConfig(CloudMachine.ARTIFACT_CACHE_DIR);
+        String address = peerAddress(machine.getSshMachine());
+        String served = serveDir(port);
+        int result = machine.getSshMachine().execCommands("serveArtifact", ImmutableList.of(
+                format("rm -rf %s && mkdir -p %s", served, served),
+                format("ln -f %s/%s %s/%s 2>/dev/null || cp %s/%s %s/%s", dir, name, served, name, dir, name, served, name),
+                format("cd %s", served),
+                format("(nohup python3 -m http.server %d --bind %s > /dev/null 2>&1 || "
+                        + "nohup python -c 'import BaseHTTPServer, SimpleHTTPServer; "
+                        + "BaseHTTPServer.HTTPServer((\"%s\", %d), SimpleHTTPServer.SimpleHTTPRequestHandler).serve_forever()' "
+                        + "> /dev/null 2>&1) & echo $! > %s.pid", port, address, address, port, served),
+                "sleep 1"));
+        return result == 0;
+    }
+
+    private void stopServing(CloudMachine machine, int port) {
+        String served = serveDir(port);
+        try {
+            machine.getSshMachine().execCommands("stopArtifactServer", ImmutableList.of(
+                    format("pkill -P $(cat %s.pid) 2>/dev/null; kill $(cat %s.pid) 2>/dev/null; rm -rf %s %s.pid; true", served, served, served, served)));
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Failed to stop artifact server on {}: {}", machine, e.getMessage());
+        }
+    }
+
+    private static String serveDir(int port) {
+        return format("/tmp/brooklyn-artifact-%d", port);
+    }
+
+}
@@ -15,10 +15,15 @@
  */
 package brooklyn.entity.cloud;
 
+import java.util.Map;
+import java.util.Set;
+
 import brooklyn.entity.Entity;
 import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.Sensors;
 
+import com.google.common.reflect.TypeToken;
+
 public interface CloudAttributes {
 
     AttributeSensor<Entity> ENTITY = Sensors.newSensor(Entity.class, "cloud.machine.entity", "The entity running in this machine");
@@ -28,4 +33,62 @@ public interface CloudAttributes {
 
     AttributeSensor<Integer> CLOUD_MACHINE_COUNT = Sensors.newIntegerSensor("cloud.machine.count", "Number of cloud machines");
     AttributeSensor<Integer> CLOUD_MACHINE_IDLE_COUNT = Sensors.newIntegerSensor("cloud.machine.idleCount", "Number of idle cloud machines");
+    AttributeSensor<Integer> CLOUD_MACHINE_HIBERNATED_COUNT = Sensors.newIntegerSensor("cloud.machine.hibernatedCount", "Number of hibernated cloud machines");
+    AttributeSensor<Integer> CLOUD_MACHINE_BORROWED_COUNT = Sensors.newIntegerSensor("cloud.machine.borrowedCount", "Number of machines borrowed from other environments");
+
+    AttributeSensor<Set<String>> INSTALLED_SOFTWARE = Sensors.newSensor(new TypeToken<Set<String>>() { },
+            "cloud.machine.installedSoftware", "Entity types and versions installed on this machine by previous tenants");
+    AttributeSensor<Set<String>> INSTALLED_ARTIFACTS = Sensors.newSensor(new TypeToken<Set<String>>() { },
+            "cloud.machine.installedArtifacts", "Artifacts downloaded to this machine by previous tenants");
+
+    AttributeSensor<String> PARTITION = Sensors.newStringSensor("cloud.machine.partition", "The partition that owns this machine, if any");
+
+    AttributeSensor<Integer> TEARDOWN_REMAINING = Sensors.newIntegerSensor("cloud.teardown.remaining", "Number of machines still to be stopped");
+    AttributeSensor<Integer> TEARDOWN_FAILED = Sensors.newIntegerSensor("cloud.teardown.failed", "Number of machines that failed to stop");
+    AttributeSensor<Long> TEARDOWN_ELAPSED = Sensors.newLongSensor("cloud.teardown.elapsed", "Time spent stopping the environment so far, in milliseconds");
+
+    AttributeSensor<Double> OBTAIN_LATENCY_P50 = Sensors.newDoubleSensor("cloud.obtain.latency.p50", "Median time to obtain a machine, in milliseconds");
+    AttributeSensor<Double> OBTAIN_LATENCY_P95 = Sensors.newDoubleSensor("cloud.obtain.latency.p95", "95th percentile time to obtain a machine, in milliseconds");
+    AttributeSensor<Double> OBTAIN_LATENCY_P99 = Sensors.newDoubleSensor("cloud.obtain.latency.p99", "99th percentile time to obtain a machine, in milliseconds");
+    AttributeSensor<Double> OBTAIN_LATENCY_MAX = Sensors.newDoubleSensor("cloud.obtain.latency.max", "Longest time to obtain a machine, in milliseconds");
+    AttributeSensor<Long> OBTAIN_IDLE_COUNT = Sensors.newLongSensor("cloud.obtain.idleCount", "Number of machines obtained from the idle pool");
+    AttributeSensor<Long> OBTAIN_FRESH_COUNT = Sensors.newLongSensor("cloud.obtain.freshCount", "Number of machines newly provisioned on obtain");
+    AttributeSensor<Long> OBTAIN_FAILED_COUNT = Sensors.newLongSensor("cloud.obtain.failedCount", "Number of failed requests to obtain a machine");
+    AttributeSensor<Map<String, Map<String, Object>>> LATENCY_SUMMARY = Sensors.newSensor(new TypeToken<Map<String, Map<String, Object>>>() { },
+            "cloud.latency", "Counts and latency percentiles in milliseconds for each provisioning operation and outcome");
+
+    AttributeSensor<FleetExecResult> FLEET_EXEC_RESULT = Sensors.newSensor(FleetExecResult.class,
+            "cloud.exec.result", "Counts of the current or last fleet exec, updated as each machine finishes");
+    AttributeSensor<FleetExecResult.HostResult> FLEET_EXEC_HOST_RESULT = Sensors.newSensor(FleetExecResult.HostResult.class,
+            "cloud.exec.host", "Output, exit code and duration of each machine in a fleet exec, published as it finishes");
+    AttributeSensor<String> FLEET_STATUS_URL = Sensors.newStringSensor("cloud.fleetStatus.url", "URL of the machine status event stream");
+
+    AttributeSensor<Boolean> AGENT_AVAILABLE = Sensors.newBooleanSensor("cloud.machine.agentAvailable", "Is the metrics agent on this machine sending heartbeats");
+    AttributeSensor<Integer> AGENT_KEY = Sensors.newIntegerSensor("cloud.machine.agentKey", "Collector key the metrics agent on this machine sends with each datagram");
+    AttributeSensor<Integer> AGENT_TOKEN = Sensors.newIntegerSensor("cloud.machine.agentToken", "Collector token the metrics agent on this machine sends with each datagram");
+    AttributeSensor<Double> LOAD_AVERAGE = Sensors.newDoubleSensor("cloud.machine.loadAverage", "One minute load average");
+    AttributeSensor<Long> MEMORY_USED = Sensors.newLongSensor("cloud.machine.memoryUsed", "Memory in use, in megabytes");
+    AttributeSensor<Long> MEMORY_TOTAL = Sensors.newLongSensor("cloud.machine.memoryTotal", "Total memory, in megabytes");
+    AttributeSensor<Double> DISK_USAGE = Sensors.newDoubleSensor("cloud.machine.diskUsage", "Fraction of the root filesystem in use");
+    AttributeSensor<Long> NET_RX_RATE = Sensors.newLongSensor("cloud.machine.netRxRate", "Network receive rate, in kilobits per second");
+    AttributeSensor<Long> NET_TX_RATE = Sensors.newLongSensor("cloud.machine.netTxRate", "Network transmit rate, in kilobits per second");
+
+    AttributeSensor<Double> CPU_STEAL = Sensors.newDoubleSensor("cloud.machine.cpuSteal", "Smoothed fraction of CPU time stolen by the hypervisor");
+    AttributeSensor<Long> PROBE_TIME = Sensors.newLongSensor("cloud.machine.probeTime", "Time taken by the CPU and disk probe at start, in milliseconds");
+    AttributeSensor<Double> SSH_LATENCY = Sensors.newDoubleSensor("cloud.machine.sshLatency", "Smoothed SSH command round trip time, in milliseconds");
+    AttributeSensor<Double> HEALTH_SCORE = Sensors.newDoubleSensor("cloud.machine.health", "Health score from 0 (poor) to 1 from steal time, probe time and SSH latency");
+
+    AttributeSensor<Double> BENCHMARK_CPU = Sensors.newDoubleSensor("cloud.machine.benchmark.cpu", "CPU benchmark score, in loop iterations per second");
+    AttributeSensor<Double> BENCHMARK_DISK_WRITE = Sensors.newDoubleSensor("cloud.machine.benchmark.diskWrite", "Sequential disk write rate, in megabytes per second");
+    AttributeSensor<Double> BENCHMARK_LOOPBACK = Sensors.newDoubleSensor("cloud.machine.benchmark.loopback", "Average loopback round trip time, in milliseconds");
+
+    AttributeSensor<MachineState> MACHINE_STATE = Sensors.newSensor(MachineState.class, "cloud.machine.state", "Whether the machine is running or hibernated");
+
+    AttributeSensor<String> LEASED_TO = Sensors.newStringSensor("cloud.machine.leasedTo", "Id of the environment this machine is lent to, if any");
+
+    AttributeSensor<String> IMAGE_ID = Sensors.newStringSensor("cloud.machine.imageId", "The image this machine was booted from, if known");
+    AttributeSensor<String> BAKED_IMAGE_ID = Sensors.newStringSensor("cloud.image.id", "The image baked from a customised cloud machine");
+    AttributeSensor<String> BAKED_IMAGE_LOCATION = Sensors.newStringSensor("cloud.image.location", "Id of the provisioner the baked image belongs to");
+    AttributeSensor<String> BAKED_IMAGE_FINGERPRINT = Sensors.newStringSensor("cloud.image.fingerprint", "Fingerprint of the machine specification the baked image was created from");
+
 }
@@ -16,11 +16,15 @@
 package brooklyn.entity.cloud;
 
 import java.util.List;
+import java.util.Map;
 
 import brooklyn.config.ConfigKey;
 import brooklyn.entity.Entity;
+import brooklyn.entity.annotation.Effector;
+import brooklyn.entity.annotation.EffectorParam;
 import brooklyn.entity.basic.BasicStartable;
 import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.MethodEffector;
 import brooklyn.entity.group.DynamicCluster;
 import brooklyn.entity.proxying.EntitySpec;
 import brooklyn.entity.proxying.ImplementedBy;
@@ -28,11 +32,19 @@ import brooklyn.entity.trait.Resizable;
 import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.BasicAttributeSensorAndConfigKey;
 import brooklyn.location.LocationSpec;
+import brooklyn.location.MachineProvisioningLocation;
 import brooklyn.location.basic.LocalhostMachineProvisioningLocation;
 import brooklyn.location.cloud.CloudLocation;
+import brooklyn.location.cloud.ImageSnapshotter;
+import brooklyn.location.cloud.LocationRegistrar;
+import brooklyn.location.cloud.MachineSuspender;
+import brooklyn.location.cloud.TemplateCache;
 import brooklyn.location.dynamic.LocationOwner;
-import brooklyn.location.jclouds.JcloudsLocationConfig;
 import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
 
 @ImplementedBy(CloudEnvironmentImpl.class)
 public interface CloudEnvironment extends BasicStartable, Resizable, LocationOwner<CloudLocation, CloudEnvironment> {
@@ -42,32 +54,366 @@ public interface CloudEnvironment extends BasicStartable, Resizable, LocationOwn
             "cloud.machine.securityGroup", "Set a network security group for cloud servers to use; (null to use default configuration)");
 
     @SetFromFlag("openIptables")
-    ConfigKey<Boolean> OPEN_IPTABLES = ConfigKeys.newConfigKeyWithPrefix("cloud.machine.", JcloudsLocationConfig.OPEN_IPTABLES);
+    ConfigKey<Boolean> OPEN_IPTABLES = ConfigKeys.newBooleanConfigKey("cloud.machine.openIptables",
+            "Whether to open the inbound ports via iptables rules on jclouds machines", Boolean.FALSE);
 
     @SetFromFlag("initialSize")
     ConfigKey<Integer> CLOUD_MACHINE_CLUSTER_MIN_SIZE = ConfigKeys.newConfigKeyWithPrefix("cloud.machine.", DynamicCluster.INITIAL_SIZE);
 
+    @SetFromFlag("shards")
+    ConfigKey<Integer> SHARD_COUNT = ConfigKeys.newIntegerConfigKey("cloud.machine.shards",
+            "Number of machine clusters to split the environment into, each with its own idle index and aggregation", 1);
+
     @SetFromFlag("registerMachines")
     ConfigKey<Boolean> REGISTER_CLOUD_MACHINE_LOCATIONS = ConfigKeys.newBooleanConfigKey("cloud.machine.register",
             "Register new cloud machine locations for deployment", Boolean.FALSE);
 
+    @SetFromFlag("compactLocations")
+    ConfigKey<Boolean> COMPACT_MACHINE_LOCATIONS = ConfigKeys.newBooleanConfigKey("cloud.machine.compact",
+            "Share location flags across machines, create machine locations when first used, and batch registry updates", Boolean.FALSE);
+
     @SetFromFlag("cloudSpec")
     BasicAttributeSensorAndConfigKey<LocationSpec> CLOUD_LOCATION_SPEC = new BasicAttributeSensorAndConfigKey<LocationSpec>(
             LocationSpec.class, "cloud.location.spec", "Specification to use for the cloud environment",
             LocationSpec.create(LocalhostMachineProvisioningLocation.class));
 
+    @SetFromFlag("additionalCloudSpecs")
+    ConfigKey<List<LocationSpec<?>>> ADDITIONAL_LOCATION_SPECS = ConfigKeys.newConfigKey(new TypeToken<List<LocationSpec<?>>>() { },
+            "cloud.location.additionalSpecs", "Specifications for further provisioners, such as other regions or zones; "
+                    + "new machines are obtained from whichever provisioner is performing best",
+            ImmutableList.<LocationSpec<?>>of());
+
+    @SetFromFlag("provisionerDefaultLatency")
+    ConfigKey<Duration> PROVISIONER_DEFAULT_LATENCY = ConfigKeys.newConfigKey(Duration.class, "cloud.location.defaultLatency",
+            "Time assumed to obtain a machine from a provisioner that has not supplied one yet, "
+                    + "when no other provisioner has either; otherwise their mean is used", Duration.minutes(5));
+
     @SetFromFlag("machineSpec")
     BasicAttributeSensorAndConfigKey<EntitySpec> CLOUD_MACHINE_SPEC = new BasicAttributeSensorAndConfigKey<EntitySpec>(
             EntitySpec.class, "cloud.machine.spec", "Specification to use when creating cloud machines",
             EntitySpec.create(CloudMachine.class));
 
+    @SetFromFlag("bakeImages")
+    ConfigKey<Boolean> BAKE_IMAGES = ConfigKeys.newBooleanConfigKey("cloud.image.bake",
+            "Snapshot the first customised cloud machine into an image and boot later machines from it", Boolean.FALSE);
+
+    @SetFromFlag("imageSnapshotter")
+    ConfigKey<ImageSnapshotter> IMAGE_SNAPSHOTTER = ConfigKeys.newConfigKey(ImageSnapshotter.class,
+            "cloud.image.snapshotter", "Creates images from machines; (null to derive from the provisioner)");
+
+    @SetFromFlag("machineSuspender")
+    ConfigKey<MachineSuspender> MACHINE_SUSPENDER = ConfigKeys.newConfigKey(MachineSuspender.class,
+            "cloud.hibernation.suspender", "Suspends and resumes machines; (null to derive from the provisioner)");
+
+    @SetFromFlag("hibernate")
+    ConfigKey<Boolean> HIBERNATE = ConfigKeys.newBooleanConfigKey("cloud.hibernation.enable",
+            "Suspend idle machines beyond the running idle reserve, and resume them on demand", Boolean.FALSE);
+
+    @SetFromFlag("hibernationRunningIdle")
+    ConfigKey<Integer> HIBERNATION_RUNNING_IDLE = ConfigKeys.newIntegerConfigKey("cloud.hibernation.runningIdle",
+            "Number of idle machines kept running when hibernating the rest", 2);
+
+    @SetFromFlag("hibernationPeriod")
+    ConfigKey<Duration> HIBERNATION_PERIOD = ConfigKeys.newConfigKey(Duration.class, "cloud.hibernation.period",
+            "Time between checks for idle machines to hibernate", Duration.ONE_MINUTE);
+
+    @SetFromFlag("resumeTimeout")
+    ConfigKey<Duration> RESUME_TIMEOUT = ConfigKeys.newConfigKey(Duration.class, "cloud.hibernation.resumeTimeout",
+            "Time allowed for a resumed machine to become reachable over SSH", Duration.minutes(5));
+
+    @SetFromFlag("templateCacheTtl")
+    ConfigKey<Duration> TEMPLATE_CACHE_TTL = ConfigKeys.newConfigKey(Duration.class, "cloud.templateCache.ttl",
+            "Time to keep images and hardware resolved by jclouds before looking them up again", Duration.minutes(30));
+
+    @SetFromFlag("lookahead")
+    ConfigKey<Boolean> LOOKAHEAD = ConfigKeys.newBooleanConfigKey("cloud.lookahead.enable",
+            "Reserve machines for the rest of an application when its first machine is obtained", Boolean.FALSE);
+
+    @SetFromFlag("lookaheadMaxMachines")
+    ConfigKey<Integer> LOOKAHEAD_MAX_MACHINES = ConfigKeys.newIntegerConfigKey("cloud.lookahead.maxMachines",
+            "Maximum number of machines reserved ahead for one application", 50);
+
+    @SetFromFlag("lookaheadTtl")
+    ConfigKey<Duration> LOOKAHEAD_TTL = ConfigKeys.newConfigKey(Duration.class, "cloud.lookahead.ttl",
+            "Time reserved machines are held for an application before they are released", Duration.minutes(10));
+
+    @SetFromFlag("lookaheadConcurrency")
+    ConfigKey<Integer> LOOKAHEAD_CONCURRENCY = ConfigKeys.newIntegerConfigKey("cloud.lookahead.concurrency",
+            "Maximum number of reserved machines provisioned at once", 10);
+
+    @SetFromFlag("lookaheadMaxWait")
+    ConfigKey<Duration> LOOKAHEAD_MAX_WAIT = ConfigKeys.newConfigKey(Duration.class, "cloud.lookahead.maxWait",
+            "Time an obtain waits for a reserved machine still being provisioned before provisioning its own", Duration.seconds(30));
+
+    @SetFromFlag("lendIdleMachines")
+    ConfigKey<Boolean> LEND_IDLE_MACHINES = ConfigKeys.newBooleanConfigKey("cloud.lending.lend",
+            "Lend idle machines to compatible environments that have none", Boolean.FALSE);
+
+    @SetFromFlag("borrowIdleMachines")
+    ConfigKey<Boolean> BORROW_IDLE_MACHINES = ConfigKeys.newBooleanConfigKey("cloud.lending.borrow",
+            "Borrow idle machines from compatible environments before provisioning new ones", Boolean.FALSE);
+
+    @SetFromFlag("lendingReserve")
+    ConfigKey<Integer> LENDING_RESERVE = ConfigKeys.newIntegerConfigKey("cloud.lending.reserve",
+            "Number of idle machines kept rather than lent to other environments", 0);
+
+    @SetFromFlag("lendingGroup")
+    ConfigKey<String> LENDING_GROUP = ConfigKeys.newStringConfigKey("cloud.lending.group",
+            "Environments in the same group lend to each other; (null to match on provider, region and hardware)");
+
+    @SetFromFlag("consolidate")
+    ConfigKey<Boolean> CONSOLIDATE = ConfigKeys.newBooleanConfigKey("cloud.consolidation.enable",
+            "Periodically move relocatable entities off burst machines and retire surplus idle machines", Boolean.FALSE);
+
+    @SetFromFlag("teardownConcurrency")
+    ConfigKey<Integer> TEARDOWN_CONCURRENCY = ConfigKeys.newIntegerConfigKey("cloud.teardown.concurrency",
+            "Maximum number of machines stopped at once when the environment stops", 20);
+
+    @SetFromFlag("bootstrapConcurrency")
+    ConfigKey<Integer> BOOTSTRAP_CONCURRENCY = ConfigKeys.newIntegerConfigKey("cloud.bootstrap.concurrency",
+            "Maximum number of initial machines started at once", 20);
+
+    @SetFromFlag("bootstrapQuorum")
+    ConfigKey<Integer> BOOTSTRAP_QUORUM = ConfigKeys.newIntegerConfigKey("cloud.bootstrap.quorum",
+            "Number of initial machines that must be up before the environment is up; (null for all of them)");
+
+    @SetFromFlag("bootstrapTimeout")
+    ConfigKey<Duration> BOOTSTRAP_TIMEOUT = ConfigKeys.newConfigKey(Duration.class, "cloud.bootstrap.timeout",
+            "Time allowed for an initial machine to start before it is replaced", Duration.minutes(15));
+
+    @SetFromFlag("bootstrapAttempts")
+    ConfigKey<Integer> BOOTSTRAP_ATTEMPTS = ConfigKeys.newIntegerConfigKey("cloud.bootstrap.attempts",
+            "Number of machines tried for each initial machine before giving up on it", 3);
+
+    @SetFromFlag("poolJournalDir")
+    ConfigKey<String> POOL_JOURNAL_DIR = ConfigKeys.newStringConfigKey("cloud.pool.journalDir",
+            "Directory for the local pool state journal, read on rebind when present; "
+            + "otherwise the state checkpointed with the location is used (null to disable the journal)", "~/.brooklyn/cloud-pool");
+
+    @SetFromFlag("poolCheckpointEvery")
+    ConfigKey<Integer> POOL_CHECKPOINT_EVERY = ConfigKeys.newIntegerConfigKey("cloud.pool.checkpointEvery",
+            "Number of pool changes journalled between checkpoints", 500);
+
+    @SetFromFlag("poolCheckpointPeriod")
+    ConfigKey<Duration> POOL_CHECKPOINT_PERIOD = ConfigKeys.newConfigKey(Duration.class, "cloud.pool.checkpointPeriod",
+            "Time between checkpoints of the journalled pool state into the persisted location", Duration.THIRTY_SECONDS);
+
+    @SetFromFlag("rebindConcurrency")
+    ConfigKey<Integer> REBIND_CONCURRENCY = ConfigKeys.newIntegerConfigKey("cloud.rebind.concurrency",
+            "Maximum number of machines reconnected at once on rebind", 20);
+
+    @SetFromFlag("healthChecks")
+    ConfigKey<Boolean> HEALTH_CHECKS = ConfigKeys.newBooleanConfigKey("cloud.health.enable",
+            "Probe each machine at start and track steal time and SSH latency to score its health", Boolean.FALSE);
+
+    @SetFromFlag("healthPeriod")
+    ConfigKey<Duration> HEALTH_PERIOD = ConfigKeys.newConfigKey(Duration.class, "cloud.health.period",
+            "Interval between machine health checks", Duration.ONE_MINUTE);
+
+    @SetFromFlag("healthMinScore")
+    ConfigKey<Double> HEALTH_MIN_SCORE = ConfigKeys.newDoubleConfigKey("cloud.health.minScore",
+            "Health score below which machines are only used when no healthy machine is idle", 0.5d);
+
+    @SetFromFlag("healthQuarantineAfter")
+    ConfigKey<Integer> HEALTH_QUARANTINE_AFTER = ConfigKeys.newIntegerConfigKey("cloud.health.quarantineAfter",
+            "Number of consecutive checks below the minimum score before an idle machine is quarantined and replaced", 5);
+
+    @SetFromFlag("healthStealLimit")
+    ConfigKey<Double> HEALTH_STEAL_LIMIT = ConfigKeys.newDoubleConfigKey("cloud.health.stealLimit",
+            "Fraction of CPU time stolen that scores zero", 0.2d);
+
+    @SetFromFlag("healthProbeBaseline")
+    ConfigKey<Duration> HEALTH_PROBE_BASELINE = ConfigKeys.newConfigKey(Duration.class, "cloud.health.probeBaseline",
+            "Expected time for the start-up probe on a healthy machine", Duration.seconds(2));
+
+    @SetFromFlag("healthSshBaseline")
+    ConfigKey<Duration> HEALTH_SSH_BASELINE = ConfigKeys.newConfigKey(Duration.class, "cloud.health.sshBaseline",
+            "Expected SSH command round trip time to a healthy machine", Duration.millis(500));
+
+    @SetFromFlag("benchmark")
+    ConfigKey<Boolean> BENCHMARK = ConfigKeys.newBooleanConfigKey("cloud.benchmark.enable",
+            "Benchmark each new machine before it starts, replacing machines below the thresholds", Boolean.FALSE);
+
+    @SetFromFlag("benchmarkCpuIterations")
+    ConfigKey<Integer> BENCHMARK_CPU_ITERATIONS = ConfigKeys.newIntegerConfigKey("cloud.benchmark.cpuIterations",
+            "Number of shell loop iterations timed for the CPU benchmark", 500000);
+
+    @SetFromFlag("benchmarkDiskSize")
+    ConfigKey<Integer> BENCHMARK_DISK_SIZE = ConfigKeys.newIntegerConfigKey("cloud.benchmark.diskSize",
+            "Megabytes written and synced for the disk benchmark", 64);
+
+    @SetFromFlag("benchmarkMinCpu")
+    ConfigKey<Double> BENCHMARK_MIN_CPU = ConfigKeys.newDoubleConfigKey("cloud.benchmark.minCpu",
+            "Minimum CPU benchmark score in loop iterations per second, or null to accept any");
+
+    @SetFromFlag("benchmarkMinDiskWrite")
+    ConfigKey<Double> BENCHMARK_MIN_DISK_WRITE = ConfigKeys.newDoubleConfigKey("cloud.benchmark.minDiskWrite",
+            "Minimum sequential disk write rate in megabytes per second, or null to accept any");
+
+    @SetFromFlag("benchmarkMaxLoopback")
+    ConfigKey<Double> BENCHMARK_MAX_LOOPBACK = ConfigKeys.newDoubleConfigKey("cloud.benchmark.maxLoopback",
+            "Maximum average loopback round trip time in milliseconds, or null to accept any");
+
+    @SetFromFlag("benchmarkAttempts")
+    ConfigKey<Integer> BENCHMARK_ATTEMPTS = ConfigKeys.newIntegerConfigKey("cloud.benchmark.attempts",
+            "Number of machines obtained before giving up when they fail the benchmark", 3);
+
+    @SetFromFlag("pushMetrics")
+    ConfigKey<Boolean> PUSH_METRICS = ConfigKeys.newBooleanConfigKey("cloud.metrics.push",
+            "Install an agent on each machine that pushes metrics over UDP, instead of polling over SSH", Boolean.FALSE);
+
+    @SetFromFlag("metricsPort")
+    ConfigKey<Integer> METRICS_PORT = ConfigKeys.newIntegerConfigKey("cloud.metrics.port",
+            "UDP port the metrics collector listens on", 16110);
+
+    @SetFromFlag("metricsCollectorHost")
+    ConfigKey<String> METRICS_COLLECTOR_HOST = ConfigKeys.newStringConfigKey("cloud.metrics.collectorHost",
+            "Address the agents send metrics to; (null for the Brooklyn server address)");
+
+    @SetFromFlag("metricsInterval")
+    ConfigKey<Duration> METRICS_INTERVAL = ConfigKeys.newConfigKey(Duration.class, "cloud.metrics.interval",
+            "Interval between metrics pushed by each agent", Duration.TEN_SECONDS);
+
+    @SetFromFlag("metricsMissedHeartbeats")
+    ConfigKey<Integer> METRICS_MISSED_HEARTBEATS = ConfigKeys.newIntegerConfigKey("cloud.metrics.missedHeartbeats",
+            "Number of intervals without metrics before a machine is marked unavailable", 3);
+
+    @SetFromFlag("traceFile")
+    ConfigKey<String> TRACE_FILE = ConfigKeys.newStringConfigKey("cloud.trace.file",
+            "File for provisioning trace spans in OTLP JSON format; (null to disable tracing)");
+
+    @SetFromFlag("traceSampleRate")
+    ConfigKey<Double> TRACE_SAMPLE_RATE = ConfigKeys.newDoubleConfigKey("cloud.trace.sampleRate",
+            "Fraction of provisioning requests traced", 0.1d);
+
+    @SetFromFlag("traceMaxFileSize")
+    ConfigKey<Long> TRACE_MAX_FILE_SIZE = ConfigKeys.newLongConfigKey("cloud.trace.maxFileSize",
+            "Size in bytes at which the trace file is rolled", 10L * 1024 * 1024);
+
+    @SetFromFlag("traceMaxFiles")
+    ConfigKey<Integer> TRACE_MAX_FILES = ConfigKeys.newIntegerConfigKey("cloud.trace.maxFiles",
+            "Number of rolled trace files kept", 5);
+
+    @SetFromFlag("fleetStatusPort")
+    ConfigKey<Integer> FLEET_STATUS_PORT = ConfigKeys.newIntegerConfigKey("cloud.fleetStatus.port",
+            "HTTP port serving a server-sent event stream of machine status; (null to disable)");
+
+    @SetFromFlag("fleetStatusBindAddress")
+    ConfigKey<String> FLEET_STATUS_BIND_ADDRESS = ConfigKeys.newStringConfigKey("cloud.fleetStatus.bindAddress",
+            "Address the machine status stream is served on; clients authenticate as web console users, "
+            + "which must be configured unless this is a loopback address", "127.0.0.1");
+
+    @SetFromFlag("fleetStatusTick")
+    ConfigKey<Duration> FLEET_STATUS_TICK = ConfigKeys.newConfigKey(Duration.class, "cloud.fleetStatus.tick",
+            "Interval between batches of machine status changes sent to clients", Duration.ONE_SECOND);
+
     AttributeSensor<Integer> CLOUD_MACHINE_COUNT = CloudAttributes.CLOUD_MACHINE_COUNT;
     AttributeSensor<Integer> CLOUD_MACHINE_IDLE_COUNT = CloudAttributes.CLOUD_MACHINE_IDLE_COUNT;
+    AttributeSensor<Integer> CLOUD_MACHINE_BORROWED_COUNT = CloudAttributes.CLOUD_MACHINE_BORROWED_COUNT;
+    AttributeSensor<Integer> CLOUD_MACHINE_HIBERNATED_COUNT = CloudAttributes.CLOUD_MACHINE_HIBERNATED_COUNT;
+    AttributeSensor<Integer> TEARDOWN_REMAINING = CloudAttributes.TEARDOWN_REMAINING;
+    AttributeSensor<Integer> TEARDOWN_FAILED = CloudAttributes.TEARDOWN_FAILED;
+    AttributeSensor<Long> TEARDOWN_ELAPSED = CloudAttributes.TEARDOWN_ELAPSED;
+    AttributeSensor<Double> OBTAIN_LATENCY_P50 = CloudAttributes.OBTAIN_LATENCY_P50;
+    AttributeSensor<Double> OBTAIN_LATENCY_P95 = CloudAttributes.OBTAIN_LATENCY_P95;
+    AttributeSensor<Double> OBTAIN_LATENCY_P99 = CloudAttributes.OBTAIN_LATENCY_P99;
+    AttributeSensor<Double> OBTAIN_LATENCY_MAX = CloudAttributes.OBTAIN_LATENCY_MAX;
+    AttributeSensor<Long> OBTAIN_IDLE_COUNT = CloudAttributes.OBTAIN_IDLE_COUNT;
+    AttributeSensor<Long> OBTAIN_FRESH_COUNT = CloudAttributes.OBTAIN_FRESH_COUNT;
+    AttributeSensor<Long> OBTAIN_FAILED_COUNT = CloudAttributes.OBTAIN_FAILED_COUNT;
+    AttributeSensor<Map<String, Map<String, Object>>> LATENCY_SUMMARY = CloudAttributes.LATENCY_SUMMARY;
+    AttributeSensor<FleetExecResult> FLEET_EXEC_RESULT = CloudAttributes.FLEET_EXEC_RESULT;
+    AttributeSensor<FleetExecResult.HostResult> FLEET_EXEC_HOST_RESULT = CloudAttributes.FLEET_EXEC_HOST_RESULT;
+    AttributeSensor<String> FLEET_STATUS_URL = CloudAttributes.FLEET_STATUS_URL;
+    AttributeSensor<String> BAKED_IMAGE_ID = CloudAttributes.BAKED_IMAGE_ID;
+    AttributeSensor<String> BAKED_IMAGE_FINGERPRINT = CloudAttributes.BAKED_IMAGE_FINGERPRINT;
+
+    MethodEffector<FleetExecResult> EXEC_ON_MACHINES = new MethodEffector<FleetExecResult>(CloudEnvironment.class, "execOnMachines");
+
+    /**
+     * Run a script on all or selected machines in parallel, publishing each machine result in
+     * {@link #FLEET_EXEC_HOST_RESULT} and the counts in {@link #FLEET_EXEC_RESULT} as each one
+     * finishes, and returning the output of every machine.
+     */
+    @Effector(description="Run a script over SSH on the cloud machines, in parallel")
+    FleetExecResult execOnMachines(
+            @EffectorParam(name="script", description="Script to run") String script,
+            @EffectorParam(name="machines", description="Comma separated machine ids; all running machines if empty", nullable=true) String machines,
+            @EffectorParam(name="parallelism", description="Maximum number of machines to run on at once", defaultValue="50") Integer parallelism,
+            @EffectorParam(name="timeout", description="Time allowed on each machine", defaultValue="5m") String timeout,
+            @EffectorParam(name="maxFailureRatio", description="Skip the remaining machines once this fraction have failed", defaultValue="1.0") Double maxFailureRatio);
+
+    MethodEffector<Map<String, Object>> DISTRIBUTE_ARTIFACT = new MethodEffector<Map<String, Object>>(CloudEnvironment.class, "distributeArtifact");
+
+    /**
+     * Copy an artifact into the cache of every running machine, machine-to-machine along a tree.
+     *
+     * @see ArtifactDistributor
+     */
+    @Effector(description="Distribute an artifact to the cloud machines, machine-to-machine")
+    Map<String, Object> distributeArtifact(
+            @EffectorParam(name="url", description="URL of the artifact") String url,
+            @EffectorParam(name="seeds", description="Number of machines the server uploads to", defaultValue="3") Integer seeds,
+            @EffectorParam(name="fanout", description="Number of machines each machine copies to", defaultValue="3") Integer fanout);
 
     List<Entity> getCloudMachineList();
 
+    /**
+     * The first machine cluster; see {@link #getCloudMachineShards()} when {@link #SHARD_COUNT sharded}.
+     */
     DynamicCluster getCloudMachineCluster();
 
+    List<DynamicCluster> getCloudMachineShards();
+
     Iterable<Entity> getAvailableMachines();
 
+    /**
+     * Stop an idle machine and remove it from the environment.
+     *
+     * @return false if the machine was claimed before it could be retired
+     */
+    boolean retireMachine(CloudMachine machine);
+
+    /**
+     * Move a persistently unhealthy idle machine to its cluster quarantine group and start a replacement.
+     *
+     * @return false if the machine is not idle
+     */
+    boolean quarantineMachine(CloudMachine machine);
+
+    /**
+     * Stop a machine in any state and remove it from the environment.
+     */
+    void removeMachine(CloudMachine machine);
+
+    /**
+     * Suspends and resumes machines from the provisioner, or null if it cannot.
+     */
+    MachineSuspender getMachineSuspender(MachineProvisioningLocation<?> provisioner);
+
+    /**
+     * Provisioning flags that boot new machines from the baked image, if one is valid for the provisioner.
+     */
+    Map<String, Object> getImageFlags(MachineProvisioningLocation<?> provisioner);
+
+    /**
+     * Called by a {@link CloudMachine} once it has been fully customised, to bake an image if required.
+     */
+    void machineCustomised(CloudMachine machine);
+
+    /**
+     * The jclouds template cache shared by all provisioning in this environment.
+     */
+    TemplateCache getTemplateCache();
+
+    /**
+     * The machine location flags from the {@link #CLOUD_MACHINE_SPEC machine spec}, as one immutable map shared by all machines.
+     */
+    Map<String, Object> getSharedLocationFlags();
+
+    /**
+     * Batches location registry updates for machines in {@link #COMPACT_MACHINE_LOCATIONS compact} mode.
+     */
+    LocationRegistrar getLocationRegistrar();
+
 }
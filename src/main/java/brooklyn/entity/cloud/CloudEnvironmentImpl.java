@@ -15,18 +15,30 @@
  */
 package brooklyn.entity.cloud;
 
+import java.io.File;
+import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import brooklyn.config.ConfigKey;
 import brooklyn.enricher.Enrichers;
 import brooklyn.entity.Entity;
+import brooklyn.entity.Group;
 import brooklyn.entity.basic.BasicStartableImpl;
+import brooklyn.entity.basic.ConfigKeys;
 import brooklyn.entity.basic.Entities;
 import brooklyn.entity.basic.SoftwareProcess;
 import brooklyn.entity.basic.SoftwareProcess.ChildStartableMode;
@@ -34,6 +46,13 @@ import brooklyn.entity.group.Cluster;
 import brooklyn.entity.group.DynamicCluster;
 import brooklyn.entity.group.DynamicMultiGroup;
 import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.entity.trait.Changeable;
+import brooklyn.entity.trait.Startable;
+import brooklyn.entity.trait.StartableMethods;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.event.feed.function.FunctionFeed;
+import brooklyn.event.feed.function.FunctionPollConfig;
 import brooklyn.location.Location;
 import brooklyn.location.LocationDefinition;
 import brooklyn.location.LocationSpec;
@@ -43,25 +62,70 @@ import brooklyn.location.basic.LocalhostMachineProvisioningLocation;
 import brooklyn.location.cloud.CloudLocation;
 import brooklyn.location.cloud.CloudMachineLocation;
 import brooklyn.location.cloud.CloudResolver;
+import brooklyn.location.cloud.ImageSnapshotter;
+import brooklyn.location.cloud.JcloudsImageSnapshotter;
+import brooklyn.location.cloud.JcloudsMachineSuspender;
+import brooklyn.location.cloud.LocationRegistrar;
+import brooklyn.location.cloud.MachineBroker;
+import brooklyn.location.cloud.MachineSuspender;
+import brooklyn.location.cloud.PoolJournal;
+import brooklyn.location.cloud.ProvisioningMetrics;
+import brooklyn.location.cloud.ProvisioningTracer;
+import brooklyn.location.cloud.TemplateCache;
+import brooklyn.location.jclouds.JcloudsLocation;
+import brooklyn.location.jclouds.JcloudsLocationConfig;
 import brooklyn.management.LocationManager;
+import brooklyn.management.Task;
+import brooklyn.policy.PolicySpec;
+import brooklyn.policy.cloud.ConsolidationPolicy;
+import brooklyn.policy.cloud.HibernationPolicy;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.os.Os;
+import brooklyn.util.task.ScheduledTask;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 public class CloudEnvironmentImpl extends BasicStartableImpl implements CloudEnvironment {
 
     private static final Logger log = LoggerFactory.getLogger(CloudEnvironmentImpl.class);
 
+    /** The position of a shard, so the shards keep their order when found again on rebind. */
+    private static final ConfigKey<Integer> SHARD_INDEX = ConfigKeys.newIntegerConfigKey("cloud.shard.index", "Position of the shard", 0);
+
     private DynamicCluster machines;
+    private List<DynamicCluster> shards = Lists.newArrayList();
     private DynamicMultiGroup buckets;
+    private transient AtomicBoolean baking = new AtomicBoolean(false);
+    private transient TemplateCache templateCache;
+    private transient Map<String, Object> sharedLocationFlags;
+    private transient LocationRegistrar registrar;
+    private transient FunctionFeed metricsFeed;
+    private transient Task<?> checkpointTask;
+    private transient FleetStatusServer fleetStatusServer;
 
-    private Predicate<Entity> sameInfrastructure = new Predicate<Entity>() {
+    @VisibleForTesting
+    final Predicate<Entity> sameInfrastructure = new Predicate<Entity>() {
         @Override
         public boolean apply(@Nullable Entity input) {
             Optional<Location> lookup = Iterables.tryFind(input.getLocations(), Predicates.instanceOf(CloudMachineLocation.class));
@@ -76,16 +140,22 @@ public class CloudEnvironmentImpl extends BasicStartableImpl implements CloudEnv
 
     @Override
     public void init() {
-        int initialSize = getConfig(CLOUD_MACHINE_CLUSTER_MIN_SIZE);
         EntitySpec<?> dockerHostSpec = EntitySpec.create(getConfig(CLOUD_MACHINE_SPEC))
                 .configure(CloudMachine.CLOUD_ENVIRONMENT, this)
                 .configure(SoftwareProcess.CHILDREN_STARTABLE_MODE, ChildStartableMode.BACKGROUND_LATE);
 
-        machines = addChild(EntitySpec.create(DynamicCluster.class)
-                .configure(Cluster.INITIAL_SIZE, initialSize)
-                .configure(DynamicCluster.QUARANTINE_FAILED_ENTITIES, true)
-                .configure(DynamicCluster.MEMBER_SPEC, dockerHostSpec)
-                .displayName("Machines"));
+        int shardCount = Math.max(1, getConfig(SHARD_COUNT));
+        for (int i = 0; i < shardCount; i++) {
+            // The initial machines are started by bootstrap(), not the shard
+            DynamicCluster shard = addChild(EntitySpec.create(DynamicCluster.class)
+                    .configure(Cluster.INITIAL_SIZE, 0)
+                    .configure(DynamicCluster.QUARANTINE_FAILED_ENTITIES, true)
+                    .configure(DynamicCluster.MEMBER_SPEC, dockerHostSpec)
+                    .configure(SHARD_INDEX, i)
+                    .displayName(shardCount == 1 ? "Machines" : "Machines " + i));
+            shards.add(shard);
+        }
+        machines = shards.get(0);
 
         buckets = addChild(EntitySpec.create(DynamicMultiGroup.class)
                 .configure(DynamicMultiGroup.ENTITY_FILTER, sameInfrastructure)
@@ -99,16 +169,231 @@ public class CloudEnvironmentImpl extends BasicStartableImpl implements CloudEnv
                 .displayName("Applications"));
 
         if (Entities.isManaged(this)) {
-            Entities.manage(machines);
+            for (DynamicCluster shard : shards) {
+                Entities.manage(shard);
+            }
             Entities.manage(buckets);
         }
 
-        machines.addEnricher(Enrichers.builder()
-                .aggregating(CloudAttributes.AVERAGE_CPU_USAGE)
-                .computingAverage()
-                .fromMembers()
-                .publishing(CloudAttributes.AVERAGE_CPU_USAGE)
-                .build());
+        for (DynamicCluster shard : shards) {
+            shard.addEnricher(Enrichers.builder()
+                    .aggregating(MachineEntity.CPU_USAGE)
+                    .computingAverage()
+                    .fromMembers()
+                    .publishing(CloudAttributes.AVERAGE_CPU_USAGE)
+                    .build());
+        }
+    }
+
+    /**
+     * Find the shards and application buckets among the children, since {@link #init()} is not called on rebind.
+     */
+    protected void findChildren() {
+        shards = Ordering.<Integer>natural()
+                .onResultOf(new Function<DynamicCluster, Integer>() {
+                        @Override
+                        public Integer apply(@Nullable DynamicCluster input) {
+                            return input.getConfig(SHARD_INDEX);
+                        }
+                    })
+                .sortedCopy(Iterables.filter(getChildren(), DynamicCluster.class));
+        machines = shards.isEmpty() ? null : shards.get(0);
+        buckets = Iterables.getFirst(Iterables.filter(getChildren(), DynamicMultiGroup.class), null);
+    }
+
+    /** Splits a size across the shards, giving any remainder to the first ones. */
+    private static int shardSize(int total, int shardCount, int shard) {
+        return (total / shardCount) + (shard < (total % shardCount) ? 1 : 0);
+    }
+
+    /**
+     * Keep the {@link CloudLocation} idle indexes up to date from shard membership and machine sensors.
+     */
+    protected void connectShards() {
+        final CloudLocation location = getDynamicLocation();
+        for (int i = 0; i < shards.size(); i++) {
+            final int index = i;
+            DynamicCluster shard = shards.get(i);
+            SensorEventListener<Object> changed = new SensorEventListener<Object>() {
+                @Override
+                public void onEvent(SensorEvent<Object> event) {
+                    location.updateMachine(index, (CloudMachine) event.getSource());
+                    updateCounts();
+                }
+            };
+            subscribeToMembers(shard, SERVICE_UP, changed);
+            subscribeToMembers(shard, CloudMachine.ENTITY, changed);
+            subscribe(shard, Changeable.MEMBER_REMOVED, new SensorEventListener<Entity>() {
+                @Override
+                public void onEvent(SensorEvent<Entity> event) {
+                    location.removeMachine((CloudMachine) event.getValue());
+                    updateCounts();
+                }
+            });
+            for (Entity member : shard.getMembers()) {
+                location.updateMachine(index, (CloudMachine) member);
+                if (member.getAttribute(CloudMachine.MACHINE_STATE) == MachineState.HIBERNATED && member.getAttribute(CloudMachine.ENTITY) == null) {
+                    location.addHibernated((CloudMachine) member);
+                }
+            }
+        }
+        updateCounts();
+    }
+
+    /**
+     * Publish the obtain latency and outcome sensors from the {@link ProvisioningMetrics}, and register them with JMX.
+     */
+    protected void connectMetrics() {
+        final ProvisioningMetrics metrics = getDynamicLocation().getMetrics();
+        metrics.registerMBeans(getId());
+        metricsFeed = FunctionFeed.builder()
+                .entity(this)
+                .period(Duration.TEN_SECONDS)
+                .poll(new FunctionPollConfig<Double, Double>(OBTAIN_LATENCY_P50)
+                        .callable(percentile(metrics, 50)))
+                .poll(new FunctionPollConfig<Double, Double>(OBTAIN_LATENCY_P95)
+                        .callable(percentile(metrics, 95)))
+                .poll(new FunctionPollConfig<Double, Double>(OBTAIN_LATENCY_P99)
+                        .callable(percentile(metrics, 99)))
+                .poll(new FunctionPollConfig<Double, Double>(OBTAIN_LATENCY_MAX)
+                        .callable(new Callable<Double>() {
+                                @Override
+                                public Double call() {
+                                    return metrics.getMaxMillis(ProvisioningMetrics.OBTAIN);
+                                }
+                            }))
+                .poll(new FunctionPollConfig<Long, Long>(OBTAIN_IDLE_COUNT)
+                        .callable(count(metrics, ProvisioningMetrics.OBTAIN + "." + ProvisioningMetrics.IDLE)))
+                .poll(new FunctionPollConfig<Long, Long>(OBTAIN_FRESH_COUNT)
+                        .callable(count(metrics, ProvisioningMetrics.OBTAIN + "." + ProvisioningMetrics.FRESH)))
+                .poll(new FunctionPollConfig<Long, Long>(OBTAIN_FAILED_COUNT)
+                        .callable(count(metrics, ProvisioningMetrics.OBTAIN + "." + ProvisioningMetrics.FAILURE)))
+                .poll(new FunctionPollConfig<Map<String, Map<String, Object>>, Map<String, Map<String, Object>>>(LATENCY_SUMMARY)
+                        .callable(new Callable<Map<String, Map<String, Object>>>() {
+                                @Override
+                                public Map<String, Map<String, Object>> call() {
+                                    return metrics.getSummary();
+                                }
+                            }))
+                .build();
+    }
+
+    protected void disconnectMetrics() {
+        if (metricsFeed != null) metricsFeed.stop();
+        CloudLocation location = getDynamicLocation();
+        if (location != null) {
+            location.getMetrics().unregisterMBeans();
+        }
+    }
+
+
+    /**
+     * Periodically checkpoint the journalled pool state into the persisted location.
+     */
+    protected void connectCheckpoint() {
+        final CloudLocation location = getDynamicLocation();
+        Callable<Task<?>> job = new Callable<Task<?>>() {
+            @Override
+            public Task<?> call() {
+                return Tasks.builder().name("Checkpoint pool").body(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            location.checkpoint();
+                        } catch (Exception e) {
+                            Exceptions.propagateIfFatal(e);
+                            log.warn("Failed to checkpoint pool of {}: {}", CloudEnvironmentImpl.this, e.getMessage());
+                        }
+                    }
+                }).build();
+            }
+        };
+        Duration period = getConfig(POOL_CHECKPOINT_PERIOD);
+        checkpointTask = getExecutionContext().submit(new ScheduledTask(MutableMap.of("displayName", "Checkpoint pool", "delay", period, "period", period), job));
+    }
+
+    protected void disconnectCheckpoint() {
+        if (checkpointTask != null) checkpointTask.cancel(true);
+        checkpointTask = null;
+        CloudLocation location = getDynamicLocation();
+        if (location != null) location.checkpoint();
+    }
+
+    /**
+     * Serve a {@link FleetStatusStream} of the machines if {@link #FLEET_STATUS_PORT} is set, on the
+     * {@link #FLEET_STATUS_BIND_ADDRESS}, marking machines changed on membership and status sensor events.
+     */
+    protected void connectFleetStatus() {
+        Integer port = getConfig(FLEET_STATUS_PORT);
+        if (port == null) return;
+
+        final FleetStatusStream stream = new FleetStatusStream(getId(), shards, getConfig(FLEET_STATUS_TICK));
+        SensorEventListener<Object> changed = new SensorEventListener<Object>() {
+            @Override
+            public void onEvent(SensorEvent<Object> event) {
+                stream.changed(event.getSource());
+            }
+        };
+        SensorEventListener<Entity> membership = new SensorEventListener<Entity>() {
+            @Override
+            public void onEvent(SensorEvent<Entity> event) {
+                stream.changed(event.getValue());
+            }
+        };
+        for (DynamicCluster shard : shards) {
+            subscribeToMembers(shard, SERVICE_UP, changed);
+            subscribeToMembers(shard, CloudMachine.ENTITY, changed);
+            subscribeToMembers(shard, MachineEntity.CPU_USAGE, changed);
+            subscribeToMembers(shard, MachineEntity.SSH_AVAILABLE, changed);
+            subscribeToMembers(shard, CloudMachine.MACHINE_STATE, changed);
+            subscribeToMembers(shard, CloudMachine.HEALTH_SCORE, changed);
+            subscribe(shard, Changeable.MEMBER_ADDED, membership);
+            subscribe(shard, Changeable.MEMBER_REMOVED, membership);
+        }
+        for (Entity member : getCloudMachineList()) {
+            stream.changed(member);
+        }
+
+        InetSocketAddress address = new InetSocketAddress(getConfig(FLEET_STATUS_BIND_ADDRESS), port);
+        fleetStatusServer = FleetStatusServer.acquire(address, getManagementContext().getConfig());
+        fleetStatusServer.register(getId(), stream);
+        setAttribute(FLEET_STATUS_URL, String.format("http://%s:%d%s%s",
+                fleetStatusServer.getHostAddress(), port, FleetStatusServer.PATH, getId()));
+    }
+
+    protected void disconnectFleetStatus() {
+        if (fleetStatusServer != null) {
+            fleetStatusServer.unregister(getId());
+            FleetStatusServer.release(fleetStatusServer);
+            fleetStatusServer = null;
+        }
+        setAttribute(FLEET_STATUS_URL, null);
+    }
+
+    private static Callable<Double> percentile(final ProvisioningMetrics metrics, final double percentile) {
+        return new Callable<Double>() {
+            @Override
+            public Double call() {
+                return metrics.getPercentileMillis(ProvisioningMetrics.OBTAIN, percentile);
+            }
+        };
+    }
+
+    private static Callable<Long> count(final ProvisioningMetrics metrics, final String name) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() {
+                return metrics.getCount(name);
+            }
+        };
+    }
+
+    protected void updateCounts() {
+        CloudLocation location = getDynamicLocation();
+        if (location != null) {
+            setAttribute(CLOUD_MACHINE_IDLE_COUNT, location.getIdleCount());
+        }
+        setAttribute(CLOUD_MACHINE_COUNT, getCurrentSize());
     }
 
     @Override
@@ -122,25 +407,270 @@ public class CloudEnvironmentImpl extends BasicStartableImpl implements CloudEnv
     }
 
     @Override
-    public List<Entity> getCloudMachineList() {
-        if (machines == null) {
-            return ImmutableList.of();
+    public FleetExecResult execOnMachines(String script, String machines, Integer parallelism, String timeout, Double maxFailureRatio) {
+        Set<String> selected = Sets.newHashSet(Splitter.on(',').trimResults().omitEmptyStrings().split(Strings.nullToEmpty(machines)));
+        List<CloudMachine> targets = Lists.newArrayList();
+        for (Entity member : getCloudMachineList()) {
+            if (Boolean.TRUE.equals(member.getAttribute(SERVICE_UP)) && (selected.isEmpty() || selected.contains(member.getId()))) {
+                targets.add((CloudMachine) member);
+            }
+        }
+        log.info("Running script on {} machines in {}", targets.size(), this);
+
+        return new FleetExec(getExecutionContext())
+                .parallelism(parallelism == null ? 50 : parallelism)
+                .timeout(timeout == null ? Duration.minutes(5) : Duration.of(timeout))
+                .maxFailureRatio(maxFailureRatio == null ? 1d : maxFailureRatio)
+                .listener(new Function<FleetExecResult, Void>() {
+                    @Override
+                    public Void apply(@Nullable FleetExecResult input) {
+                        setAttribute(FLEET_EXEC_RESULT, input);
+                        return null;
+                    }
+                })
+                .hostListener(new Function<FleetExecResult.HostResult, Void>() {
+                    @Override
+                    public Void apply(@Nullable FleetExecResult.HostResult input) {
+                        setAttribute(FLEET_EXEC_HOST_RESULT, input);
+                        return null;
+                    }
+                })
+                .run(script, targets);
+    }
+
+    @Override
+    public Map<String, Object> distributeArtifact(String url, Integer seeds, Integer fanout) {
+        List<CloudMachine> targets = Lists.newArrayList();
+        for (Entity member : getCloudMachineList()) {
+            if (Boolean.TRUE.equals(member.getAttribute(SERVICE_UP))) {
+                targets.add((CloudMachine) member);
+            }
+        }
+        return new ArtifactDistributor(getExecutionContext())
+                .seeds(seeds == null ? 3 : seeds)
+                .fanout(fanout == null ? 3 : fanout)
+                .distribute(url, targets);
+    }
+
+    @Override
+    public boolean retireMachine(CloudMachine machine) {
+        CloudLocation location = getDynamicLocation();
+        if (location == null || !location.retireIdle(machine)) return false;
+
+        log.info("Retiring idle machine {}", machine);
+        removeMachine(machine);
+        return true;
+    }
+
+    @Override
+    public void removeMachine(CloudMachine machine) {
+        Entities.invokeEffector(this, machine, Startable.STOP).getUnchecked();
+        for (DynamicCluster shard : shards) {
+            if (shard.hasMember(machine)) {
+                shard.removeMember(machine);
+            }
+        }
+        Entities.unmanage(machine);
+    }
+
+    @Override
+    public boolean quarantineMachine(final CloudMachine machine) {
+        CloudLocation location = getDynamicLocation();
+        if (location == null || !location.retireIdle(machine)) return false;
+
+        final DynamicCluster shard = Iterables.find(shards, new Predicate<DynamicCluster>() {
+            @Override
+            public boolean apply(DynamicCluster input) {
+                return input.hasMember(machine);
+            }
+        }, null);
+        if (shard == null) return false;
+
+        log.info("Quarantining unhealthy machine {} with health score {}", machine, machine.getAttribute(CloudMachine.HEALTH_SCORE));
+        shard.removeMember(machine);
+        Group quarantine = shard.getAttribute(DynamicCluster.QUARANTINE_GROUP);
+        if (quarantine != null) {
+            quarantine.addMember(machine);
+        }
+
+        // Stop the machine and start its replacement off the caller's thread
+        getExecutionContext().submit(Tasks.builder().name("Replace quarantined machine " + machine.getId()).body(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Entities.invokeEffector(CloudEnvironmentImpl.this, machine, Startable.STOP).getUnchecked();
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    log.warn("Failed to stop quarantined machine " + machine, e);
+                }
+                shard.resize(shard.getCurrentSize() + 1);
+            }
+        }).build());
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> getImageFlags(MachineProvisioningLocation<?> provisioner) {
+        String imageId = getAttribute(BAKED_IMAGE_ID);
+        if (getConfig(BAKE_IMAGES) && imageId != null && provisioner.getId().equals(getAttribute(CloudAttributes.BAKED_IMAGE_LOCATION))
+                && imageFingerprint().equals(getAttribute(BAKED_IMAGE_FINGERPRINT))) {
+            return ImmutableMap.<String, Object>of(JcloudsLocationConfig.IMAGE_ID.getName(), imageId);
         } else {
-            return ImmutableList.copyOf(machines.getMembers());
+            return ImmutableMap.of();
         }
     }
 
+    /**
+     * Snapshots the first customised machine, blocking its start so no tenant can change it first.
+     * <p>
+     * Images are re-baked when the machine or location specification changes.
+     */
+    @Override
+    public void machineCustomised(CloudMachine machine) {
+        if (!getConfig(BAKE_IMAGES)) return;
+
+        String fingerprint = imageFingerprint();
+        if (fingerprint.equals(getAttribute(BAKED_IMAGE_FINGERPRINT))) return;
+
+        MachineProvisioningLocation<?> source = machine.getAttribute(CloudMachine.PROVISIONING_LOCATION);
+        ImageSnapshotter snapshotter = getImageSnapshotter(source);
+        if (source == null || snapshotter == null) {
+            log.warn("Cannot bake image from {}; no provisioner or snapshotter available", machine);
+            return;
+        }
+        if (!baking.compareAndSet(false, true)) return;
+        try {
+            String previous = getAttribute(BAKED_IMAGE_ID);
+            String imageId = snapshotter.snapshot(machine.getSshMachine(), "brooklyn-cloud-" + getId());
+            setAttribute(BAKED_IMAGE_ID, imageId);
+            setAttribute(CloudAttributes.BAKED_IMAGE_LOCATION, source.getId());
+            setAttribute(BAKED_IMAGE_FINGERPRINT, fingerprint);
+            log.info("Baked image {} from {}", imageId, machine);
+
+            if (previous != null && !previous.equals(imageId)) {
+                try {
+                    snapshotter.delete(previous);
+                } catch (Exception e) {
+                    log.warn("Failed to delete stale image {}: {}", previous, e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Failed to bake image from {}: {}", machine, e.getMessage());
+        } finally {
+            baking.set(false);
+        }
+    }
+
+    @Override
+    public synchronized TemplateCache getTemplateCache() {
+        if (templateCache == null) {
+            templateCache = new TemplateCache(getConfig(TEMPLATE_CACHE_TTL));
+        }
+        return templateCache;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, Object> getSharedLocationFlags() {
+        if (sharedLocationFlags == null) {
+            Map<String, Object> flags = (Map<String, Object>) getConfig(CLOUD_MACHINE_SPEC).getConfig().get(CloudMachine.LOCATION_FLAGS);
+            sharedLocationFlags = (flags == null) ? ImmutableMap.<String, Object>of()
+                    : ImmutableMap.copyOf(Maps.filterValues(flags, Predicates.notNull()));
+        }
+        return sharedLocationFlags;
+    }
+
+    @Override
+    public synchronized LocationRegistrar getLocationRegistrar() {
+        if (registrar == null) {
+            registrar = new LocationRegistrar(getManagementContext().getLocationRegistry(), Duration.ONE_SECOND);
+        }
+        return registrar;
+    }
+
+    protected ImageSnapshotter getImageSnapshotter(MachineProvisioningLocation<?> provisioner) {
+        ImageSnapshotter snapshotter = getConfig(IMAGE_SNAPSHOTTER);
+        if (snapshotter != null) return snapshotter;
+
+        if (provisioner instanceof ImageSnapshotter) {
+            return (ImageSnapshotter) provisioner;
+        } else if (provisioner instanceof JcloudsLocation) {
+            return new JcloudsImageSnapshotter((JcloudsLocation) provisioner);
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public MachineSuspender getMachineSuspender(MachineProvisioningLocation<?> provisioner) {
+        MachineSuspender suspender = getConfig(MACHINE_SUSPENDER);
+        if (suspender != null) return suspender;
+
+        if (provisioner instanceof MachineSuspender) {
+            return (MachineSuspender) provisioner;
+        } else if (provisioner instanceof JcloudsLocation) {
+            return new JcloudsMachineSuspender((JcloudsLocation) provisioner);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * A hash of the machine and location specifications, including any setup commands.
+     */
+    protected String imageFingerprint() {
+        Hasher hasher = Hashing.sha256().newHasher();
+        EntitySpec<?> machineSpec = getConfig(CLOUD_MACHINE_SPEC);
+        hasher.putString(machineSpec.getType().getName(), Charsets.UTF_8);
+        putConfig(hasher, machineSpec.getConfig());
+        LocationSpec<?> locationSpec = getConfig(CLOUD_LOCATION_SPEC);
+        if (locationSpec != null) {
+            hasher.putString(locationSpec.getType().getName(), Charsets.UTF_8);
+            putConfig(hasher, locationSpec.getConfig());
+        }
+        return hasher.hash().toString();
+    }
+
+    private static void putConfig(Hasher hasher, Map<ConfigKey<?>, Object> config) {
+        for (ConfigKey<?> key : Ordering.usingToString().sortedCopy(config.keySet())) {
+            hasher.putString(key.getName(), Charsets.UTF_8)
+                    .putString(String.valueOf(config.get(key)), Charsets.UTF_8);
+        }
+    }
+
+    @Override
+    public List<Entity> getCloudMachineList() {
+        ImmutableList.Builder<Entity> members = ImmutableList.builder();
+        for (DynamicCluster shard : shards) {
+            members.addAll(shard.getMembers());
+        }
+        return members.build();
+    }
+
     @Override
     public DynamicCluster getCloudMachineCluster() { return machines; }
 
+    @Override
+    public List<DynamicCluster> getCloudMachineShards() {
+        return ImmutableList.copyOf(shards);
+    }
+
     @Override
     public Integer resize(Integer desiredSize) {
-        return machines.resize(desiredSize);
+        int size = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            size += shards.get(i).resize(shardSize(desiredSize, shards.size(), i));
+        }
+        return size;
     }
 
     @Override
     public Integer getCurrentSize() {
-        return machines.getCurrentSize();
+        int size = 0;
+        for (DynamicCluster shard : shards) {
+            size += shard.getCurrentSize();
+        }
+        return size;
     }
 
     @Override
@@ -155,6 +685,7 @@ public class CloudEnvironmentImpl extends BasicStartableImpl implements CloudEnv
 
     @Override
     public CloudLocation createLocation(Map<String, ?> flags) {
+        long start = System.nanoTime();
         String locationName = getConfig(LOCATION_NAME);
         if (locationName == null) {
             String prefix = getConfig(LOCATION_NAME_PREFIX);
@@ -172,7 +703,9 @@ public class CloudEnvironmentImpl extends BasicStartableImpl implements CloudEnv
         getManagementContext().getLocationRegistry().updateDefinedLocation(definition);
 
         log.info("New cloud location {} created", location);
-        return (CloudLocation) location;
+        CloudLocation cloud = (CloudLocation) location;
+        cloud.getMetrics().record(ProvisioningMetrics.LOCATION_CREATE, ProvisioningMetrics.SUCCESS, start);
+        return cloud;
     }
 
     @Override
@@ -203,24 +736,320 @@ public class CloudEnvironmentImpl extends BasicStartableImpl implements CloudEnv
         } else {
             provisioner = location.get();
         }
-        log.info("Creating new CloudLocation wrapping {}", provisioner);
+        List<Location> provisioners = Lists.newArrayList(provisioner);
+        for (LocationSpec<?> spec : getConfig(ADDITIONAL_LOCATION_SPECS)) {
+            provisioners.add(getManagementContext().getLocationManager().createLocation(spec));
+        }
+        log.info("Creating new CloudLocation wrapping {}", provisioners);
 
         Map<String, ?> flags = MutableMap.<String, Object>builder()
                 .putAll(getConfig(LOCATION_FLAGS))
                 .put("provisioner", provisioner)
+                .put("provisioners", provisioners)
+                .put("shards", shards.size())
                 .build();
-        createLocation(flags);
+        CloudLocation cloud = createLocation(flags);
+        if (Boolean.TRUE.equals(getConfig(COMPACT_MACHINE_LOCATIONS))) {
+            cloud.shareMachineConfig(getSharedLocationFlags());
+        }
+        cloud.setJournal(openJournal());
+        cloud.setTracer(createTracer());
+        connectShards();
+        connectMetrics();
+        connectCheckpoint();
+        connectFleetStatus();
+        MachineBroker.register(this);
+
+        if (getConfig(CONSOLIDATE)) {
+            addPolicy(PolicySpec.create(ConsolidationPolicy.class));
+        }
+        if (getConfig(HIBERNATE)) {
+            addPolicy(PolicySpec.create(HibernationPolicy.class));
+        }
+
+        // Start the children directly rather than through super.start, which would set SERVICE_UP before the quorum
+        addLocations(locations);
+        StartableMethods.start(this, locations);
+
+        bootstrap();
+        setAttribute(SERVICE_UP, true);
+    }
+
+    /**
+     * Start the initial machines in parallel, up to the {@link #BOOTSTRAP_CONCURRENCY} limit, returning
+     * once {@link #BOOTSTRAP_QUORUM} of them are up. The rest start in the background.
+     * <p>
+     * The machines are started by worker tasks in the entity execution context, so they show
+     * in the activity view and can be cancelled. A machine that fails or takes longer than
+     * {@link #BOOTSTRAP_TIMEOUT} is replaced by a new one, up to {@link #BOOTSTRAP_ATTEMPTS}
+     * times, and stopped once bootstrap has finished.
+     */
+    protected void bootstrap() {
+        final int total = getConfig(CLOUD_MACHINE_CLUSTER_MIN_SIZE);
+        if (total <= 0) return;
+        Integer configured = getConfig(BOOTSTRAP_QUORUM);
+        final int quorum = (configured == null) ? total : Math.max(0, Math.min(configured, total));
+        final Duration timeout = getConfig(BOOTSTRAP_TIMEOUT);
+        final int attempts = Math.max(1, getConfig(BOOTSTRAP_ATTEMPTS));
+        final AtomicInteger ready = new AtomicInteger(0);
+        final AtomicInteger failed = new AtomicInteger(0);
+        final Object progress = new Object[0];
+        final Queue<Entity> discarded = new ConcurrentLinkedQueue<Entity>();
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+
+        // Each slot is one initial machine, taken by the next free worker
+        final Queue<Integer> slots = new ConcurrentLinkedQueue<Integer>();
+        for (int i = 0; i < shards.size(); i++) {
+            for (int j = 0; j < shardSize(total, shards.size(), i); j++) {
+                slots.add(i);
+            }
+        }
+
+        log.info("Starting {} machines for {}, up when {} are ready", new Object[] { total, this, quorum });
+        List<Task<?>> workers = Lists.newArrayList();
+        for (int w = 0; w < Math.max(1, Math.min(getConfig(BOOTSTRAP_CONCURRENCY), total)); w++) {
+            workers.add(Tasks.builder().name("Start machines (worker " + w + ")").body(new Runnable() {
+                @Override
+                public void run() {
+                    for (Integer slot = slots.poll(); slot != null && !Thread.currentThread().isInterrupted(); slot = slots.poll()) {
+                        DynamicCluster shard = shards.get(slot);
+                        try {
+                            if (startMachine(shard, Iterables.getFirst(shard.getLocations(), null), timeout, attempts, discarded)) {
+                                ready.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                        } catch (RuntimeException e) {
+                            failed.incrementAndGet();
+                            throw e;
+                        } finally {
+                            synchronized (progress) {
+                                progress.notifyAll();
+                            }
+                        }
+                    }
+                }
+            }).build());
+        }
+        final Task<?> starting = getExecutionContext().submit(Tasks.parallel("Start " + total + " machines", workers));
+
+        // Stop replaced machines once every initial machine has finished
+        getExecutionContext().submit(Tasks.builder().name("Stop replaced machines").body(new Runnable() {
+            @Override
+            public void run() {
+                starting.blockUntilEnded();
+                for (Entity machine : discarded) {
+                    try {
+                        Entities.invokeEffector(CloudEnvironmentImpl.this, machine, Startable.STOP).getUnchecked();
+                        Entities.unmanage(machine);
+                    } catch (Exception e) {
+                        Exceptions.propagateIfFatal(e);
+                        log.warn("Failed to stop replaced machine {} in {}: {}", new Object[] { machine, CloudEnvironmentImpl.this, e.getMessage() });
+                    }
+                }
+                log.info("Started {} of {} machines for {} in {}ms, replacing {}",
+                        new Object[] { ready.get(), total, CloudEnvironmentImpl.this, stopwatch.elapsed(TimeUnit.MILLISECONDS), discarded.size() });
+            }
+        }).build());
+
+        synchronized (progress) {
+            while (ready.get() < quorum && failed.get() <= total - quorum && !starting.isDone()) {
+                try {
+                    progress.wait(1000);
+                } catch (InterruptedException ie) {
+                    starting.cancel(true);
+                    throw Exceptions.propagate(ie);
+                }
+            }
+        }
+        if (ready.get() < quorum) {
+            throw new IllegalStateException(String.format("Only %d of %d machines started for %s, needed %d",
+                    ready.get(), total, this, quorum));
+        }
+        log.info("Quorum of {} machines ready for {} in {}ms", new Object[] { quorum, this, stopwatch.elapsed(TimeUnit.MILLISECONDS) });
+    }
+
+    /**
+     * Add and start a machine in the shard, replacing it if it fails or does not start in time.
+     *
+     * @return true if a machine started
+     */
+    private boolean startMachine(DynamicCluster shard, Location location, Duration timeout, int attempts, Queue<Entity> discarded) {
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            Entity machine = shard.addNode(location, ImmutableMap.of());
+            Task<Void> task = Entities.invokeEffector(this, machine, Startable.START,
+                    ImmutableMap.of("locations", ImmutableList.of(location)));
+            boolean ended = task.blockUntilEnded(timeout);
+            if (ended && !task.isError()) return true;
 
-        super.start(locations);
+            log.warn("Machine {} in {} {} on attempt {} of {}", new Object[] { machine, this,
+                    ended ? "failed to start" : "did not start within " + timeout, attempt, attempts });
+            task.cancel(true);
+            shard.removeMember(machine);
+            discarded.add(machine);
+        }
+        return false;
     }
 
     /**
-     * De-register our {@link CloudLocation} and its children.
+     * Drain the machines, then de-register our {@link CloudLocation} and its children.
      */
     public void stop() {
+        MachineBroker.unregister(this);
+        CloudLocation cloud = getDynamicLocation();
+        if (cloud != null) cloud.closeReservations();
+
+        drain();
+
         super.stop();
 
+        disconnectMetrics();
+        disconnectCheckpoint();
+        disconnectFleetStatus();
+
+        synchronized (this) {
+            if (registrar != null) {
+                registrar.close();
+                registrar = null;
+            }
+        }
+
+        CloudLocation location = getDynamicLocation();
+        if (location != null && location.getJournal() != null) {
+            location.getJournal().delete();
+            location.setJournal(null);
+        }
+        if (location != null) {
+            location.getTracer().close();
+            location.setTracer(null);
+        }
         deleteLocation();
     }
 
+    /**
+     * Restore the pool from its journal in bulk, or from the last checkpoint when there is no journal,
+     * then reconnect the machines in parallel worker tasks.
+     */
+    @Override
+    public void rebind() {
+        super.rebind();
+        findChildren();
+
+        CloudLocation location = getDynamicLocation();
+        if (location == null) return;
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        PoolJournal journal = openJournal();
+        if (journal != null && journal.exists()) {
+            location.restore(journal.load());
+        } else {
+            location.restore(location.getPersistedState());
+        }
+        location.setJournal(journal);
+        location.setTracer(createTracer());
+        location.restorePartitions(getCloudMachineList());
+        connectShards();
+        connectMetrics();
+        connectCheckpoint();
+        connectFleetStatus();
+        MachineBroker.register(this);
+
+        List<Entity> members = getCloudMachineList();
+        final Queue<Entity> pending = new ConcurrentLinkedQueue<Entity>(members);
+        List<Task<?>> workers = Lists.newArrayList();
+        for (int w = 0; w < Math.max(1, Math.min(getConfig(REBIND_CONCURRENCY), members.size())); w++) {
+            workers.add(Tasks.builder().name("Reconnect machines (worker " + w + ")").body(new Runnable() {
+                @Override
+                public void run() {
+                    for (Entity member = pending.poll(); member != null && !Thread.currentThread().isInterrupted(); member = pending.poll()) {
+                        try {
+                            ((CloudMachine) member).reconnect();
+                        } catch (Exception e) {
+                            Exceptions.propagateIfFatal(e);
+                            log.warn("Failed to reconnect {} on rebind: {}", member, e.getMessage());
+                        }
+                    }
+                }
+            }).build());
+        }
+        Task<?> reconnecting = getExecutionContext().submit(Tasks.parallel("Reconnect " + members.size() + " machines", workers));
+        try {
+            reconnecting.getUnchecked();
+        } finally {
+            reconnecting.cancel(true);
+        }
+        log.info("Rebound {} with {} machines in {}ms", new Object[] { this, members.size(), stopwatch.elapsed(TimeUnit.MILLISECONDS) });
+    }
+
+    protected ProvisioningTracer createTracer() {
+        return ProvisioningTracer.create(getConfig(TRACE_FILE), getConfig(TRACE_SAMPLE_RATE),
+                getConfig(TRACE_MAX_FILE_SIZE), getConfig(TRACE_MAX_FILES));
+    }
+
+    @Nullable
+    protected PoolJournal openJournal() {
+        String dir = getConfig(POOL_JOURNAL_DIR);
+        if (Strings.isNullOrEmpty(dir)) return null;
+        return new PoolJournal(new File(Os.tidyPath(dir)), getId(), getConfig(POOL_CHECKPOINT_EVERY));
+    }
+
+    /**
+     * Stop the tenants and machines in parallel, up to the {@link #TEARDOWN_CONCURRENCY} limit,
+     * destroying jclouds machines in batches and publishing progress as each machine finishes.
+     * <p>
+     * The machines are stopped by worker tasks in the entity execution context, so teardown
+     * shows in the activity view and can be cancelled.
+     */
+    protected void drain() {
+        List<Entity> members = getCloudMachineList();
+        final CloudLocation location = getDynamicLocation();
+        final AtomicInteger remaining = new AtomicInteger(members.size());
+        final AtomicInteger failed = new AtomicInteger(0);
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        publishTeardown(remaining.get(), failed.get(), stopwatch);
+        if (members.isEmpty()) return;
+
+        log.info("Draining {} machines from {}", members.size(), this);
+        if (location != null) location.beginBatchRelease();
+        final Queue<Entity> pending = new ConcurrentLinkedQueue<Entity>(members);
+        List<Task<?>> workers = Lists.newArrayList();
+        for (int w = 0; w < Math.max(1, Math.min(getConfig(TEARDOWN_CONCURRENCY), members.size())); w++) {
+            workers.add(Tasks.builder().name("Stop machines (worker " + w + ")").body(new Runnable() {
+                @Override
+                public void run() {
+                    for (Entity member = pending.poll(); member != null && !Thread.currentThread().isInterrupted(); member = pending.poll()) {
+                        try {
+                            Entity tenant = member.getAttribute(CloudMachine.ENTITY);
+                            if (tenant instanceof Startable) {
+                                Entities.invokeEffector(CloudEnvironmentImpl.this, tenant, Startable.STOP).getUnchecked();
+                            }
+                            Entities.invokeEffector(CloudEnvironmentImpl.this, member, Startable.STOP).getUnchecked();
+                        } catch (Exception e) {
+                            Exceptions.propagateIfFatal(e);
+                            failed.incrementAndGet();
+                            log.warn("Failed to stop {} while draining {}: {}", new Object[] { member, CloudEnvironmentImpl.this, e.getMessage() });
+                        } finally {
+                            publishTeardown(remaining.decrementAndGet(), failed.get(), stopwatch);
+                        }
+                    }
+                }
+            }).build());
+        }
+        Task<?> stopping = getExecutionContext().submit(Tasks.parallel("Stop " + members.size() + " machines", workers));
+        try {
+            stopping.getUnchecked();
+        } finally {
+            stopping.cancel(true);
+            if (location != null) location.flushBatchRelease();
+        }
+        publishTeardown(remaining.get(), failed.get(), stopwatch);
+        log.info("Drained {} in {}ms with {} failures", new Object[] { this, stopwatch.elapsed(TimeUnit.MILLISECONDS), failed.get() });
+    }
+
+    private void publishTeardown(int remaining, int failed, Stopwatch stopwatch) {
+        setAttribute(TEARDOWN_REMAINING, remaining);
+        setAttribute(TEARDOWN_FAILED, failed);
+        setAttribute(TEARDOWN_ELAPSED, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+
 }
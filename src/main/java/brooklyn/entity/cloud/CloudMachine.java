@@ -15,6 +15,9 @@
  */
 package brooklyn.entity.cloud;
 
+import java.util.List;
+import java.util.Set;
+
 import brooklyn.config.ConfigKey;
 import brooklyn.entity.Entity;
 import brooklyn.entity.basic.ConfigKeys;
@@ -26,6 +29,9 @@ import brooklyn.location.dynamic.LocationOwner;
 import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.util.flags.SetFromFlag;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.reflect.TypeToken;
+
 @ImplementedBy(CloudMachineImpl.class)
 public interface CloudMachine extends MachineEntity, HasShortName, LocationOwner<CloudMachineLocation, CloudMachine> {
 
@@ -33,7 +39,38 @@ public interface CloudMachine extends MachineEntity, HasShortName, LocationOwner
     ConfigKey<CloudEnvironment> CLOUD_ENVIRONMENT = ConfigKeys.newConfigKey(CloudEnvironment.class,
             "cloud.environment", "The parent cloud environment");
 
+    @SetFromFlag("artifactCache")
+    ConfigKey<String> ARTIFACT_CACHE_DIR = ConfigKeys.newStringConfigKey("cloud.machine.artifactCache",
+            "Directory on the machine where downloaded artifacts are kept across tenants", "/tmp/brooklyn-cloud/artifacts");
+
+    @SetFromFlag("setupCommands")
+    ConfigKey<List<String>> SETUP_COMMANDS = ConfigKeys.newConfigKey(new TypeToken<List<String>>() { },
+            "cloud.machine.setup", "Commands to customise the machine when it starts; skipped when booted from a baked image",
+            ImmutableList.<String>of());
+
     AttributeSensor<Entity> ENTITY = CloudAttributes.ENTITY;
+    AttributeSensor<String> IMAGE_ID = CloudAttributes.IMAGE_ID;
+    AttributeSensor<String> PARTITION = CloudAttributes.PARTITION;
+    AttributeSensor<String> LEASED_TO = CloudAttributes.LEASED_TO;
+    AttributeSensor<MachineState> MACHINE_STATE = CloudAttributes.MACHINE_STATE;
+    AttributeSensor<Double> CPU_STEAL = CloudAttributes.CPU_STEAL;
+    AttributeSensor<Long> PROBE_TIME = CloudAttributes.PROBE_TIME;
+    AttributeSensor<Double> SSH_LATENCY = CloudAttributes.SSH_LATENCY;
+    AttributeSensor<Double> HEALTH_SCORE = CloudAttributes.HEALTH_SCORE;
+    AttributeSensor<Double> BENCHMARK_CPU = CloudAttributes.BENCHMARK_CPU;
+    AttributeSensor<Double> BENCHMARK_DISK_WRITE = CloudAttributes.BENCHMARK_DISK_WRITE;
+    AttributeSensor<Double> BENCHMARK_LOOPBACK = CloudAttributes.BENCHMARK_LOOPBACK;
+    AttributeSensor<Boolean> AGENT_AVAILABLE = CloudAttributes.AGENT_AVAILABLE;
+    AttributeSensor<Integer> AGENT_KEY = CloudAttributes.AGENT_KEY;
+    AttributeSensor<Integer> AGENT_TOKEN = CloudAttributes.AGENT_TOKEN;
+    AttributeSensor<Double> LOAD_AVERAGE = CloudAttributes.LOAD_AVERAGE;
+    AttributeSensor<Long> MEMORY_USED = CloudAttributes.MEMORY_USED;
+    AttributeSensor<Long> MEMORY_TOTAL = CloudAttributes.MEMORY_TOTAL;
+    AttributeSensor<Double> DISK_USAGE = CloudAttributes.DISK_USAGE;
+    AttributeSensor<Long> NET_RX_RATE = CloudAttributes.NET_RX_RATE;
+    AttributeSensor<Long> NET_TX_RATE = CloudAttributes.NET_TX_RATE;
+    AttributeSensor<Set<String>> INSTALLED_SOFTWARE = CloudAttributes.INSTALLED_SOFTWARE;
+    AttributeSensor<Set<String>> INSTALLED_ARTIFACTS = CloudAttributes.INSTALLED_ARTIFACTS;
 
     JcloudsLocation getJcloudsLocation();
 
@@ -43,4 +80,36 @@ public interface CloudMachine extends MachineEntity, HasShortName, LocationOwner
 
     void setRunningEntity(Entity entity);
 
+    /**
+     * Re-establish sensor feeds and transient state after rebind.
+     */
+    void reconnect();
+
+    /**
+     * Assign the machine to a partition of the environment pool, or return it to the shared pool if null.
+     */
+    void setPartition(String partition);
+
+    /**
+     * Record the id of the environment this machine is lent to, or null when it is returned.
+     */
+    void setLeasedTo(String environmentId);
+
+    /**
+     * Suspend the idle machine, keeping its disk and installed software, and mark it {@link MachineState#HIBERNATED}.
+     * The machine is returned to service if it cannot be suspended.
+     */
+    void hibernate();
+
+    /**
+     * Resume a hibernated machine, blocking until it is reachable and its sensors are connected.
+     * The machine is marked {@link MachineState#FAILED} if it cannot be resumed.
+     */
+    void resume();
+
+    /**
+     * Records an artifact (usually a download URL) as present in the {@link #ARTIFACT_CACHE_DIR cache}.
+     */
+    void recordInstalledArtifact(String artifact);
+
 }
@@ -17,46 +17,81 @@ package brooklyn.entity.cloud;
 
 import static java.lang.String.format;
 
+import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
-
-import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.entity.Entity;
 import brooklyn.entity.basic.BasicStartableImpl;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.basic.SoftwareProcess;
 import brooklyn.entity.software.SshEffectorTasks;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
 import brooklyn.event.feed.function.FunctionFeed;
 import brooklyn.event.feed.function.FunctionPollConfig;
 import brooklyn.location.Location;
 import brooklyn.location.LocationDefinition;
+import brooklyn.location.MachineProvisioningLocation;
+import brooklyn.location.NoMachinesAvailableException;
 import brooklyn.location.basic.BasicLocationDefinition;
 import brooklyn.location.basic.Machines;
 import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.cloud.CloudLocation;
 import brooklyn.location.cloud.CloudMachineLocation;
 import brooklyn.location.cloud.CloudResolver;
+import brooklyn.location.cloud.MachineSuspender;
+import brooklyn.location.cloud.ProvisioningMetrics;
+import brooklyn.location.cloud.ProvisioningTracer;
+import brooklyn.location.cloud.TraceSpan;
 import brooklyn.location.jclouds.JcloudsLocation;
+import brooklyn.location.jclouds.JcloudsLocationConfig;
 import brooklyn.management.LocationManager;
+import brooklyn.management.SubscriptionHandle;
+import brooklyn.util.ResourceUtils;
 import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.guava.Maybe;
+import brooklyn.util.net.Networking;
 import brooklyn.util.task.DynamicTasks;
 import brooklyn.util.task.system.ProcessTaskWrapper;
 import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
 
-import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.base.Joiner;
+import com.google.common.base.Predicates;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Closeables;
 
 public class CloudMachineImpl extends BasicStartableImpl implements CloudMachine {
 
     private static final Logger log = LoggerFactory.getLogger(CloudMachineImpl.class);
 
+    /** Times the benchmark is run before a machine is accepted as unmeasured. */
+    private static final int BENCHMARK_EXEC_ATTEMPTS = 2;
+
     private transient JcloudsLocation jcloudsLocation;
     private transient FunctionFeed sensorFeed;
+    private transient MetricsCollector metricsCollector;
+    private transient MetricsCollector.Registration metricsRegistration;
+    private transient FunctionFeed healthFeed;
+    private transient long[] cpuCounters;
+    private transient long[] usageCounters;
+    private transient int unhealthyChecks;
+    private transient SubscriptionHandle tenantSubscription;
 
     @Override
     public void init() {
@@ -64,6 +99,20 @@ public class CloudMachineImpl extends BasicStartableImpl implements CloudMachine
     }
 
     protected void connectSensors() {
+        connectSensors(false);
+    }
+
+    /**
+     * @param rebinding whether to re-register a running metrics agent with its persisted key and token
+     */
+    protected void connectSensors(boolean rebinding) {
+        if (Boolean.TRUE.equals(getConfig(CloudEnvironment.HEALTH_CHECKS))) {
+            connectHealthFeed();
+        }
+        if (Boolean.TRUE.equals(getConfig(CloudEnvironment.PUSH_METRICS))
+                && ((rebinding && restoreMetricsAgent()) || connectMetricsAgent())) {
+            return;
+        }
         sensorFeed = FunctionFeed.builder()
                 .entity(this)
                 .period(Duration.TEN_SECONDS)
@@ -71,36 +120,237 @@ public class CloudMachineImpl extends BasicStartableImpl implements CloudMachine
                         .callable(new Callable<Boolean>() {
                                 @Override
                                 public Boolean call() throws Exception {
-                                    return getSshMachine().isSshable();
+                                    long start = System.nanoTime();
+                                    String outcome = ProvisioningMetrics.FAILURE;
+                                    try {
+                                        boolean sshable = getSshMachine().isSshable();
+                                        outcome = ProvisioningMetrics.SUCCESS;
+                                        return sshable;
+                                    } finally {
+                                        recordLatency(ProvisioningMetrics.SENSOR_POLL, outcome, start);
+                                    }
                                 }
                         }))
-                .poll(new FunctionPollConfig<String, Double>(CloudMachine.CPU_USAGE)
-                        .callable(new Callable<String>() {
+                .poll(new FunctionPollConfig<Double, Double>(CloudMachine.CPU_USAGE)
+                        .callable(new Callable<Double>() {
                                 @Override
-                                public String call() throws Exception {
-                                    ProcessTaskWrapper<Integer> task = SshEffectorTasks.ssh(ImmutableList.of("uptime"))
-                                            .machine(getSshMachine())
-                                            .requiringExitCodeZero()
-                                            .summary("cpuUsage")
-                                            .newTask();
-                                    DynamicTasks.queueIfPossible(task).orSubmitAsync(CloudMachineImpl.this);
-                                    return task.block().getStdout();
+                                public Double call() throws Exception {
+                                    long start = System.nanoTime();
+                                    String outcome = ProvisioningMetrics.FAILURE;
+                                    try {
+                                        long[] counters = MachineHealth.parseCpuCounters(execForStdout("cpuUsage", "head -1 /proc/stat"));
+                                        outcome = ProvisioningMetrics.SUCCESS;
+                                        Double usage = getAttribute(CPU_USAGE);
+                                        if (counters != null && usageCounters != null) {
+                                            usage = MachineHealth.usage(usageCounters, counters);
+                                        }
+                                        usageCounters = counters;
+                                        return usage;
+                                    } finally {
+                                        recordLatency(ProvisioningMetrics.SENSOR_POLL, outcome, start);
+                                    }
                                 }
                             })
-                        .onFailureOrException(Functions.constant(0d))
-                        .onSuccess(new Function<String, Double>() {
-                                @Override
-                                public Double apply(@Nullable String input) {
-                                    log.info("Uptime: {}", input);
-                                    // TODO parse uptime output
-                                    return 1d;
-                                }
-                            }))
+                        .onFailureOrException(Functions.constant((Double) null)))
                 .build();
     }
 
     protected void disconnectSensors() {
         if (sensorFeed != null) sensorFeed.stop();
+        sensorFeed = null;
+        if (healthFeed != null) healthFeed.stop();
+        healthFeed = null;
+        cpuCounters = null;
+        usageCounters = null;
+        if (metricsRegistration != null) {
+            metricsCollector.unregister(metricsRegistration);
+            MetricsCollector.release(metricsCollector);
+            metricsRegistration = null;
+            metricsCollector = null;
+            setAttribute(AGENT_KEY, null);
+            setAttribute(AGENT_TOKEN, null);
+        }
+    }
+
+    /**
+     * Poll CPU steal time and SSH round trip time, and score the machine health from them and the start-up probe.
+     */
+    protected void connectHealthFeed() {
+        final CloudEnvironment environment = getEnvironment();
+        healthFeed = FunctionFeed.builder()
+                .entity(this)
+                .period(environment.getConfig(CloudEnvironment.HEALTH_PERIOD))
+                .poll(new FunctionPollConfig<Double, Double>(CloudMachine.HEALTH_SCORE)
+                        .callable(new Callable<Double>() {
+                                @Override
+                                public Double call() throws Exception {
+                                    long start = System.nanoTime();
+                                    String stat = execForStdout("cpuSteal", "head -1 /proc/stat");
+                                    double millis = (System.nanoTime() - start) / 1000000d;
+                                    setAttribute(SSH_LATENCY, MachineHealth.smooth(getAttribute(SSH_LATENCY), millis));
+
+                                    long[] counters = MachineHealth.parseCpuCounters(stat);
+                                    if (counters != null && cpuCounters != null) {
+                                        double steal = MachineHealth.steal(cpuCounters, counters);
+                                        setAttribute(CPU_STEAL, MachineHealth.smooth(getAttribute(CPU_STEAL), steal));
+                                    }
+                                    cpuCounters = counters;
+
+                                    double score = MachineHealth.score(CloudMachineImpl.this,
+                                            environment.getConfig(CloudEnvironment.HEALTH_STEAL_LIMIT),
+                                            environment.getConfig(CloudEnvironment.HEALTH_PROBE_BASELINE),
+                                            environment.getConfig(CloudEnvironment.HEALTH_SSH_BASELINE));
+                                    checkHealth(score);
+                                    return score;
+                                }
+                            })
+                        .onFailureOrException(Functions.constant((Double) null)))
+                .build();
+    }
+
+    /**
+     * Count consecutive checks below the minimum score, asking the environment to quarantine the machine at the limit.
+     */
+    protected void checkHealth(double score) {
+        CloudEnvironment environment = getEnvironment();
+        if (score >= environment.getConfig(CloudEnvironment.HEALTH_MIN_SCORE)) {
+            unhealthyChecks = 0;
+            return;
+        }
+        unhealthyChecks++;
+        int limit = environment.getConfig(CloudEnvironment.HEALTH_QUARANTINE_AFTER);
+        if (unhealthyChecks >= limit) {
+            log.info("Machine {} scored {} for {} consecutive checks, quarantining", new Object[] { this, score, unhealthyChecks });
+            if (environment.quarantineMachine(this)) {
+                unhealthyChecks = 0;
+            }
+        }
+    }
+
+    /**
+     * Time a short CPU and disk probe, recording the result as {@link #PROBE_TIME}. Failures are logged, not fatal.
+     */
+    protected void probe() {
+        try {
+            String stdout = execForStdout("probe", MachineHealth.probeCommand(getConfig(ARTIFACT_CACHE_DIR)));
+            Long millis = MachineHealth.parseMillis(stdout);
+            if (millis != null) {
+                setAttribute(PROBE_TIME, millis);
+                log.debug("Probe on {} took {}ms", this, millis);
+            }
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            log.warn("Probe failed on {}: {}", this, e.getMessage());
+        }
+    }
+
+    /**
+     * Run a command on the machine, returning its output.
+     */
+    protected String execForStdout(String summary, String command) {
+        return execForStdout(getSshMachine(), summary, command);
+    }
+
+    /**
+     * Run a command on a machine that may not be this entity's yet, returning its output.
+     */
+    protected String execForStdout(SshMachineLocation machine, String summary, String command) {
+        ProcessTaskWrapper<Integer> task = SshEffectorTasks.ssh(ImmutableList.of(command))
+                .machine(machine)
+                .requiringExitCodeZero()
+                .summary(summary)
+                .newTask();
+        DynamicTasks.queueIfPossible(task).orSubmitAsync(this);
+        return task.block().getStdout();
+    }
+
+    /**
+     * Register with the {@link MetricsCollector} and start the push agent on the machine, replacing any previous agent.
+     *
+     * @return false if the agent could not be started, so the machine should be polled instead
+     */
+    protected boolean connectMetricsAgent() {
+        int port = getConfig(CloudEnvironment.METRICS_PORT);
+        Duration interval = getConfig(CloudEnvironment.METRICS_INTERVAL);
+        String host = getConfig(CloudEnvironment.METRICS_COLLECTOR_HOST);
+        if (host == null) host = Networking.getLocalHost().getHostAddress();
+        String script = format("%s/metrics-agent.sh", getConfig(ARTIFACT_CACHE_DIR));
+
+        MetricsCollector collector = MetricsCollector.acquire(port);
+        MetricsCollector.Registration registration = collector.register(getProxyIfAvailable(), interval,
+                getConfig(CloudEnvironment.METRICS_MISSED_HEARTBEATS));
+        try {
+            InputStream agent = ResourceUtils.create(this).getResourceFromUrl("classpath://brooklyn/entity/cloud/metrics-agent.sh");
+            try {
+                if (getSshMachine().copyTo(agent, script) != 0) {
+                    throw new IllegalStateException("Failed to copy metrics agent to " + this);
+                }
+            } finally {
+                Closeables.closeQuietly(agent);
+            }
+            int result = getSshMachine().execCommands("metricsAgent", ImmutableList.of(
+                    "pkill -f metrics-agent.sh || true",
+                    format("nohup bash %s %s %d %d %d %d > /dev/null 2>&1 &", script, host, port,
+                            registration.getKey(), registration.getToken(), Math.max(1l, interval.toSeconds()))));
+            if (result != 0) {
+                throw new IllegalStateException(format("Failed to start metrics agent on %s: exit code %d", this, result));
+            }
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            log.warn("Metrics agent unavailable on {}, polling over SSH instead: {}", this, e.getMessage());
+            collector.unregister(registration);
+            MetricsCollector.release(collector);
+            return false;
+        }
+        metricsCollector = collector;
+        metricsRegistration = registration;
+        setAttribute(AGENT_KEY, registration.getKey());
+        setAttribute(AGENT_TOKEN, registration.getToken());
+        return true;
+    }
+
+    /**
+     * Register the running metrics agent again with the key and token it was started with, without
+     * connecting to the machine.
+     *
+     * @return false if there is no persisted registration or its key is taken, so the agent must be restarted
+     */
+    protected boolean restoreMetricsAgent() {
+        Integer key = getAttribute(AGENT_KEY);
+        Integer token = getAttribute(AGENT_TOKEN);
+        if (key == null || token == null) return false;
+
+        MetricsCollector collector = MetricsCollector.acquire(getConfig(CloudEnvironment.METRICS_PORT));
+        MetricsCollector.Registration registration = collector.restore(getProxyIfAvailable(), getConfig(CloudEnvironment.METRICS_INTERVAL),
+                getConfig(CloudEnvironment.METRICS_MISSED_HEARTBEATS), key, token);
+        if (registration == null) {
+            log.debug("Metrics agent key {} of {} taken after rebind, restarting agent", key, this);
+            MetricsCollector.release(collector);
+            return false;
+        }
+        metricsCollector = collector;
+        metricsRegistration = registration;
+        return true;
+    }
+
+    /**
+     * The environment tracer, or a disabled one before the environment location exists.
+     */
+    protected ProvisioningTracer getTracer() {
+        CloudEnvironment environment = getEnvironment();
+        CloudLocation cloud = (environment == null) ? null : environment.getDynamicLocation();
+        return (cloud == null) ? ProvisioningTracer.DISABLED : cloud.getTracer();
+    }
+
+    /**
+     * Record a latency in the environment {@link ProvisioningMetrics}, if the environment location exists.
+     */
+    protected void recordLatency(String operation, String outcome, long startNanos) {
+        CloudEnvironment environment = getEnvironment();
+        CloudLocation cloud = (environment == null) ? null : environment.getDynamicLocation();
+        if (cloud != null) {
+            cloud.getMetrics().record(operation, outcome, startNanos);
+        }
     }
 
     @Override
@@ -113,16 +363,54 @@ public class CloudMachineImpl extends BasicStartableImpl implements CloudMachine
         return getConfig(CLOUD_ENVIRONMENT);
     }
 
+    /**
+     * The machine location, created on first use in {@link CloudEnvironment#COMPACT_MACHINE_LOCATIONS compact} mode.
+     */
     @Override
     public CloudMachineLocation getDynamicLocation() {
-        return (CloudMachineLocation) getAttribute(DYNAMIC_LOCATION);
+        CloudMachineLocation location = (CloudMachineLocation) getAttribute(DYNAMIC_LOCATION);
+        if (location == null && isCompact() && getAttribute(SSH_MACHINE) != null) {
+            location = materialiseLocation();
+        }
+        return location;
     }
 
     @Override
     public boolean isLocationAvailable() {
+        if (isCompact()) {
+            return getAttribute(SSH_MACHINE) != null;
+        }
         return getDynamicLocation() != null;
     }
 
+    protected boolean isCompact() {
+        return Boolean.TRUE.equals(getConfig(CloudEnvironment.COMPACT_MACHINE_LOCATIONS));
+    }
+
+    private synchronized CloudMachineLocation materialiseLocation() {
+        CloudMachineLocation location = (CloudMachineLocation) getAttribute(DYNAMIC_LOCATION);
+        SshMachineLocation machine = getAttribute(SSH_MACHINE);
+        if (location == null && machine != null) {
+            // The shared flags are inherited from the cloud location, not copied
+            location = createLocation(ImmutableMap.of("machine", machine));
+        }
+        return location;
+    }
+
+    /**
+     * Record the location spec and queue a flag-free registry definition, without creating the location.
+     */
+    protected void defineCompactLocation() {
+        CloudEnvironment infrastructure = getEnvironment();
+        String locationName = infrastructure.getDynamicLocation().getId() + "-" + getId();
+        String locationSpec = format(CloudResolver.CLOUD_MACHINE_SPEC, infrastructure.getId(), getId()) + format(":(name=\"%s\")", locationName);
+        setAttribute(LOCATION_SPEC, locationSpec);
+        setAttribute(LOCATION_NAME, locationName);
+        if (getConfig(CloudEnvironment.REGISTER_CLOUD_MACHINE_LOCATIONS)) {
+            infrastructure.getLocationRegistrar().define(new BasicLocationDefinition(getId(), locationName, locationSpec, ImmutableMap.<String, Object>of()));
+        }
+    }
+
     @Override
     public JcloudsLocation getJcloudsLocation() {
         return jcloudsLocation;
@@ -133,9 +421,103 @@ public class CloudMachineImpl extends BasicStartableImpl implements CloudMachine
         return getAttribute(ENTITY);
     }
 
+    /**
+     * Run the entity on this machine, pointing its installs at the artifact cache.
+     * <p>
+     * The entity software and artifact are only recorded as installed once it has
+     * started successfully, so a failed install does not count towards affinity.
+     */
     @Override
-    public void setRunningEntity(Entity entity) {
+    public synchronized void setRunningEntity(Entity entity) {
+        Entity previous = getAttribute(ENTITY);
+        if (tenantSubscription != null && previous != null) {
+            unsubscribe(previous, tenantSubscription);
+        }
+        tenantSubscription = null;
         setAttribute(ENTITY, entity);
+
+        if (entity != null) {
+            useArtifactCache(entity);
+            if (Boolean.TRUE.equals(entity.getAttribute(SERVICE_UP))) {
+                recordInstalled(entity);
+            } else {
+                tenantSubscription = subscribe(entity, SERVICE_UP, new SensorEventListener<Boolean>() {
+                    @Override
+                    public void onEvent(SensorEvent<Boolean> event) {
+                        if (Boolean.TRUE.equals(event.getValue()) && event.getSource().equals(getAttribute(ENTITY))) {
+                            recordInstalled(event.getSource());
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Install the entity under the artifact cache, in a directory shared by every tenant of the
+     * same type and version, so downloads from previous tenants are found there.
+     */
+    protected void useArtifactCache(Entity entity) {
+        if (!(entity instanceof SoftwareProcess) || entity.getAttribute(SoftwareProcess.INSTALL_DIR) != null) return;
+        String configured = entity.getConfig(SoftwareProcess.INSTALL_DIR);
+        if (configured != null && !configured.equals(SoftwareProcess.INSTALL_DIR.getConfigKey().getDefaultValue())) return;
+
+        ((EntityLocal) entity).setConfig(SoftwareProcess.INSTALL_DIR, SoftwareAffinity.installDir(entity, getConfig(ARTIFACT_CACHE_DIR)));
+    }
+
+    private void recordInstalled(Entity entity) {
+        addToSet(INSTALLED_SOFTWARE, SoftwareAffinity.softwareKey(entity));
+        String artifact = SoftwareAffinity.artifact(entity);
+        if (artifact != null) {
+            recordInstalledArtifact(artifact);
+        }
+    }
+
+    @Override
+    public void reconnect() {
+        MachineProvisioningLocation<?> provisioner = getAttribute(PROVISIONING_LOCATION);
+        if (provisioner instanceof JcloudsLocation) {
+            jcloudsLocation = (JcloudsLocation) provisioner;
+        }
+        if (Boolean.TRUE.equals(getAttribute(SERVICE_UP)) && getSshMachine() != null) {
+            disconnectSensors();
+            connectSensors(true);
+        }
+    }
+
+    @Override
+    public void setPartition(String partition) {
+        setAttribute(PARTITION, partition);
+    }
+
+    @Override
+    public void setLeasedTo(String environmentId) {
+        setAttribute(LEASED_TO, environmentId);
+    }
+
+    @Override
+    public void recordInstalledArtifact(String artifact) {
+        addToSet(INSTALLED_ARTIFACTS, artifact);
+    }
+
+    private synchronized void addToSet(AttributeSensor<Set<String>> sensor, String value) {
+        Set<String> current = getAttribute(sensor);
+        if (current == null || !current.contains(value)) {
+            ImmutableSet.Builder<String> updated = ImmutableSet.builder();
+            if (current != null) updated.addAll(current);
+            setAttribute(sensor, updated.add(value).build());
+        }
+    }
+
+    /**
+     * Creates the artifact cache directory, which is kept when tenants are released.
+     */
+    protected void createArtifactCache() {
+        String dir = getConfig(ARTIFACT_CACHE_DIR);
+        int result = getSshMachine().execCommands("artifactCache", ImmutableList.of(format("mkdir -p %s", dir)));
+        if (result != 0) {
+            log.warn("Failed to create artifact cache {} on {}: exit code {}", new Object[] { dir, this, result });
+        }
     }
 
     @Override
@@ -153,6 +535,7 @@ public class CloudMachineImpl extends BasicStartableImpl implements CloudMachine
      */
     @Override
     public CloudMachineLocation createLocation(Map<String, ?> flags) {
+        long start = System.nanoTime();
         String locationSpec, locationName;
         CloudEnvironment infrastructure = getConfig(CLOUD_ENVIRONMENT);
         CloudLocation docker = infrastructure.getDynamicLocation();
@@ -166,64 +549,369 @@ public class CloudMachineImpl extends BasicStartableImpl implements CloudMachine
 
         setAttribute(DYNAMIC_LOCATION, location);
         setAttribute(LOCATION_NAME, location.getId());
-        if (getConfig(CloudEnvironment.REGISTER_CLOUD_MACHINE_LOCATIONS)) {
+        if (getConfig(CloudEnvironment.REGISTER_CLOUD_MACHINE_LOCATIONS) && !isCompact()) {
             getManagementContext().getLocationRegistry().updateDefinedLocation(definition);
         }
 
         log.info("New cloud machine location {} created", location);
+        recordLatency(ProvisioningMetrics.LOCATION_CREATE, ProvisioningMetrics.SUCCESS, start);
         return (CloudMachineLocation) location;
     }
 
     @Override
     public void deleteLocation() {
-        CloudMachineLocation host = getDynamicLocation();
+        CloudMachineLocation host = (CloudMachineLocation) getAttribute(DYNAMIC_LOCATION);
 
         if (host != null) {
             LocationManager mgr = getManagementContext().getLocationManager();
             if (mgr.isManaged(host)) {
                 mgr.unmanage(host);
             }
-            if (getConfig(CloudEnvironment.REGISTER_CLOUD_MACHINE_LOCATIONS)) {
+            if (getConfig(CloudEnvironment.REGISTER_CLOUD_MACHINE_LOCATIONS) && !isCompact()) {
                 getManagementContext().getLocationRegistry().removeDefinedLocation(host.getId());
             }
         }
+        if (getConfig(CloudEnvironment.REGISTER_CLOUD_MACHINE_LOCATIONS) && isCompact() && getAttribute(LOCATION_SPEC) != null) {
+            getEnvironment().getLocationRegistrar().remove(getId());
+        }
 
         setAttribute(DYNAMIC_LOCATION, null);
         setAttribute(LOCATION_NAME, null);
     }
 
+    /**
+     * Obtain a new machine, booting from the environment baked image if there is one.
+     */
+    protected SshMachineLocation obtainMachine(MachineProvisioningLocation<SshMachineLocation> provisioner) {
+        CloudLocation cloud = getEnvironment().getDynamicLocation();
+        TraceSpan span = getTracer().start("cloud.machine.obtain");
+        try {
+            SshMachineLocation machine;
+            String imageId;
+            if (cloud.getProvisioners().contains(provisioner)) {
+                // Route through the environment, which may use a different region or zone
+                machine = cloud.provision(ImmutableMap.of());
+                provisioner = cloud.getProvisioner(machine);
+                imageId = cloud.getImageId(machine);
+            } else {
+                // Record the image from the flags actually used, as a bake may finish at any time
+                Map<Object, Object> provisioningFlags = cloud.getProvisioningFlags(provisioner, ImmutableMap.of());
+                machine = provisioner.obtain(provisioningFlags);
+                Object image = provisioningFlags.get(JcloudsLocationConfig.IMAGE_ID.getName());
+                imageId = (image == null) ? null : image.toString();
+            }
+            setAttribute(PROVISIONING_LOCATION, provisioner);
+            setAttribute(IMAGE_ID, imageId);
+            if (provisioner instanceof JcloudsLocation) {
+                jcloudsLocation = (JcloudsLocation) provisioner;
+            }
+            return machine;
+        } catch (NoMachinesAvailableException nmae) {
+            span.error(nmae);
+            throw Exceptions.propagate(nmae);
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Obtain a new machine, releasing and replacing machines that fail the {@link CloudEnvironment#BENCHMARK benchmark}.
+     */
+    protected SshMachineLocation obtainAcceptedMachine(MachineProvisioningLocation<SshMachineLocation> provisioner) {
+        if (!Boolean.TRUE.equals(getConfig(CloudEnvironment.BENCHMARK))) {
+            return obtainMachine(provisioner);
+        }
+        int attempts = Math.max(1, getConfig(CloudEnvironment.BENCHMARK_ATTEMPTS));
+        for (int attempt = 1; ; attempt++) {
+            SshMachineLocation machine = obtainMachine(provisioner);
+            if (benchmark(machine)) {
+                return machine;
+            }
+            releaseMachine(machine);
+            if (attempt >= attempts) {
+                throw new IllegalStateException(format("No machine for %s passed the benchmark in %d attempts", this, attempts));
+            }
+        }
+    }
+
+    /**
+     * Run the acceptance benchmark on the machine, recording the results as sensors.
+     * <p>
+     * The benchmark is run again if it cannot be executed, and a machine where it still cannot be
+     * executed is accepted as unmeasured. A rejected machine counts as a failure of its provisioner.
+     *
+     * @return true if the machine meets the environment thresholds or could not be measured
+     */
+    protected boolean benchmark(SshMachineLocation machine) {
+        CloudEnvironment environment = getEnvironment();
+        long start = System.nanoTime();
+        String outcome = ProvisioningMetrics.FAILURE;
+        TraceSpan span = getTracer().start("cloud.machine.benchmark").attribute("cloud.machine.id", getId());
+        try {
+            MachineBenchmark benchmark = new MachineBenchmark(environment.getConfig(CloudEnvironment.BENCHMARK_CPU_ITERATIONS),
+                    environment.getConfig(CloudEnvironment.BENCHMARK_DISK_SIZE));
+            String output = null;
+            for (int attempt = 1; output == null && attempt <= BENCHMARK_EXEC_ATTEMPTS; attempt++) {
+                try {
+                    output = execForStdout(machine, "benchmark", benchmark.command());
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    log.debug("Benchmark attempt {} failed on machine {} for {}: {}", new Object[] { attempt, machine, this, e.getMessage() });
+                    if (attempt == BENCHMARK_EXEC_ATTEMPTS) {
+                        log.warn("Benchmark could not run on machine {} for {}, accepting unmeasured: {}", new Object[] { machine, this, e.getMessage() });
+                        span.error(e);
+                    }
+                }
+            }
+            benchmark.parse(output);
+            setAttribute(BENCHMARK_CPU, benchmark.getCpu());
+            setAttribute(BENCHMARK_DISK_WRITE, benchmark.getDiskWrite());
+            setAttribute(BENCHMARK_LOOPBACK, benchmark.getLoopback());
+
+            List<String> failures = benchmark.failures(environment);
+            if (failures.isEmpty()) {
+                log.debug("Machine {} for {} passed benchmark: {}", new Object[] { machine, this, benchmark });
+                outcome = ProvisioningMetrics.SUCCESS;
+                return true;
+            }
+            log.warn("Rejecting machine {} for {}: {}", new Object[] { machine, this, Joiner.on(", ").join(failures) });
+            span.attribute("cloud.benchmark.failures", failures);
+            outcome = ProvisioningMetrics.REJECTED;
+            recordRejection();
+            return false;
+        } finally {
+            recordLatency(ProvisioningMetrics.MACHINE_BENCHMARK, outcome, start);
+            span.attribute("cloud.outcome", outcome).close();
+        }
+    }
+
+    /**
+     * Count a rejected machine as an error of the environment provisioner it came from, so it is ranked lower.
+     */
+    @SuppressWarnings("unchecked")
+    private void recordRejection() {
+        CloudLocation cloud = getEnvironment().getDynamicLocation();
+        MachineProvisioningLocation<SshMachineLocation> provisioner = (MachineProvisioningLocation<SshMachineLocation>) getAttribute(PROVISIONING_LOCATION);
+        if (cloud != null && provisioner != null && cloud.getProvisioners().contains(provisioner)) {
+            cloud.getProvisionerStats(provisioner).failure();
+        }
+    }
+
+    /**
+     * Run the {@link #SETUP_COMMANDS setup commands}, unless the machine was booted from the baked image.
+     */
+    protected void customise() {
+        String imageId = getAttribute(IMAGE_ID);
+        if (imageId != null && imageId.equals(getEnvironment().getAttribute(CloudEnvironment.BAKED_IMAGE_ID))) {
+            log.info("Machine {} booted from baked image {}, skipping setup", this, imageId);
+            return;
+        }
+
+        List<String> commands = getConfig(SETUP_COMMANDS);
+        if (commands.size() > 0) {
+            int result = getSshMachine().execScript("setup", commands);
+            if (result != 0) {
+                throw new IllegalStateException(format("Setup failed on %s: exit code %d", this, result));
+            }
+        }
+        getEnvironment().machineCustomised(this);
+    }
+
     @Override
+    @SuppressWarnings("unchecked")
     public void start(Collection<? extends Location> locations) {
-        setAttribute(SERVICE_UP, Boolean.FALSE);
+        long start = System.nanoTime();
+        String outcome = ProvisioningMetrics.FAILURE;
+        ProvisioningTracer tracer = getTracer();
+        TraceSpan span = tracer.start("cloud.machine.start")
+                .attribute("cloud.machine.id", getId())
+                .attribute("cloud.environment.id", getEnvironment().getId());
+        try {
+            setAttribute(SERVICE_UP, Boolean.FALSE);
+
+            Maybe<SshMachineLocation> found = Machines.findUniqueSshMachineLocation(locations);
+            SshMachineLocation machine;
+            if (found.isPresent()) {
+                machine = found.get();
+            } else {
+                Location provisioner = Iterables.find(locations, Predicates.instanceOf(MachineProvisioningLocation.class));
+                machine = obtainAcceptedMachine((MachineProvisioningLocation<SshMachineLocation>) provisioner);
+            }
 
-        Maybe<SshMachineLocation> found = Machines.findUniqueSshMachineLocation(locations);
+            TraceSpan step = tracer.start("cloud.machine.createLocation").attribute("cloud.compact", isCompact());
+            try {
+                if (isCompact()) {
+                    setAttribute(SSH_MACHINE, machine);
+                    defineCompactLocation();
+                } else {
+                    Map<String, ?> flags = MutableMap.<String, Object>builder()
+                            .putAll(getConfig(LOCATION_FLAGS))
+                            .put("machine", machine)
+                            .build();
+                    createLocation(flags);
+
+                    setAttribute(SSH_MACHINE, getDynamicLocation().getMachine());
+                }
+            } finally {
+                step.close();
+            }
 
-        Map<String, ?> flags = MutableMap.<String, Object>builder()
-                .putAll(getConfig(LOCATION_FLAGS))
-                .put("machine", found.get())
-                .build();
-        createLocation(flags);
+            step = tracer.start("cloud.machine.customise");
+            try {
+                createArtifactCache();
+                customise();
+            } finally {
+                step.close();
+            }
 
-        setAttribute(SSH_MACHINE, getDynamicLocation().getMachine());
+            if (Boolean.TRUE.equals(getConfig(CloudEnvironment.HEALTH_CHECKS))) {
+                step = tracer.start("cloud.machine.probe");
+                try {
+                    probe();
+                } finally {
+                    step.close();
+                }
+            }
 
-        connectSensors();
+            step = tracer.start("cloud.machine.connectSensors");
+            try {
+                connectSensors();
+            } finally {
+                step.close();
+            }
 
-        super.start(locations);
+            step = tracer.start("cloud.machine.startChildren").attribute("cloud.children", getChildren().size());
+            try {
+                super.start(locations);
+            } finally {
+                step.close();
+            }
 
-        setAttribute(SERVICE_UP, Boolean.TRUE);
+            setAttribute(MACHINE_STATE, MachineState.RUNNING);
+            setAttribute(SERVICE_UP, Boolean.TRUE);
+            outcome = found.isPresent() ? ProvisioningMetrics.SUCCESS : ProvisioningMetrics.FRESH;
+        } catch (RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            recordLatency(ProvisioningMetrics.MACHINE_START, outcome, start);
+            span.attribute("cloud.outcome", outcome).close();
+        }
+    }
+
+    @Override
+    public void hibernate() {
+        MachineSuspender suspender = getMachineSuspender();
+        long start = System.nanoTime();
+        String outcome = ProvisioningMetrics.FAILURE;
+        setAttribute(MACHINE_STATE, MachineState.HIBERNATING);
+        setAttribute(SERVICE_UP, Boolean.FALSE);
+        disconnectSensors();
+        try {
+            suspender.suspend(getSshMachine());
+            setAttribute(SSH_AVAILABLE, Boolean.FALSE);
+            setAttribute(MACHINE_STATE, MachineState.HIBERNATED);
+            outcome = ProvisioningMetrics.SUCCESS;
+        } catch (RuntimeException e) {
+            // Still running, so return it to service
+            connectSensors();
+            setAttribute(MACHINE_STATE, MachineState.RUNNING);
+            setAttribute(SERVICE_UP, Boolean.TRUE);
+            throw e;
+        } finally {
+            recordLatency(ProvisioningMetrics.MACHINE_HIBERNATE, outcome, start);
+        }
+    }
+
+    @Override
+    public void resume() {
+        MachineSuspender suspender = getMachineSuspender();
+        long start = System.nanoTime();
+        String outcome = ProvisioningMetrics.FAILURE;
+        TraceSpan span = getTracer().start("cloud.machine.resume").attribute("cloud.machine.id", getId());
+        setAttribute(MACHINE_STATE, MachineState.RESUMING);
+        try {
+            suspender.resume(getSshMachine());
+            updateAddress();
+            waitForSsh(getEnvironment().getConfig(CloudEnvironment.RESUME_TIMEOUT));
+            connectSensors();
+            setAttribute(MACHINE_STATE, MachineState.RUNNING);
+            setAttribute(SERVICE_UP, Boolean.TRUE);
+            outcome = ProvisioningMetrics.SUCCESS;
+        } catch (RuntimeException e) {
+            setAttribute(MACHINE_STATE, MachineState.FAILED);
+            span.error(e);
+            throw e;
+        } finally {
+            recordLatency(ProvisioningMetrics.MACHINE_RESUME, outcome, start);
+            span.attribute("cloud.outcome", outcome).close();
+        }
+    }
+
+    /**
+     * Point the cloud machine location at the SSH machine address, which changes when a machine
+     * without a fixed address is resumed.
+     */
+    private void updateAddress() {
+        // Compact locations not yet created will be created with the new address
+        CloudMachineLocation location = (CloudMachineLocation) getAttribute(DYNAMIC_LOCATION);
+        SshMachineLocation machine = getSshMachine();
+        if (location == null || machine == null || location.getAddress().equals(machine.getAddress())) return;
+
+        log.info("Machine {} resumed with address {}, was {}", new Object[] { this, machine.getAddress(), location.getAddress() });
+        location.configure(MutableMap.of("address", machine.getAddress()));
+        getManagementContext().getRebindManager().getChangeListener().onChanged(location);
+    }
+
+    private MachineSuspender getMachineSuspender() {
+        MachineSuspender suspender = getEnvironment().getMachineSuspender(getAttribute(PROVISIONING_LOCATION));
+        if (suspender == null) {
+            throw new UnsupportedOperationException("Cannot suspend " + this + "; provisioner does not support it");
+        }
+        return suspender;
+    }
+
+    private void waitForSsh(Duration timeout) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (!getSshMachine().isSshable()) {
+            if (stopwatch.elapsed(TimeUnit.MILLISECONDS) > timeout.toMilliseconds()) {
+                throw new IllegalStateException("Resumed machine " + this + " not reachable over SSH within " + timeout);
+            }
+            Time.sleep(Duration.ONE_SECOND);
+        }
+        setAttribute(SSH_AVAILABLE, Boolean.TRUE);
     }
 
     @Override
     public void stop() {
         setAttribute(SERVICE_UP, Boolean.FALSE);
+        setAttribute(MACHINE_STATE, null);
 
         super.stop();
 
         disconnectSensors();
 
+        SshMachineLocation machine = getAttribute(SSH_MACHINE);
         setAttribute(SSH_MACHINE, null);
 
         deleteLocation();
+
+        releaseMachine(machine);
+    }
+
+    /**
+     * Release the machine if we obtained it ourselves.
+     */
+    @SuppressWarnings("unchecked")
+    protected void releaseMachine(SshMachineLocation machine) {
+        MachineProvisioningLocation<SshMachineLocation> provisioner = (MachineProvisioningLocation<SshMachineLocation>) getAttribute(PROVISIONING_LOCATION);
+        if (provisioner != null && machine != null) {
+            CloudLocation cloud = getEnvironment().getDynamicLocation();
+            if (cloud == null || !cloud.releaseProvisioned(machine)) {
+                provisioner.release(machine);
+            }
+            setAttribute(PROVISIONING_LOCATION, null);
+        }
     }
 
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.cloud.FleetExecResult.HostResult;
+import brooklyn.entity.cloud.FleetExecResult.Status;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.management.ExecutionContext;
+import brooklyn.management.Task;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs a script over SSH on many {@link CloudMachine}s with bounded parallelism.
+ * <p>
+ * Each host runs as a task in the given execution context, so it shows in the activity view
+ * and can be cancelled. A host that exceeds its timeout is cancelled, and holds its slot until
+ * its SSH session has ended, so no more than {@link #parallelism(int) parallelism} sessions
+ * are ever open. Each host result is passed to the {@link #hostListener(Function) host listener}
+ * as it finishes, and a summary of the counts so far to the {@link #listener(Function) listener}.
+ * Once the ratio of failed hosts reaches the limit, over at least the {@link #minSample(int)
+ * minimum sample}, hosts that have not started are skipped.
+ */
+public class FleetExec {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FleetExec.class);
+
+    private final ExecutionContext context;
+    private int parallelism = 50;
+    private Duration timeout = Duration.minutes(5);
+    private double maxFailureRatio = 1d;
+    private int minSample = 10;
+    private Function<? super FleetExecResult, ?> listener;
+    private Function<? super HostResult, ?> hostListener;
+
+    public FleetExec(ExecutionContext context) {
+        this.context = context;
+    }
+
+    public FleetExec parallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    public FleetExec timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /** Skip hosts not yet started once this fraction of finished hosts have failed; 1 never skips. */
+    public FleetExec maxFailureRatio(double maxFailureRatio) {
+        this.maxFailureRatio = maxFailureRatio;
+        return this;
+    }
+
+    /**
+     * Hosts that must finish before the failure ratio is checked, so early failures
+     * cannot stop the run; capped at the number of hosts.
+     */
+    public FleetExec minSample(int minSample) {
+        this.minSample = Math.max(1, minSample);
+        return this;
+    }
+
+    /** Called with a {@link FleetExecResult#summary(int, int[], boolean, boolean) summary} each time a host finishes. */
+    public FleetExec listener(Function<? super FleetExecResult, ?> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /** Called with the output, exit code and duration of each host as it finishes. */
+    public FleetExec hostListener(Function<? super HostResult, ?> hostListener) {
+        this.hostListener = hostListener;
+        return this;
+    }
+
+    public FleetExecResult run(final String script, List<CloudMachine> machines) {
+        final int total = machines.size();
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        final int sample = Math.min(minSample, Math.max(1, total));
+        final List<HostResult> finished = Lists.newArrayList();
+        final int[] counts = new int[Status.values().length];
+        final int[] failed = new int[] { 0 };
+        final Semaphore sessions = new Semaphore(parallelism);
+        final Queue<CloudMachine> pending = new ConcurrentLinkedQueue<CloudMachine>(machines);
+
+        // Each worker takes the next host in turn; a session slot is held until the SSH command has ended
+        List<Task<?>> workers = Lists.newArrayList();
+        for (int w = 0; w < Math.min(parallelism, Math.max(1, total)); w++) {
+            workers.add(Tasks.builder().name("Fleet exec (worker " + w + ")").body(new Runnable() {
+                @Override
+                public void run() {
+                    for (CloudMachine machine = pending.poll(); machine != null; machine = pending.poll()) {
+                        HostResult host;
+                        if (aborted.get() || Thread.currentThread().isInterrupted()) {
+                            host = new HostResult(machine.getId(), null, Status.SKIPPED, null, null, null, 0l);
+                        } else {
+                            host = exec(sessions, machine, script);
+                        }
+                        FleetExecResult summary;
+                        synchronized (finished) {
+                            finished.add(host);
+                            counts[host.getStatus().ordinal()]++;
+                            if (host.getStatus() == Status.FAILED || host.getStatus() == Status.TIMED_OUT) failed[0]++;
+                            if (!aborted.get() && maxFailureRatio < 1d && failed[0] > 0 && finished.size() >= sample
+                                    && ((double) failed[0] / finished.size()) >= maxFailureRatio) {
+                                LOG.warn("Fleet exec failed on {} of {} finished hosts, skipping the rest", failed[0], finished.size());
+                                aborted.set(true);
+                            }
+                            summary = FleetExecResult.summary(total, counts, aborted.get(), false);
+                        }
+                        publish(hostListener, host);
+                        publish(listener, summary);
+                    }
+                }
+            }).build());
+        }
+        Task<?> running = context.submit(Tasks.parallel("Fleet exec on " + total + " machines", workers));
+        try {
+            running.get();
+        } catch (InterruptedException ie) {
+            aborted.set(true);
+            running.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            throw Exceptions.propagate(ee.getCause());
+        }
+
+        FleetExecResult result;
+        synchronized (finished) {
+            result = new FleetExecResult(total, finished, aborted.get(), true);
+        }
+        publish(listener, FleetExecResult.summary(total, FleetExecResult.count(result.getHosts()), aborted.get(), true));
+        return result;
+    }
+
+    protected HostResult exec(final Semaphore sessions, CloudMachine machine, final String script) {
+        final SshMachineLocation ssh = machine.getSshMachine();
+        if (ssh == null) {
+            return new HostResult(machine.getId(), null, Status.FAILED, null, null, "No SSH machine available", 0l);
+        }
+        try {
+            sessions.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return new HostResult(machine.getId(), null, Status.SKIPPED, null, null, null, 0l);
+        }
+        final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Task<Integer> exit;
+        try {
+            exit = context.submit(Tasks.<Integer>builder().name("Fleet exec on " + machine.getId()).body(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    try {
+                        return ssh.execScript(ImmutableMap.of("out", stdout, "err", stderr), "fleetExec", ImmutableList.of(script));
+                    } finally {
+                        sessions.release();
+                    }
+                }
+            }).build());
+        } catch (RuntimeException e) {
+            sessions.release();
+            throw e;
+        }
+
+        Status status;
+        Integer exitCode = null;
+        String error = null;
+        try {
+            exitCode = exit.get(timeout.toMilliseconds(), TimeUnit.MILLISECONDS);
+            status = (exitCode == 0) ? Status.SUCCEEDED : Status.FAILED;
+        } catch (TimeoutException te) {
+            exit.cancel(true);
+            status = Status.TIMED_OUT;
+        } catch (InterruptedException ie) {
+            exit.cancel(true);
+            Thread.currentThread().interrupt();
+            status = Status.FAILED;
+        } catch (ExecutionException ee) {
+            status = Status.FAILED;
+            error = ee.getCause().getMessage();
+        }
+        long duration = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Fleet exec on {} finished {} in {}ms", new Object[] { machine, status, duration });
+        }
+        String err = new String(stderr.toByteArray(), Charsets.UTF_8);
+        return new HostResult(machine.getId(), ssh.getAddress().getHostAddress(), status, exitCode,
+                new String(stdout.toByteArray(), Charsets.UTF_8), error == null ? err : err + error, duration);
+    }
+
+    private static <T> void publish(Function<? super T, ?> target, T value) {
+        if (target != null) {
+            try {
+                target.apply(value);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Fleet exec listener failed: {}", e.getMessage());
+            }
+        }
+    }
+
+}
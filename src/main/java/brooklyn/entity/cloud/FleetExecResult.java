@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.io.Serializable;
+import java.util.List;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Aggregated result of running a script across the machines of a {@link CloudEnvironment}.
+ * <p>
+ * Instances are immutable. The result returned by the effector holds the outcome and
+ * output of every host; the {@link #summary(int, int[], boolean, boolean) summaries}
+ * published as hosts finish hold only the counts.
+ */
+public class FleetExecResult implements Serializable {
+
+    private static final long serialVersionUID = 3207714394523372171L;
+
+    public enum Status { SUCCEEDED, FAILED, TIMED_OUT, SKIPPED }
+
+    /** The outcome on a single machine. */
+    public static class HostResult implements Serializable {
+
+        private static final long serialVersionUID = -1583604117216713096L;
+
+        private final String machineId;
+        private final String address;
+        private final Status status;
+        private final Integer exitCode;
+        private final String stdout;
+        private final String stderr;
+        private final long durationMillis;
+
+        public HostResult(String machineId, String address, Status status, Integer exitCode, String stdout, String stderr, long durationMillis) {
+            this.machineId = machineId;
+            this.address = address;
+            this.status = status;
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.durationMillis = durationMillis;
+        }
+
+        public String getMachineId() { return machineId; }
+        public String getAddress() { return address; }
+        public Status getStatus() { return status; }
+        public Integer getExitCode() { return exitCode; }
+        public String getStdout() { return stdout; }
+        public String getStderr() { return stderr; }
+        public long getDurationMillis() { return durationMillis; }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("machine", machineId)
+                    .add("status", status)
+                    .add("exitCode", exitCode)
+                    .add("durationMillis", durationMillis)
+                    .toString();
+        }
+    }
+
+    private final int total;
+    private final List<HostResult> hosts;
+    private final int[] counts;
+    private final boolean aborted;
+    private final boolean complete;
+
+    public FleetExecResult(int total, List<HostResult> hosts, boolean aborted, boolean complete) {
+        this(total, hosts, count(hosts), aborted, complete);
+    }
+
+    private FleetExecResult(int total, List<HostResult> hosts, int[] counts, boolean aborted, boolean complete) {
+        this.total = total;
+        this.hosts = ImmutableList.copyOf(hosts);
+        this.counts = counts.clone();
+        this.aborted = aborted;
+        this.complete = complete;
+    }
+
+    /**
+     * A result holding only the number of hosts with each {@link Status}, indexed by ordinal, without their output.
+     */
+    public static FleetExecResult summary(int total, int[] counts, boolean aborted, boolean complete) {
+        return new FleetExecResult(total, ImmutableList.<HostResult>of(), counts, aborted, complete);
+    }
+
+    /** The number of hosts with each {@link Status}, indexed by ordinal. */
+    public static int[] count(List<HostResult> hosts) {
+        int[] counts = new int[Status.values().length];
+        for (HostResult host : hosts) {
+            counts[host.getStatus().ordinal()]++;
+        }
+        return counts;
+    }
+
+    public int getTotal() { return total; }
+    /** The result on each finished host; empty in a summary. */
+    public List<HostResult> getHosts() { return hosts; }
+    public boolean isAborted() { return aborted; }
+    public boolean isComplete() { return complete; }
+
+    public int getFinished() {
+        int finished = 0;
+        for (int count : counts) {
+            finished += count;
+        }
+        return finished;
+    }
+
+    public int getCount(Status status) {
+        return counts[status.ordinal()];
+    }
+
+    public int getSucceeded() { return getCount(Status.SUCCEEDED); }
+
+    /** Hosts that failed or timed out. */
+    public int getFailed() { return getCount(Status.FAILED) + getCount(Status.TIMED_OUT); }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("total", total)
+                .add("finished", getFinished())
+                .add("succeeded", getSucceeded())
+                .add("failed", getFailed())
+                .add("aborted", aborted)
+                .add("complete", complete)
+                .toString();
+    }
+
+}
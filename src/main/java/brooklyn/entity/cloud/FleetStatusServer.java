@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.StringConfigMap;
+import brooklyn.rest.BrooklynWebConfig;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.net.Networking;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.BasicAuthenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the {@link FleetStatusStream} of each environment as server-sent events at {@code /fleet/<environmentId>}.
+ * <p>
+ * One server is shared by all environments using the same address and port. Connections are handed
+ * to the stream and kept open, so a connected dashboard does not hold a server thread.
+ * <p>
+ * Clients authenticate with the web console users from {@code brooklyn.properties}
+ * ({@link BrooklynWebConfig#USERS} and {@link BrooklynWebConfig#PASSWORD_FOR_USER(String)}).
+ * With no users configured the server may only be bound to a loopback address.
+ */
+public class FleetStatusServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FleetStatusServer.class);
+
+    public static final String PATH = "/fleet/";
+
+    private static final Map<InetSocketAddress, FleetStatusServer> SERVERS = Maps.newHashMap();
+
+    /**
+     * The server for the address, started on first use. Each call must be matched by a {@link #release(FleetStatusServer)}.
+     */
+    public static synchronized FleetStatusServer acquire(InetSocketAddress address, StringConfigMap credentials) {
+        FleetStatusServer server = SERVERS.get(address);
+        if (server == null) {
+            server = new FleetStatusServer(address, credentials);
+            server.start();
+            SERVERS.put(address, server);
+        }
+        server.users++;
+        return server;
+    }
+
+    public static synchronized void release(FleetStatusServer server) {
+        if (--server.users <= 0) {
+            SERVERS.remove(server.address);
+            server.stop();
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final StringConfigMap credentials;
+    private final ConcurrentMap<String, FleetStatusStream> streams = Maps.newConcurrentMap();
+    private HttpServer http;
+    private ExecutorService executor;
+    private int users = 0;
+
+    protected FleetStatusServer(InetSocketAddress address, StringConfigMap credentials) {
+        this.address = address;
+        this.credentials = credentials;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public void register(String environmentId, FleetStatusStream stream) {
+        streams.put(environmentId, stream);
+    }
+
+    public void unregister(String environmentId) {
+        FleetStatusStream stream = streams.remove(environmentId);
+        if (stream != null) stream.close();
+    }
+
+    protected void start() {
+        boolean secured = !Strings.isNullOrEmpty(credentials.getConfig(BrooklynWebConfig.USERS));
+        InetAddress bound = address.getAddress();
+        if (!secured && (bound == null || !bound.isLoopbackAddress())) {
+            throw new IllegalStateException("Fleet status server on " + address + " requires "
+                    + BrooklynWebConfig.USERS.getName() + " to be configured, or a loopback address");
+        }
+        try {
+            http = HttpServer.create(address, 0);
+        } catch (IOException ioe) {
+            throw Exceptions.propagate(ioe);
+        }
+        HttpContext context = http.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String id = exchange.getRequestURI().getPath().substring(PATH.length());
+                FleetStatusStream stream = streams.get(id);
+                if (stream == null || !"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.sendResponseHeaders(200, 0);
+                stream.connect(exchange);
+            }
+        });
+        if (secured) {
+            context.setAuthenticator(new BasicAuthenticator("brooklyn") {
+                @Override
+                public boolean checkCredentials(String user, String password) {
+                    return isAuthorised(user, password);
+                }
+            });
+        }
+        executor = Executors.newCachedThreadPool();
+        http.setExecutor(executor);
+        http.start();
+        LOG.info("Started fleet status server on {}{}", address, secured ? "" : " without authentication");
+    }
+
+    /**
+     * Whether the user is one of the configured web console users, with a matching password.
+     */
+    protected boolean isAuthorised(String user, String password) {
+        String users = credentials.getConfig(BrooklynWebConfig.USERS);
+        if (users == null || user == null || password == null) return false;
+        if (!"*".equals(users.trim()) && !Iterables.contains(Splitter.on(',').trimResults().split(users), user)) return false;
+        String expected = credentials.getConfig(BrooklynWebConfig.PASSWORD_FOR_USER(user));
+        return expected != null && MessageDigest.isEqual(expected.getBytes(Charsets.UTF_8), password.getBytes(Charsets.UTF_8));
+    }
+
+    protected void stop() {
+        for (String id : streams.keySet()) {
+            unregister(id);
+        }
+        http.stop(0);
+        executor.shutdownNow();
+        LOG.info("Stopped fleet status server on {}", address);
+    }
+
+    /**
+     * The address clients use to reach the server.
+     */
+    public String getHostAddress() {
+        InetAddress bound = address.getAddress();
+        return (bound == null || bound.isAnyLocalAddress()) ? Networking.getLocalHost().getHostAddress() : bound.getHostAddress();
+    }
+
+}
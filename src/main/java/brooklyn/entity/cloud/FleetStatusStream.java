@@ -0,0 +1,300 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.Group;
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.group.DynamicCluster;
+import brooklyn.util.text.StringEscapes.JavaStringEscapes;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The status of every machine in one {@link CloudEnvironment}, streamed to dashboards as server-sent events.
+ * <p>
+ * Each client receives a {@code snapshot} event on connecting, then {@code delta} events with
+ * the machines whose status changed and those removed since the last tick. Sensor changes only
+ * mark machines dirty; each tick recomputes the dirty machines and sends one event for all of
+ * them, so the cost of a tick follows the rate of change rather than the size of the fleet.
+ * <p>
+ * Events are queued for each client and written by its own writer, so a slow client never
+ * delays the tick or the other clients; a client whose queue fills up is disconnected.
+ */
+public class FleetStatusStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FleetStatusStream.class);
+
+    public static final String IDLE = "idle";
+    public static final String BUSY = "busy";
+    public static final String STARTING = "starting";
+    public static final String QUARANTINED = "quarantined";
+    public static final String HIBERNATED = "hibernated";
+
+    /** Comment lines sent when idle, so broken connections are noticed. */
+    private static final long KEEPALIVE_MILLIS = TimeUnit.SECONDS.toMillis(15);
+
+    /** Events held for a client before it is treated as too slow and disconnected. */
+    private static final int CLIENT_QUEUE_SIZE = 64;
+
+    private final String environmentId;
+    private final List<DynamicCluster> shards;
+    private final Map<String, Map<String, Object>> state = Maps.newLinkedHashMap();
+    private final Set<Entity> dirty = Sets.newConcurrentHashSet();
+    private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+    private final ScheduledExecutorService executor;
+    private final ExecutorService writers = Executors.newCachedThreadPool();
+    private long lastSent = System.currentTimeMillis();
+
+    public FleetStatusStream(String environmentId, List<DynamicCluster> shards, Duration tick) {
+        this.environmentId = environmentId;
+        this.shards = ImmutableList.copyOf(shards);
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        long millis = tick.toMilliseconds();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (Exception e) {
+                    LOG.warn("Error sending fleet status for " + FleetStatusStream.this.environmentId, e);
+                }
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Note a change to a machine, to be sent on the next tick. */
+    public void changed(Entity machine) {
+        dirty.add(machine);
+    }
+
+    /**
+     * Recompute the dirty machines and send the changes to every client.
+     */
+    public synchronized void tick() {
+        if (dirty.isEmpty()) {
+            if (System.currentTimeMillis() - lastSent > KEEPALIVE_MILLIS) {
+                broadcast(": keepalive\n\n");
+            }
+            return;
+        }
+        List<Entity> batch = Lists.newArrayList(dirty);
+        dirty.removeAll(batch);
+
+        Map<String, Map<String, Object>> updated = Maps.newLinkedHashMap();
+        List<String> removed = Lists.newArrayList();
+        for (Entity machine : batch) {
+            Map<String, Object> status = status(machine);
+            if (status == null) {
+                if (state.remove(machine.getId()) != null) removed.add(machine.getId());
+            } else if (!status.equals(state.get(machine.getId()))) {
+                state.put(machine.getId(), status);
+                updated.put(machine.getId(), status);
+            }
+        }
+        if (updated.isEmpty() && removed.isEmpty()) return;
+
+        StringBuilder data = new StringBuilder("{\"updated\":");
+        machines(data, updated);
+        data.append(",\"removed\":[");
+        for (int i = 0; i < removed.size(); i++) {
+            if (i > 0) data.append(',');
+            data.append(JavaStringEscapes.wrapJavaString(removed.get(i)));
+        }
+        data.append("]}");
+        broadcast(event("delta", data));
+    }
+
+    /**
+     * Send the snapshot to a new client, then include it in later deltas.
+     */
+    public synchronized void connect(HttpExchange exchange) {
+        StringBuilder data = new StringBuilder("{\"environment\":").append(JavaStringEscapes.wrapJavaString(environmentId))
+                .append(",\"machines\":");
+        machines(data, state);
+        data.append('}');
+        Client client = new Client(exchange.getResponseBody());
+        client.offer(event("snapshot", data));
+        clients.add(client);
+        writers.execute(client);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        writers.shutdownNow();
+        for (Client client : clients) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * The status of a machine, or null if it is no longer part of the environment.
+     */
+    protected Map<String, Object> status(Entity machine) {
+        if (!Entities.isManaged(machine)) return null;
+        String pool;
+        if (isQuarantined(machine)) {
+            pool = QUARANTINED;
+        } else if (!isMember(machine)) {
+            return null;
+        } else if (machine.getAttribute(CloudMachine.MACHINE_STATE) == MachineState.HIBERNATED) {
+            pool = HIBERNATED;
+        } else if (machine.getAttribute(CloudMachine.ENTITY) != null) {
+            pool = BUSY;
+        } else if (Boolean.TRUE.equals(machine.getAttribute(Attributes.SERVICE_UP))) {
+            pool = IDLE;
+        } else {
+            pool = STARTING;
+        }
+
+        Entity running = machine.getAttribute(CloudMachine.ENTITY);
+        Map<String, Object> status = Maps.newLinkedHashMap();
+        status.put("pool", pool);
+        status.put("up", machine.getAttribute(Attributes.SERVICE_UP));
+        status.put("state", machine.getAttribute(CloudMachine.MACHINE_STATE));
+        status.put("sshable", machine.getAttribute(MachineEntity.SSH_AVAILABLE));
+        status.put("cpu", machine.getAttribute(MachineEntity.CPU_USAGE));
+        status.put("health", machine.getAttribute(CloudMachine.HEALTH_SCORE));
+        status.put("entity", running == null ? null : running.getId());
+        status.put("application", running == null || running.getApplication() == null ? null : running.getApplication().getDisplayName());
+        return ImmutableMap.copyOf(Maps.filterValues(status, Predicates.notNull()));
+    }
+
+    private boolean isMember(Entity machine) {
+        for (DynamicCluster shard : shards) {
+            if (shard.hasMember(machine)) return true;
+        }
+        return false;
+    }
+
+    private boolean isQuarantined(Entity machine) {
+        for (DynamicCluster shard : shards) {
+            Group quarantine = shard.getAttribute(DynamicCluster.QUARANTINE_GROUP);
+            if (quarantine != null && quarantine.hasMember(machine)) return true;
+        }
+        return false;
+    }
+
+    private static void machines(StringBuilder json, Map<String, Map<String, Object>> machines) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Map<String, Object>> machine : machines.entrySet()) {
+            if (!first) json.append(',');
+            first = false;
+            json.append(JavaStringEscapes.wrapJavaString(machine.getKey())).append(":{");
+            boolean firstField = true;
+            for (Map.Entry<String, Object> field : machine.getValue().entrySet()) {
+                if (!firstField) json.append(',');
+                firstField = false;
+                json.append('"').append(field.getKey()).append("\":");
+                Object value = field.getValue();
+                if (value instanceof Number || value instanceof Boolean) {
+                    json.append(value);
+                } else {
+                    json.append(JavaStringEscapes.wrapJavaString(String.valueOf(value)));
+                }
+            }
+            json.append('}');
+        }
+        json.append('}');
+    }
+
+    private static String event(String name, CharSequence data) {
+        return "event: " + name + "\ndata: " + data + "\n\n";
+    }
+
+    private void broadcast(String event) {
+        lastSent = System.currentTimeMillis();
+        for (Client client : clients) {
+            if (!client.offer(event)) {
+                LOG.debug("Fleet status client for {} too slow, disconnecting", environmentId);
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * One connected client, with the events waiting to be written to it.
+     */
+    private class Client implements Runnable {
+        private final OutputStream out;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>(CLIENT_QUEUE_SIZE);
+
+        Client(OutputStream out) {
+            this.out = out;
+        }
+
+        boolean offer(String event) {
+            return queue.offer(event);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    out.write(queue.take().getBytes(Charsets.UTF_8));
+                    out.flush();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ioe) {
+                LOG.debug("Fleet status client for {} disconnected: {}", environmentId, ioe.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            clients.remove(this);
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                // Already disconnected
+            }
+        }
+    }
+
+}
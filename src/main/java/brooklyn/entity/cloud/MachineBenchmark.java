@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static java.lang.String.format;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import brooklyn.entity.Entity;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Doubles;
+
+/**
+ * A short acceptance benchmark run on each new {@link CloudMachine} before it enters the pool.
+ * <p>
+ * The benchmark times a shell loop for CPU, a synced sequential write for disk and
+ * pings the loopback interface for the network stack, and the results are compared
+ * with the {@link CloudEnvironment#BENCHMARK_MIN_CPU thresholds} configured on the
+ * environment. Thresholds that are not set, and results that cannot be measured,
+ * always pass.
+ */
+public class MachineBenchmark {
+
+    private final int cpuIterations;
+    private final int diskSize;
+
+    private Double cpu;
+    private Double diskWrite;
+    private Double loopback;
+
+    public MachineBenchmark(int cpuIterations, int diskSize) {
+        this.cpuIterations = cpuIterations;
+        this.diskSize = diskSize;
+    }
+
+    /**
+     * The benchmark command, printing the elapsed milliseconds for the CPU and disk stages
+     * and the average loopback round trip time.
+     */
+    public String command() {
+        String file = "/tmp/.brooklyn-benchmark";
+        return format("s=$(date +%%s%%N); i=0; while [ $i -lt %d ]; do i=$((i+1)); done; ", cpuIterations)
+                + "echo cpu $((($(date +%s%N) - s) / 1000000)); "
+                + format("s=$(date +%%s%%N); dd if=/dev/zero of=%s bs=1M count=%d conv=fdatasync 2>/dev/null; ", file, diskSize)
+                + "echo disk $((($(date +%s%N) - s) / 1000000)); "
+                + format("rm -f %s; ", file)
+                + "ping -q -c 5 -i 0.2 127.0.0.1 2>/dev/null | tail -1 | awk -F/ '{ print \"loopback\", $5 }'";
+    }
+
+    /**
+     * Read the results from the output of the {@link #command()}.
+     */
+    public MachineBenchmark parse(@Nullable String output) {
+        if (output == null) return this;
+        for (String line : Splitter.on('\n').omitEmptyStrings().trimResults().split(output)) {
+            List<String> fields = Lists.newArrayList(Splitter.on(' ').omitEmptyStrings().split(line));
+            if (fields.size() != 2) continue;
+            Double value = Doubles.tryParse(fields.get(1));
+            if (value == null) continue;
+            if ("cpu".equals(fields.get(0))) {
+                cpu = cpuIterations * 1000d / Math.max(1d, value);
+            } else if ("disk".equals(fields.get(0))) {
+                diskWrite = diskSize * 1000d / Math.max(1d, value);
+            } else if ("loopback".equals(fields.get(0))) {
+                loopback = value;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The results that fall outside the thresholds configured on the environment.
+     *
+     * @return a description of each failure, empty if the machine is accepted
+     */
+    public List<String> failures(Entity environment) {
+        List<String> failures = Lists.newArrayList();
+        Double minCpu = environment.getConfig(CloudEnvironment.BENCHMARK_MIN_CPU);
+        if (minCpu != null && cpu != null && cpu < minCpu) {
+            failures.add(format("cpu %.0f/s below %.0f/s", cpu, minCpu));
+        }
+        Double minDisk = environment.getConfig(CloudEnvironment.BENCHMARK_MIN_DISK_WRITE);
+        if (minDisk != null && diskWrite != null && diskWrite < minDisk) {
+            failures.add(format("disk write %.1fMB/s below %.1fMB/s", diskWrite, minDisk));
+        }
+        Double maxLoopback = environment.getConfig(CloudEnvironment.BENCHMARK_MAX_LOOPBACK);
+        if (maxLoopback != null && loopback != null && loopback > maxLoopback) {
+            failures.add(format("loopback %.3fms above %.3fms", loopback, maxLoopback));
+        }
+        return failures;
+    }
+
+    @Nullable
+    public Double getCpu() {
+        return cpu;
+    }
+
+    @Nullable
+    public Double getDiskWrite() {
+        return diskWrite;
+    }
+
+    @Nullable
+    public Double getLoopback() {
+        return loopback;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("cpu", cpu)
+                .add("diskWrite", diskWrite)
+                .add("loopback", loopback)
+                .toString();
+    }
+
+}
@@ -16,9 +16,11 @@
 package brooklyn.entity.cloud;
 
 import brooklyn.entity.Entity;
+import brooklyn.entity.basic.SoftwareProcess;
 import brooklyn.entity.trait.Startable;
 import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.Sensors;
+import brooklyn.location.MachineProvisioningLocation;
 import brooklyn.location.basic.SshMachineLocation;
 
 public interface MachineEntity extends Entity, Startable {
@@ -29,6 +31,8 @@ public interface MachineEntity extends Entity, Startable {
 
     AttributeSensor<SshMachineLocation> SSH_MACHINE = Sensors.newSensor(SshMachineLocation.class, "machine.sshMachineLocation", "The SSHable machine");
 
+    AttributeSensor<MachineProvisioningLocation> PROVISIONING_LOCATION = SoftwareProcess.PROVISIONING_LOCATION;
+
     AttributeSensor<String> OPERATING_SYSTEM = Sensors.newStringSensor("machine.os", "The machine operating system");
 
     SshMachineLocation getSshMachine();
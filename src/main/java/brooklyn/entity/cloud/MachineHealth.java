@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import brooklyn.entity.Entity;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.primitives.Longs;
+
+/**
+ * Scores how well a {@link CloudMachine} performs compared with its peers, to spot noisy neighbours.
+ * <p>
+ * Each signal scores from 0 to 1 against a baseline: CPU steal time against the
+ * steal limit, the start-up probe time and the SSH round trip time against their
+ * expected durations. The health score is the lowest of these, so one bad signal
+ * marks the machine as poor. Signals not yet measured score 1.
+ */
+public final class MachineHealth {
+
+    /** Weight of each new steal and SSH latency sample in the smoothed value. */
+    public static final double SMOOTHING = 0.3d;
+
+    /** Reads the CPU counters twice, a second apart, for {@link #parseUsageSample(String)}. */
+    public static final String USAGE_SAMPLE_COMMAND = "head -1 /proc/stat; sleep 1; head -1 /proc/stat";
+
+    private MachineHealth() { }
+
+    /**
+     * A command that burns CPU and writes to a file in the directory, printing the elapsed milliseconds.
+     */
+    public static String probeCommand(String dir) {
+        String file = dir + "/.probe";
+        return "start=$(date +%s%N); i=0; while [ $i -lt 200000 ]; do i=$((i+1)); done; "
+                + "dd if=/dev/zero of=" + file + " bs=1M count=32 conv=fdatasync 2>/dev/null; rm -f " + file + "; "
+                + "echo $((($(date +%s%N) - start) / 1000000))";
+    }
+
+    /**
+     * The health score of the machine from its current sensor values.
+     */
+    public static double score(Entity machine, double stealLimit, Duration probeBaseline, Duration sshBaseline) {
+        double score = 1d;
+        Double steal = machine.getAttribute(CloudAttributes.CPU_STEAL);
+        if (steal != null) {
+            score = Math.min(score, 1d - Math.min(1d, steal / stealLimit));
+        }
+        Long probe = machine.getAttribute(CloudAttributes.PROBE_TIME);
+        if (probe != null) {
+            score = Math.min(score, ratio(probeBaseline.toMilliseconds(), probe));
+        }
+        Double latency = machine.getAttribute(CloudAttributes.SSH_LATENCY);
+        if (latency != null) {
+            score = Math.min(score, ratio(sshBaseline.toMilliseconds(), latency));
+        }
+        return score;
+    }
+
+    /**
+     * Whether the machine is healthy enough to be preferred; machines without a score are.
+     */
+    public static boolean isHealthy(Entity machine, double minimum) {
+        Double score = machine.getAttribute(CloudAttributes.HEALTH_SCORE);
+        return score == null || score >= minimum;
+    }
+
+    /** Exponentially weighted moving average of the samples. */
+    public static double smooth(@Nullable Double previous, double sample) {
+        return (previous == null) ? sample : previous + SMOOTHING * (sample - previous);
+    }
+
+    /**
+     * The steal, total and idle jiffies from the aggregate {@code cpu} line of {@code /proc/stat}.
+     *
+     * @return the counters, or null if the line cannot be parsed
+     */
+    @Nullable
+    public static long[] parseCpuCounters(@Nullable String line) {
+        if (line == null || !line.trim().startsWith("cpu ")) return null;
+        List<String> fields = Splitter.on(' ').omitEmptyStrings().trimResults().splitToList(line.trim());
+        long total = 0;
+        long steal = 0;
+        long idle = 0;
+        for (int i = 1; i < fields.size(); i++) {
+            Long value = Longs.tryParse(fields.get(i));
+            if (value == null) return null;
+            // user nice system idle iowait irq softirq steal guest guest_nice; guest time is already in user
+            if (i <= 8) total += value;
+            if (i == 4 || i == 5) idle += value;
+            if (i == 8) steal = value;
+        }
+        return fields.size() > 8 ? new long[] { steal, total, idle } : null;
+    }
+
+    /**
+     * The fraction of CPU time stolen between two readings of {@link #parseCpuCounters(String)}.
+     */
+    public static double steal(long[] previous, long[] current) {
+        long total = current[1] - previous[1];
+        return (total <= 0) ? 0d : Math.max(0d, (double) (current[0] - previous[0]) / total);
+    }
+
+    /**
+     * The fraction of CPU time spent busy between two readings of {@link #parseCpuCounters(String)},
+     * counting idle and I/O wait time as idle.
+     */
+    public static double usage(long[] previous, long[] current) {
+        long total = current[1] - previous[1];
+        return (total <= 0) ? 0d : Math.min(1d, Math.max(0d, 1d - (double) (current[2] - previous[2]) / total));
+    }
+
+    /**
+     * The CPU usage from the output of the {@link #USAGE_SAMPLE_COMMAND}, or null.
+     */
+    @Nullable
+    public static Double parseUsageSample(@Nullable String output) {
+        if (output == null) return null;
+        List<String> lines = Splitter.on('\n').omitEmptyStrings().trimResults().splitToList(output);
+        if (lines.size() < 2) return null;
+        long[] previous = parseCpuCounters(lines.get(0));
+        long[] current = parseCpuCounters(lines.get(lines.size() - 1));
+        return (previous == null || current == null) ? null : usage(previous, current);
+    }
+
+    /**
+     * The last line of command output parsed as milliseconds, or null.
+     */
+    @Nullable
+    public static Long parseMillis(@Nullable String output) {
+        if (output == null) return null;
+        String last = Iterables.getLast(Splitter.on('\n').omitEmptyStrings().trimResults().split(output), null);
+        return (last == null) ? null : Longs.tryParse(last);
+    }
+
+    private static double ratio(double baseline, double measured) {
+        return (measured <= baseline) ? 1d : baseline / measured;
+    }
+
+}
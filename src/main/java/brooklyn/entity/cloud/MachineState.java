@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+/**
+ * The power state of a started {@link CloudMachine}.
+ */
+public enum MachineState {
+
+    /** Running, and idle or in use. */
+    RUNNING,
+
+    /** Being suspended by the hibernation policy. */
+    HIBERNATING,
+
+    /** Suspended with its disk and installed software kept, waiting to be resumed on demand. */
+    HIBERNATED,
+
+    /** Being resumed for an entity. */
+    RESUMING,
+
+    /** Could not be suspended or resumed, and will be removed. */
+    FAILED
+
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Receives the UDP datagrams pushed by the metrics agent on each {@link CloudMachine} and
+ * updates the machine sensors, in place of polling each machine over SSH.
+ * <p>
+ * One collector is shared by all environments using the same port. A single thread receives
+ * into a reused buffer and decodes the fixed layout in place; machines are looked up by the
+ * numeric key they were registered with, and sensors are only set when a value changes. Each
+ * datagram must carry the random token issued at registration and a newer sequence number.
+ * Machines that miss heartbeats are marked unavailable.
+ *
+ * @see CloudMachineImpl#connectSensors()
+ */
+public class MetricsCollector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsCollector.class);
+
+    public static final int DATAGRAM_LENGTH = 38;
+    public static final short MAGIC = (short) 0xb10c;
+    public static final byte VERSION = 1;
+
+    private static final Map<Integer, MetricsCollector> COLLECTORS = Maps.newHashMap();
+
+    private static final int UNKNOWN = 0, UP = 1, DOWN = 2;
+
+    /**
+     * The collector for the port, started on first use. Each call must be matched by a {@link #release(MetricsCollector)}.
+     */
+    public static synchronized MetricsCollector acquire(int port) {
+        MetricsCollector collector = COLLECTORS.get(port);
+        if (collector == null) {
+            collector = new MetricsCollector(port);
+            collector.start();
+            COLLECTORS.put(port, collector);
+        }
+        collector.users++;
+        return collector;
+    }
+
+    public static synchronized void release(MetricsCollector collector) {
+        if (--collector.users <= 0) {
+            COLLECTORS.remove(collector.port);
+            collector.close();
+        }
+    }
+
+    /** A machine registered with the collector; the agent sends its key and token with each datagram. */
+    public static class Registration {
+        private final int key;
+        private final int token;
+        private final Entity machine;
+        private final long timeoutMillis;
+
+        private volatile long lastSeen = System.currentTimeMillis();
+        private volatile int state = UNKNOWN;
+
+        /* Last values, only used by the receiver thread */
+        private int sequence = 0;
+        private int cpu = -1, load = -1, disk = -1;
+        private int memoryUsed = -1, memoryTotal = -1, rx = -1, tx = -1;
+
+        Registration(int key, int token, Entity machine, long timeoutMillis) {
+            this.key = key;
+            this.token = token;
+            this.machine = machine;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public int getKey() { return key; }
+
+        public int getToken() { return token; }
+    }
+
+    private final int port;
+    private final Object lock = new Object[0];
+    private final Random random = new Random();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile Registration[] registrations = new Registration[64];
+    private int users = 0;
+
+    private DatagramChannel channel;
+    private Thread receiver;
+    private ScheduledExecutorService heartbeats;
+
+    protected MetricsCollector(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Register a machine whose agent pushes every {@code interval}, marking it unavailable after {@code missed} silent intervals.
+     */
+    public Registration register(Entity machine, Duration interval, int missed) {
+        synchronized (lock) {
+            Registration[] current = registrations;
+            int key = 1;
+            while (key < current.length && current[key] != null) key++;
+            Registration[] updated = new Registration[key < current.length ? current.length : current.length * 2];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            Registration registration = new Registration(key, random.nextInt(Integer.MAX_VALUE), machine,
+                    interval.toMilliseconds() * Math.max(1, missed));
+            updated[key] = registration;
+            registrations = updated;
+            return registration;
+        }
+    }
+
+    /**
+     * Register a machine whose agent is already running with the given key and token, after rebind.
+     *
+     * @return null if the key is in use, so the agent must be restarted with a new registration
+     */
+    @Nullable
+    public Registration restore(Entity machine, Duration interval, int missed, int key, int token) {
+        synchronized (lock) {
+            Registration[] current = registrations;
+            if (key <= 0 || (key < current.length && current[key] != null)) return null;
+            int length = current.length;
+            while (key >= length) length *= 2;
+            Registration[] updated = new Registration[length];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            Registration registration = new Registration(key, token, machine, interval.toMilliseconds() * Math.max(1, missed));
+            updated[key] = registration;
+            registrations = updated;
+            return registration;
+        }
+    }
+
+    public void unregister(Registration registration) {
+        synchronized (lock) {
+            Registration[] current = registrations;
+            if (current[registration.key] == registration) {
+                Registration[] updated = current.clone();
+                updated[registration.key] = null;
+                registrations = updated;
+            }
+        }
+    }
+
+    protected void start() {
+        try {
+            channel = DatagramChannel.open();
+            channel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException ioe) {
+            throw Exceptions.propagate(ioe);
+        }
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "brooklyn-cloud-metrics-collector-" + port);
+        receiver.setDaemon(true);
+        receiver.start();
+
+        heartbeats = Executors.newSingleThreadScheduledExecutor();
+        heartbeats.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHeartbeats();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        LOG.info("Started metrics collector on UDP port {}", port);
+    }
+
+    protected void close() {
+        heartbeats.shutdownNow();
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            LOG.debug("Error closing metrics collector on port {}: {}", port, ioe.getMessage());
+        }
+        receiver.interrupt();
+        LOG.info("Stopped metrics collector on UDP port {}: {} datagrams received, {} rejected",
+                new Object[] { port, received.get(), rejected.get() });
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DATAGRAM_LENGTH * 2);
+        while (channel.isOpen()) {
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+            } catch (ClosedChannelException cce) {
+                return;
+            } catch (IOException ioe) {
+                LOG.debug("Error receiving on metrics collector port {}: {}", port, ioe.getMessage());
+                continue;
+            }
+            buffer.flip();
+            try {
+                if (decode(buffer)) {
+                    received.incrementAndGet();
+                } else {
+                    rejected.incrementAndGet();
+                }
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                rejected.incrementAndGet();
+                LOG.debug("Error decoding metrics datagram on port {}: {}", port, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Decode one datagram and update the machine sensors.
+     *
+     * @return false if the datagram was malformed, stale or for an unknown machine
+     */
+    protected boolean decode(ByteBuffer buffer) {
+        if (buffer.remaining() != DATAGRAM_LENGTH) return false;
+        if (buffer.getShort(0) != MAGIC || buffer.get(2) != VERSION) return false;
+
+        Registration[] current = registrations;
+        int key = buffer.getInt(4);
+        if (key <= 0 || key >= current.length) return false;
+        Registration registration = current[key];
+        if (registration == null || buffer.getInt(8) != registration.token) return false;
+        int sequence = buffer.getInt(12);
+        if (sequence <= registration.sequence) return false;
+
+        registration.sequence = sequence;
+        registration.lastSeen = System.currentTimeMillis();
+        EntityInternal machine = (EntityInternal) registration.machine;
+
+        int cpu = buffer.getShort(16) & 0xffff;
+        if (cpu != registration.cpu) {
+            registration.cpu = cpu;
+            machine.setAttribute(MachineEntity.CPU_USAGE, cpu / 1000d);
+        }
+        int load = buffer.getShort(18) & 0xffff;
+        if (load != registration.load) {
+            registration.load = load;
+            machine.setAttribute(CloudMachine.LOAD_AVERAGE, load / 100d);
+        }
+        int memoryUsed = buffer.getInt(20);
+        if (memoryUsed != registration.memoryUsed) {
+            registration.memoryUsed = memoryUsed;
+            machine.setAttribute(CloudMachine.MEMORY_USED, (long) memoryUsed);
+        }
+        int memoryTotal = buffer.getInt(24);
+        if (memoryTotal != registration.memoryTotal) {
+            registration.memoryTotal = memoryTotal;
+            machine.setAttribute(CloudMachine.MEMORY_TOTAL, (long) memoryTotal);
+        }
+        int disk = buffer.getShort(28) & 0xffff;
+        if (disk != registration.disk) {
+            registration.disk = disk;
+            machine.setAttribute(CloudMachine.DISK_USAGE, disk / 1000d);
+        }
+        int rx = buffer.getInt(30);
+        if (rx != registration.rx) {
+            registration.rx = rx;
+            machine.setAttribute(CloudMachine.NET_RX_RATE, (long) rx);
+        }
+        int tx = buffer.getInt(34);
+        if (tx != registration.tx) {
+            registration.tx = tx;
+            machine.setAttribute(CloudMachine.NET_TX_RATE, (long) tx);
+        }
+
+        if (registration.state != UP) {
+            registration.state = UP;
+            setAvailable(machine, true);
+        }
+        return true;
+    }
+
+    private void checkHeartbeats() {
+        long now = System.currentTimeMillis();
+        for (Registration registration : registrations) {
+            if (registration != null && registration.state != DOWN && now - registration.lastSeen > registration.timeoutMillis) {
+                registration.state = DOWN;
+                LOG.info("Missed metrics heartbeats from {}, marking unavailable", registration.machine);
+                setAvailable((EntityInternal) registration.machine, false);
+            }
+        }
+    }
+
+    /* Liveness is taken from heartbeats, as the SSH availability poll is not run when pushing metrics */
+    private void setAvailable(EntityInternal machine, boolean available) {
+        machine.setAttribute(CloudMachine.AGENT_AVAILABLE, available);
+        machine.setAttribute(MachineEntity.SSH_AVAILABLE, available);
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.SoftwareProcess;
+import brooklyn.util.text.Strings;
+
+/**
+ * Matches the software state left on a {@link CloudMachine} by previous tenants
+ * against the entity that is about to be deployed.
+ */
+public final class SoftwareAffinity {
+
+    public static final String SEPARATOR = ":";
+
+    private SoftwareAffinity() { }
+
+    /**
+     * The installed software key for an entity, its type and version if known.
+     */
+    public static String softwareKey(Entity entity) {
+        String type = entity.getEntityType().getName();
+        String version = version(entity);
+        return Strings.isBlank(version) ? type : type + SEPARATOR + version;
+    }
+
+    /**
+     * The artifact that an entity downloads, if it declares one.
+     */
+    @Nullable
+    public static String artifact(Entity entity) {
+        String url = entity.getConfig(SoftwareProcess.DOWNLOAD_URL);
+        if (Strings.isBlank(url)) return null;
+        String version = version(entity);
+        return Strings.isBlank(version) ? url : url + "@" + version;
+    }
+
+    /**
+     * The install directory for an entity under the machine artifact cache, shared by its type and version.
+     */
+    public static String installDir(Entity entity, String cacheDir) {
+        String name = entity.getEntityType().getSimpleName();
+        String version = version(entity);
+        return cacheDir + "/installs/" + (Strings.isBlank(version) ? name : name + "_" + version);
+    }
+
+    /**
+     * Scores how much of the entity's software is already on the machine.
+     * <p>
+     * An exact type and version match scores highest, then the same type at any
+     * version, with an extra point if the download artifact is already cached.
+     */
+    public static int score(Entity machine, @Nullable Entity entity) {
+        if (entity == null) return 0;
+
+        int score = 0;
+        Set<String> installed = machine.getAttribute(CloudAttributes.INSTALLED_SOFTWARE);
+        if (installed != null) {
+            String type = entity.getEntityType().getName();
+            if (installed.contains(softwareKey(entity))) {
+                score += 2;
+            } else {
+                for (String key : installed) {
+                    if (key.equals(type) || key.startsWith(type + SEPARATOR)) {
+                        score += 1;
+                        break;
+                    }
+                }
+            }
+        }
+        Set<String> artifacts = machine.getAttribute(CloudAttributes.INSTALLED_ARTIFACTS);
+        String artifact = artifact(entity);
+        if (artifacts != null && artifact != null && artifacts.contains(artifact)) {
+            score += 1;
+        }
+        return score;
+    }
+
+    @Nullable
+    private static String version(Entity entity) {
+        return entity.getConfig(SoftwareProcess.SUGGESTED_VERSION);
+    }
+
+}
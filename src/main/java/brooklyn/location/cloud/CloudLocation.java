@@ -16,20 +16,32 @@
 package brooklyn.location.cloud;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
+import org.jclouds.compute.domain.NodeMetadata;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import brooklyn.config.ConfigKey;
 import brooklyn.entity.Entity;
 import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.EntityInternal;
 import brooklyn.entity.cloud.CloudEnvironment;
 import brooklyn.entity.cloud.CloudMachine;
 import brooklyn.entity.cloud.MachineEntity;
+import brooklyn.entity.cloud.MachineHealth;
+import brooklyn.entity.cloud.SoftwareAffinity;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
 import brooklyn.location.MachineLocation;
 import brooklyn.location.MachineProvisioningLocation;
 import brooklyn.location.NoMachinesAvailableException;
@@ -37,14 +49,34 @@ import brooklyn.location.basic.AbstractLocation;
 import brooklyn.location.basic.LocationConfigKeys;
 import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.dynamic.DynamicLocation;
+import brooklyn.location.jclouds.JcloudsLocation;
+import brooklyn.location.jclouds.JcloudsLocationConfig;
+import brooklyn.location.jclouds.JcloudsSshMachineLocation;
+import brooklyn.management.LocationManager;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.flags.SetFromFlag;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects.ToStringHelper;
+import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Doubles;
 import com.google.common.reflect.TypeToken;
 
 public class CloudLocation extends AbstractLocation implements MachineProvisioningLocation<MachineLocation>,
@@ -56,6 +88,18 @@ public class CloudLocation extends AbstractLocation implements MachineProvisioni
             ConfigKeys.newConfigKey(new TypeToken<MachineProvisioningLocation<SshMachineLocation>>() { },
                     "cloud.machine.provisioner", "The underlying provisioner for VMs");
 
+    public static final ConfigKey<Map<String, String>> OBTAINED_MACHINES = ConfigKeys.newConfigKey(new TypeToken<Map<String, String>>() { },
+            "cloud.pool.obtained", "Ids of the machines obtained from the provisioners, mapped to the provisioner ids; persisted for rebind",
+            ImmutableMap.<String, String>of());
+
+    public static final ConfigKey<Map<String, String>> BORROWED_MACHINES = ConfigKeys.newConfigKey(new TypeToken<Map<String, String>>() { },
+            "cloud.pool.borrowed", "Ids of the machines borrowed from sibling environments, mapped to the lender ids; persisted for rebind",
+            ImmutableMap.<String, String>of());
+
+    public static final ConfigKey<Map<String, String>> PROVISIONED_TENANTS = ConfigKeys.newConfigKey(new TypeToken<Map<String, String>>() { },
+            "cloud.pool.tenants", "Ids of the machines obtained from the provisioners, mapped to the ids of the entities running on them; persisted for rebind",
+            ImmutableMap.<String, String>of());
+
 	public static final String PREFIX = "cloud-";
 
     @SetFromFlag("mutex")
@@ -67,9 +111,53 @@ public class CloudLocation extends AbstractLocation implements MachineProvisioni
     @SetFromFlag("provisioner")
     private MachineProvisioningLocation<SshMachineLocation> provisioner;
 
+    @SetFromFlag("provisioners")
+    private List<MachineProvisioningLocation<SshMachineLocation>> provisioners;
+
+    @SetFromFlag("shards")
+    private Integer shardCount;
+
     /* Mappings for provisioned locations */
 
     private final Set<MachineLocation> obtained = Sets.newHashSet();
+    private final Map<MachineLocation, MachineProvisioningLocation<SshMachineLocation>> provisionedBy = Maps.newConcurrentMap();
+    private final Map<MachineLocation, String> provisionedImages = Maps.newConcurrentMap();
+    private final Map<MachineLocation, Entity> provisionedTenants = Maps.newConcurrentMap();
+    private final ConcurrentMap<MachineProvisioningLocation<SshMachineLocation>, ProvisionerStats> stats = Maps.newConcurrentMap();
+
+    /* Machines awaiting a batched release during teardown */
+
+    private final AtomicBoolean batchRelease = new AtomicBoolean(false);
+    private final Multimap<JcloudsLocation, JcloudsSshMachineLocation> pendingRelease =
+            Multimaps.synchronizedMultimap(HashMultimap.<JcloudsLocation, JcloudsSshMachineLocation>create());
+
+    /* Idle machine indexes */
+
+    private transient List<MachineShard> shards;
+    private final Map<CloudMachine, MachineShard> shardMembership = Maps.newConcurrentMap();
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /* Suspended machines that can be resumed */
+
+    private final Set<CloudMachine> hibernated = Sets.newLinkedHashSet();
+
+    /* Named partitions of the pool */
+
+    private final Map<String, CloudPartitionLocation> partitions = Maps.newLinkedHashMap();
+
+    /* Machines borrowed from sibling environments, and their lenders */
+
+    private final Map<MachineLocation, CloudLocation> borrowed = Maps.newConcurrentMap();
+
+    private transient PoolJournal journal;
+    private final PoolJournal.State poolState = new PoolJournal.State();
+    private int poolChanges = 0;
+
+    private final ProvisioningMetrics metrics = new ProvisioningMetrics();
+
+    private transient ProvisioningTracer tracer;
+
+    private transient LookaheadReservations reservations;
 
     public CloudLocation() {
         this(Maps.newLinkedHashMap());
@@ -87,6 +175,146 @@ public class CloudLocation extends AbstractLocation implements MachineProvisioni
         return provisioner;
     }
 
+    /**
+     * All provisioners that new machines can be obtained from, the primary one first.
+     */
+    public List<MachineProvisioningLocation<SshMachineLocation>> getProvisioners() {
+        if (provisioners == null || provisioners.isEmpty()) {
+            return ImmutableList.of(provisioner);
+        } else {
+            return ImmutableList.copyOf(provisioners);
+        }
+    }
+
+    /**
+     * The provisioner that supplied a machine obtained through {@link #provision(Map)}.
+     */
+    @Nullable
+    public MachineProvisioningLocation<SshMachineLocation> getProvisioner(MachineLocation machine) {
+        return provisionedBy.get(machine);
+    }
+
+    /**
+     * The image id in the flags a machine was obtained with through {@link #provision(Map)}, if one was set.
+     */
+    @Nullable
+    public String getImageId(MachineLocation machine) {
+        return provisionedImages.get(machine);
+    }
+
+    public ProvisionerStats getProvisionerStats(MachineProvisioningLocation<SshMachineLocation> target) {
+        ProvisionerStats result = stats.get(target);
+        if (result == null) {
+            stats.putIfAbsent(target, new ProvisionerStats(target));
+            result = stats.get(target);
+        }
+        return result;
+    }
+
+    public synchronized List<MachineShard> getShards() {
+        if (shards == null) {
+            int count = (shardCount == null) ? 1 : Math.max(1, shardCount);
+            ImmutableList.Builder<MachineShard> builder = ImmutableList.builder();
+            for (int i = 0; i < count; i++) {
+                builder.add(new MachineShard(i));
+            }
+            shards = builder.build();
+        }
+        return shards;
+    }
+
+    /**
+     * Update the idle index for a machine in the given shard.
+     */
+    public void updateMachine(int shard, CloudMachine machine) {
+        MachineShard index = getShards().get(shard);
+        shardMembership.put(machine, index);
+        index.update(machine);
+        updatePartition(machine);
+        if (machine.getAttribute(CloudMachine.PARTITION) == null) {
+            for (CloudPartitionLocation partition : getPartitions()) {
+                partition.fillQuota();
+            }
+        }
+    }
+
+    public void removeMachine(CloudMachine machine) {
+        synchronized (hibernated) {
+            if (hibernated.remove(machine)) updateHibernatedCount();
+        }
+        MachineShard index = shardMembership.remove(machine);
+        if (index != null) {
+            index.remove(machine);
+        }
+        CloudPartitionLocation partition = getPartition(machine.getAttribute(CloudMachine.PARTITION));
+        if (partition != null) {
+            partition.removeMachine(machine);
+        }
+    }
+
+    private void updatePartition(CloudMachine machine) {
+        CloudPartitionLocation partition = getPartition(machine.getAttribute(CloudMachine.PARTITION));
+        if (partition != null) {
+            partition.getIdleIndex().update(machine);
+        }
+    }
+
+    /**
+     * Take an idle machine out of the pool so it can be stopped and removed.
+     *
+     * @return false if the machine has been claimed in the meantime
+     */
+    public boolean retireIdle(CloudMachine machine) {
+        MachineShard index = shardMembership.get(machine);
+        return index != null && index.retire(machine);
+    }
+
+    /**
+     * Machines obtained directly from the provisioners, outside the pool.
+     */
+    public Set<MachineLocation> getProvisionedMachines() {
+        synchronized (mutex) {
+            return ImmutableSet.copyOf(obtained);
+        }
+    }
+
+    /**
+     * The entities running on machines obtained directly from the provisioners, by machine.
+     */
+    public Map<MachineLocation, Entity> getProvisionedTenants() {
+        return ImmutableMap.copyOf(provisionedTenants);
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (MachineShard shard : getShards()) {
+            count += shard.getIdleCount();
+        }
+        return count;
+    }
+
+    /**
+     * Shards to search for an idle machine, starting with the home shard chosen by
+     * consistent hashing of the entity application, or round robin without an entity.
+     */
+    protected List<MachineShard> getShardsFor(@Nullable Entity entity) {
+        List<MachineShard> all = getShards();
+        int count = all.size();
+        if (count == 1) return all;
+
+        int home;
+        if (entity != null && entity.getApplicationId() != null) {
+            home = Hashing.consistentHash(Hashing.murmur3_32().hashString(entity.getApplicationId(), Charsets.UTF_8), count);
+        } else {
+            home = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % count;
+        }
+        ImmutableList.Builder<MachineShard> ordered = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            ordered.add(all.get((home + i) % count));
+        }
+        return ordered.build();
+    }
+
     @Override
     public void configure(Map properties) {
         if (mutex == null) {
@@ -101,63 +329,782 @@ public class CloudLocation extends AbstractLocation implements MachineProvisioni
 
     @Override
     public MachineLocation obtain(Map<?,?> flags) throws NoMachinesAvailableException {
-        synchronized (mutex) {
-            // Check context for entity being deployed
-            Object context = flags.get(LocationConfigKeys.CALLER_CONTEXT.getName());
-            if (context != null && !(context instanceof Entity)) {
-                throw new IllegalStateException("Invalid location context: " + context);
-            }
-            Entity entity = (Entity) context;
-
-            // Look for idle CloudMachine first
-            Set<Entity> idle = Sets.newTreeSet(new Ordering<Entity>() {
-                @Override
-                public int compare(@Nullable Entity left, @Nullable Entity right) {
-                    return ComparisonChain.start()
-                            .compare(left.getAttribute(MachineEntity.CPU_USAGE), right.getAttribute(MachineEntity.CPU_USAGE))
-                            .result();
+        return obtain(flags, null);
+    }
+
+    /**
+     * Obtain a machine for a partition of the pool, or for the shared pool if the partition is null.
+     * <p>
+     * A partition looks for idle machines in its own index before the shared pool; all other
+     * sources, and the metrics and tracing, are the same for partitions and the shared pool.
+     */
+    public MachineLocation obtain(Map<?,?> flags, @Nullable CloudPartitionLocation partition) throws NoMachinesAvailableException {
+        // Check context for entity being deployed
+        Object context = flags.get(LocationConfigKeys.CALLER_CONTEXT.getName());
+        if (context != null && !(context instanceof Entity)) {
+            throw new IllegalStateException("Invalid location context: " + context);
+        }
+        Entity entity = (Entity) context;
+
+        long start = System.nanoTime();
+        String outcome = ProvisioningMetrics.FAILURE;
+        TraceSpan span = getTracer().start("cloud.obtain", flags.get(TraceSpan.CONTEXT_FLAG))
+                .attribute("cloud.location.id", getId())
+                .attribute("cloud.partition", partition == null ? null : partition.getPartitionName())
+                .attribute("entity.id", entity == null ? null : entity.getId())
+                .attribute("application.id", entity == null ? null : entity.getApplicationId());
+        try {
+            // Use a machine reserved for the application, reserving for the rest of it on first sight
+            LookaheadReservations lookahead = getReservations();
+            if (lookahead != null) {
+                lookahead.lookahead(entity);
+                MachineLocation reserved = lookahead.take(entity, flags);
+                if (reserved != null) {
+                    outcome = ProvisioningMetrics.RESERVED;
+                    span.attribute("machine.location.id", reserved.getId());
+                    return reserved;
                 }
-            });
-            for (Entity e : getOwner().getCloudMachineList()) {
-                if (Boolean.TRUE.equals(e.getAttribute(CloudMachine.SERVICE_UP)) && e.getAttribute(CloudMachine.ENTITY) == null) {
-                    idle.add(e);
+            }
+
+            // Look for idle CloudMachine next
+            CloudMachine idle = (partition == null) ? claimIdle(entity) : partition.claimIdle(entity);
+            if (idle != null) {
+                outcome = ProvisioningMetrics.IDLE;
+                span.attribute("cloud.machine.id", idle.getId());
+                return idle.getDynamicLocation();
+            }
+
+            // Then an idle machine from a sibling environment
+            CloudMachine borrowed = borrowIdle(entity);
+            if (borrowed != null) {
+                outcome = ProvisioningMetrics.BORROWED;
+                span.attribute("cloud.machine.id", borrowed.getId());
+                return borrowed.getDynamicLocation();
+            }
+
+            // Then resume a hibernated machine, before provisioning a new one
+            CloudMachine resumed = resumeHibernated(entity);
+            if (resumed != null) {
+                outcome = ProvisioningMetrics.RESUMED;
+                span.attribute("cloud.machine.id", resumed.getId());
+                return resumed.getDynamicLocation();
+            }
+
+            MachineLocation machine = obtainNew(flags);
+            if (entity != null) {
+                provisionedTenants.put(machine, entity);
+                record(PoolJournal.TENANT, machine, entity.getId());
+            }
+            outcome = ProvisioningMetrics.FRESH;
+            return machine;
+        } catch (NoMachinesAvailableException e) {
+            span.error(e);
+            throw e;
+        } catch (RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            metrics.record(ProvisioningMetrics.OBTAIN, outcome, start);
+            span.attribute("cloud.outcome", outcome)
+                    .attribute("cloud.idleHit", ProvisioningMetrics.IDLE.equals(outcome))
+                    .close();
+        }
+    }
+
+    /**
+     * Claim an idle machine from the shared pool, trying the home shard for the application before the others.
+     *
+     * @return the machine, now running the entity, or null if none are idle
+     */
+    @Nullable
+    public CloudMachine claimIdle(@Nullable Entity entity) {
+        for (MachineShard shard : getShardsFor(entity)) {
+            CloudMachine best = shard.claim(idleMachineOrdering(entity), entity);
+            if (best != null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Obtained idle machine {} from shard {} for {} with affinity {}",
+                            new Object[] { best, shard.getIndex(), entity, SoftwareAffinity.score(best, entity) });
                 }
+                return best;
             }
-            if (idle.size() > 0) {
-                CloudMachineLocation machine = (CloudMachineLocation) Iterables.getLast(idle);
-                machine.setEntity(entity);
+        }
+        return null;
+    }
+
+    /**
+     * Hold an idle machine back for the application, trying its home shard before the others.
+     *
+     * @return the machine, or null if none are idle
+     */
+    @Nullable
+    public CloudMachine reserveIdle(Entity application) {
+        for (MachineShard shard : getShardsFor(application)) {
+            CloudMachine machine = shard.reserve(idleMachineOrdering(application));
+            if (machine != null) return machine;
+        }
+        return null;
+    }
+
+    /**
+     * Run the entity on a machine held by {@link #reserveIdle(Entity)}.
+     *
+     * @return false if the machine is no longer reserved
+     */
+    public boolean claimReserved(CloudMachine machine, @Nullable Entity entity) {
+        MachineShard shard = shardMembership.get(machine);
+        return shard != null && shard.claimReserved(machine, entity);
+    }
+
+    /**
+     * Return a machine held by {@link #reserveIdle(Entity)} to the idle pool.
+     */
+    public void unreserve(CloudMachine machine) {
+        MachineShard shard = shardMembership.get(machine);
+        if (shard != null) shard.unreserve(machine);
+    }
+
+    /**
+     * The lookahead reservations, or null if {@link CloudEnvironment#LOOKAHEAD} is disabled.
+     */
+    @Nullable
+    public synchronized LookaheadReservations getReservations() {
+        if (reservations == null) {
+            CloudEnvironment environment = getOwner();
+            if (environment == null || !Boolean.TRUE.equals(environment.getConfig(CloudEnvironment.LOOKAHEAD))) return null;
+            reservations = new LookaheadReservations(this, environment.getConfig(CloudEnvironment.LOOKAHEAD_MAX_MACHINES),
+                    environment.getConfig(CloudEnvironment.LOOKAHEAD_TTL), environment.getConfig(CloudEnvironment.LOOKAHEAD_CONCURRENCY),
+                    environment.getConfig(CloudEnvironment.LOOKAHEAD_MAX_WAIT));
+        }
+        return reservations;
+    }
+
+    /**
+     * Release all reserved machines and stop reserving.
+     */
+    public synchronized void closeReservations() {
+        if (reservations != null) {
+            reservations.close();
+            reservations = null;
+        }
+    }
+
+    /**
+     * Take an idle machine out of the pool so it can be hibernated.
+     *
+     * @return false if the machine has been claimed in the meantime
+     * @see #addHibernated(CloudMachine)
+     */
+    public boolean holdIdle(CloudMachine machine) {
+        MachineShard shard = shardMembership.get(machine);
+        return shard != null && shard.hold(machine);
+    }
+
+    /**
+     * Make a hibernated machine available to {@link #obtain(Map)}.
+     */
+    public void addHibernated(CloudMachine machine) {
+        synchronized (hibernated) {
+            hibernated.add(machine);
+        }
+        updateHibernatedCount();
+    }
+
+    public int getHibernatedCount() {
+        synchronized (hibernated) {
+            return hibernated.size();
+        }
+    }
+
+    /**
+     * Claim the hibernated machine with the best affinity for the entity and resume it.
+     *
+     * @return the machine, now running the entity, or null if none are hibernated or it could not be resumed
+     */
+    @Nullable
+    public CloudMachine resumeHibernated(@Nullable Entity entity) {
+        CloudMachine machine;
+        synchronized (hibernated) {
+            if (hibernated.isEmpty()) return null;
+            machine = idleMachineOrdering(entity).min(hibernated);
+            hibernated.remove(machine);
+        }
+        updateHibernatedCount();
+        MachineShard shard = shardMembership.get(machine);
+        if (shard == null || !shard.claimReserved(machine, entity)) {
+            // Not held after rebind
+            machine.setRunningEntity(entity);
+        }
+        try {
+            machine.resume();
+            LOG.info("Resumed hibernated machine {} for {}", machine, entity);
+            return machine;
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Failed to resume hibernated machine {} for {}: {}", new Object[] { machine, entity, e.getMessage() });
+            machine.setRunningEntity(null);
+            return null;
+        }
+    }
+
+    /**
+     * Lend an idle machine to a sibling environment, keeping {@link CloudEnvironment#LENDING_RESERVE} idle machines for ourselves.
+     *
+     * @return the machine, now running the entity, or null if we do not lend or have no spare machines
+     */
+    @Nullable
+    public CloudMachine lendIdle(@Nullable Entity entity) {
+        CloudEnvironment environment = getOwner();
+        if (!Boolean.TRUE.equals(environment.getConfig(CloudEnvironment.LEND_IDLE_MACHINES))) return null;
+        if (getIdleCount() <= environment.getConfig(CloudEnvironment.LENDING_RESERVE)) return null;
+
+        return claimIdle(entity);
+    }
+
+    /**
+     * Borrow an idle machine from a compatible sibling environment found by the {@link MachineBroker}.
+     * <p>
+     * The machine location is reparented to this location until it is released, when it is returned to the lender.
+     *
+     * @return the machine, now running the entity, or null if borrowing is disabled or no lender has spare machines
+     */
+    @Nullable
+    public CloudMachine borrowIdle(@Nullable Entity entity) {
+        if (!Boolean.TRUE.equals(getOwner().getConfig(CloudEnvironment.BORROW_IDLE_MACHINES))) return null;
+
+        for (CloudLocation lender : MachineBroker.findLenders(this)) {
+            CloudMachine machine = lender.lendIdle(entity);
+            if (machine != null) {
+                CloudMachineLocation location = machine.getDynamicLocation();
+                location.setParent(this);
+                machine.setLeasedTo(getOwner().getId());
+                borrowed.put(location, lender);
+                record(PoolJournal.BORROW, location, lender.getId());
+                updateBorrowedCount();
+                LOG.info("Borrowed idle machine {} from {} for {}", new Object[] { machine, lender.getOwner(), entity });
                 return machine;
             }
+        }
+        return null;
+    }
+
+    /**
+     * Return a borrowed machine to the environment that lent it.
+     *
+     * @return false if the machine was not borrowed
+     */
+    protected boolean returnBorrowed(MachineLocation machine) {
+        CloudLocation lender = borrowed.remove(machine);
+        if (lender == null) return false;
+
+        CloudMachineLocation location = (CloudMachineLocation) machine;
+        location.setParent(lender);
+        location.getOwner().setLeasedTo(null);
+        record(PoolJournal.RETURN, location, null);
+        updateBorrowedCount();
+        LOG.info("Returning borrowed machine {} to {}", machine, lender.getOwner());
+        lender.release(machine);
+        return true;
+    }
+
+    /**
+     * Whether the machine was borrowed from a sibling environment.
+     */
+    public boolean isBorrowed(MachineLocation machine) {
+        return borrowed.containsKey(machine);
+    }
+
+    public int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    private void updateHibernatedCount() {
+        ((EntityInternal) getOwner()).setAttribute(CloudEnvironment.CLOUD_MACHINE_HIBERNATED_COUNT, getHibernatedCount());
+    }
+
+    private void updateBorrowedCount() {
+        ((EntityInternal) getOwner()).setAttribute(CloudEnvironment.CLOUD_MACHINE_BORROWED_COUNT, borrowed.size());
+    }
 
-            // Obtain a new machine location
-            MachineLocation machine = provisioner.obtain(flags);
+    /**
+     * Obtain a new machine location, outside the mutex so provisioning can proceed concurrently.
+     */
+    public MachineLocation obtainNew(Map<?,?> flags) throws NoMachinesAvailableException {
+        MachineLocation machine = provision(flags);
+        synchronized (mutex) {
             obtained.add(machine);
+        }
+        MachineProvisioningLocation<SshMachineLocation> target = provisionedBy.get(machine);
+        record(PoolJournal.OBTAIN, machine, target == null ? null : target.getId());
+        return machine;
+    }
 
-            return machine;
+    /**
+     * Obtain a new machine from the best provisioner, failing over to the others in turn.
+     * <p>
+     * Provisioners are ranked by observed latency, recent capacity errors and idle machines.
+     */
+    public SshMachineLocation provision(Map<?,?> flags) throws NoMachinesAvailableException {
+        Exception last = null;
+        for (ProvisionerStats candidate : rankProvisioners()) {
+            MachineProvisioningLocation<SshMachineLocation> target = candidate.getProvisioner();
+            long start = System.nanoTime();
+            TraceSpan span = getTracer().start("cloud.provision")
+                    .attribute("cloud.provisioner.id", target.getId())
+                    .attribute("cloud.provisioner.name", target.getDisplayName());
+            try {
+                Map<Object, Object> targetFlags = getProvisioningFlags(target, flags);
+                SshMachineLocation machine = target.obtain(targetFlags);
+                candidate.success(System.nanoTime() - start);
+                provisionedBy.put(machine, target);
+                Object imageId = targetFlags.get(JcloudsLocationConfig.IMAGE_ID.getName());
+                if (imageId != null) provisionedImages.put(machine, imageId.toString());
+                span.attribute("machine.location.id", machine.getId());
+                return machine;
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                span.error(e);
+                candidate.failure(System.nanoTime() - start);
+                LOG.warn("Failed to obtain machine from {}, trying next provisioner: {}", target, e.getMessage());
+                last = e;
+            } finally {
+                span.close();
+            }
+        }
+        throw new NoMachinesAvailableException("No provisioner could supply a machine for " + this, last);
+    }
+
+    /**
+     * Release a machine obtained through {@link #provision(Map)} back to its provisioner.
+     *
+     * @return false if the machine was not provisioned here
+     */
+    public boolean releaseProvisioned(MachineLocation machine) {
+        MachineProvisioningLocation<SshMachineLocation> target = provisionedBy.remove(machine);
+        provisionedImages.remove(machine);
+        if (target == null) return false;
+        if (batchRelease.get() && target instanceof JcloudsLocation && machine instanceof JcloudsSshMachineLocation) {
+            pendingRelease.put((JcloudsLocation) target, (JcloudsSshMachineLocation) machine);
+        } else {
+            target.release((SshMachineLocation) machine);
+        }
+        return true;
+    }
+
+    /**
+     * Queue jclouds machines released through {@link #releaseProvisioned(MachineLocation)}
+     * so they can be destroyed together by {@link #flushBatchRelease()}.
+     */
+    public void beginBatchRelease() {
+        batchRelease.set(true);
+    }
+
+    /**
+     * Destroy the queued machines with one call per provisioner, releasing them one at a time if that fails.
+     *
+     * @return the number of machines released
+     */
+    public int flushBatchRelease() {
+        batchRelease.set(false);
+        Map<JcloudsLocation, Collection<JcloudsSshMachineLocation>> batches = Maps.newHashMap();
+        synchronized (pendingRelease) {
+            for (JcloudsLocation target : pendingRelease.keySet()) {
+                batches.put(target, ImmutableList.copyOf(pendingRelease.get(target)));
+            }
+            pendingRelease.clear();
+        }
+
+        int released = 0;
+        for (Map.Entry<JcloudsLocation, Collection<JcloudsSshMachineLocation>> batch : batches.entrySet()) {
+            JcloudsLocation target = batch.getKey();
+            final Set<String> ids = Sets.newHashSet();
+            for (JcloudsSshMachineLocation machine : batch.getValue()) {
+                ids.add(machine.getNode().getId());
+            }
+            try {
+                target.getComputeService().destroyNodesMatching(new Predicate<NodeMetadata>() {
+                    @Override
+                    public boolean apply(@Nullable NodeMetadata input) {
+                        return ids.contains(input.getId());
+                    }
+                });
+                for (JcloudsSshMachineLocation machine : batch.getValue()) {
+                    if (getManagementContext().getLocationManager().isManaged(machine)) {
+                        getManagementContext().getLocationManager().unmanage(machine);
+                    }
+                }
+                released += ids.size();
+                LOG.info("Destroyed {} machines in {} in one batch", ids.size(), target);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Batch release in {} failed, releasing machines individually: {}", target, e.getMessage());
+                for (JcloudsSshMachineLocation machine : batch.getValue()) {
+                    try {
+                        target.release(machine);
+                        released++;
+                    } catch (Exception e2) {
+                        Exceptions.propagateIfFatal(e2);
+                        LOG.warn("Failed to release {}: {}", machine, e2.getMessage());
+                    }
+                }
+            }
+        }
+        return released;
+    }
+
+    protected List<ProvisionerStats> rankProvisioners() {
+        List<MachineProvisioningLocation<SshMachineLocation>> targets = getProvisioners();
+        if (targets.size() == 1) {
+            return ImmutableList.of(getProvisionerStats(targets.get(0)));
+        }
+
+        final Multiset<Object> idle = HashMultiset.create();
+        for (MachineShard shard : getShards()) {
+            for (CloudMachine machine : shard.getIdleMachines()) {
+                MachineProvisioningLocation<?> source = machine.getAttribute(CloudMachine.PROVISIONING_LOCATION);
+                if (source != null) idle.add(source);
+            }
+        }
+        List<ProvisionerStats> ranked = Lists.newArrayList();
+        for (MachineProvisioningLocation<SshMachineLocation> target : targets) {
+            ranked.add(getProvisionerStats(target));
+        }
+        final double prior = getPriorLatencyMillis(ranked);
+        Collections.sort(ranked, new Ordering<ProvisionerStats>() {
+            @Override
+            public int compare(@Nullable ProvisionerStats left, @Nullable ProvisionerStats right) {
+                return Doubles.compare(left.score(idle.count(left.getProvisioner()), prior), right.score(idle.count(right.getProvisioner()), prior));
+            }
+        });
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Ranked provisioners for {}: {}", this, ranked);
+        }
+        return ranked;
+    }
+
+    /**
+     * The latency assumed for provisioners that have not supplied a machine yet: the mean of those
+     * that have, or {@link CloudEnvironment#PROVISIONER_DEFAULT_LATENCY} if none have.
+     */
+    protected double getPriorLatencyMillis(Collection<ProvisionerStats> candidates) {
+        double total = 0d;
+        int sampled = 0;
+        for (ProvisionerStats candidate : candidates) {
+            if (candidate.isSampled()) {
+                total += candidate.getLatencyMillis();
+                sampled++;
+            }
+        }
+        if (sampled > 0) return total / sampled;
+        return getOwner().getConfig(CloudEnvironment.PROVISIONER_DEFAULT_LATENCY).toMilliseconds();
+    }
+
+    /**
+     * Flags for obtaining a new machine from the given provisioner.
+     * <p>
+     * Adds the baked image, the environment security group, and the image, hardware and
+     * security group ids from the environment {@link TemplateCache} for jclouds provisioners.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Object, Object> getProvisioningFlags(MachineProvisioningLocation<?> target, Map<?,?> flags) {
+        CloudEnvironment environment = getOwner();
+        MutableMap<Object, Object> result = MutableMap.<Object, Object>builder()
+                .putAll(flags)
+                .putAll(environment.getImageFlags(target))
+                .build();
+
+        if (target instanceof JcloudsLocation) {
+            String securityGroup = environment.getConfig(CloudEnvironment.SECURITY_GROUP);
+            if (securityGroup != null && !result.containsKey(JcloudsLocationConfig.SECURITY_GROUPS.getName())) {
+                result.put(JcloudsLocationConfig.SECURITY_GROUPS.getName(), ImmutableList.of(securityGroup));
+            }
+            if (!result.containsKey(JcloudsLocationConfig.OPEN_IPTABLES.getName())) {
+                result.put(JcloudsLocationConfig.OPEN_IPTABLES.getName(), environment.getConfig(CloudEnvironment.OPEN_IPTABLES));
+            }
+            Map<String, Object> template = environment.getTemplateCache().getTemplateFlags((JcloudsLocation) target, result);
+            result.putAll(template);
+
+            // Launch into the cached security group ids rather than looking the names up again
+            Object groupIds = result.remove(TemplateCache.SECURITY_GROUP_IDS.getName());
+            if (groupIds != null) {
+                result.remove(JcloudsLocationConfig.SECURITY_GROUPS.getName());
+                List<Object> customizers = Lists.newArrayList();
+                Object existing = result.get(JcloudsLocationConfig.JCLOUDS_LOCATION_CUSTOMIZERS.getName());
+                if (existing instanceof Iterable) Iterables.addAll(customizers, (Iterable<?>) existing);
+                customizers.add(new SecurityGroupIdCustomizer((List<String>) groupIds));
+                result.put(JcloudsLocationConfig.JCLOUDS_LOCATION_CUSTOMIZERS.getName(), customizers);
+            }
         }
+        return result;
+    }
+
+    /**
+     * Orders idle machines healthy first, then by software affinity for the entity, then by lowest CPU usage.
+     */
+    protected Ordering<CloudMachine> idleMachineOrdering(final Entity entity) {
+        final double minimum = getOwner().getConfig(CloudEnvironment.HEALTH_MIN_SCORE);
+        return new Ordering<CloudMachine>() {
+            @Override
+            public int compare(@Nullable CloudMachine left, @Nullable CloudMachine right) {
+                return ComparisonChain.start()
+                        .compareTrueFirst(MachineHealth.isHealthy(left, minimum), MachineHealth.isHealthy(right, minimum))
+                        .compare(SoftwareAffinity.score(right, entity), SoftwareAffinity.score(left, entity))
+                        .compare(left.getAttribute(MachineEntity.CPU_USAGE), right.getAttribute(MachineEntity.CPU_USAGE), Ordering.<Double>natural().nullsFirst())
+                        .result();
+            }
+        };
     }
 
+    /**
+     * Returns the named {@link CloudPartitionLocation partition} of this pool, creating it if required
+     * and setting aside idle machines for its quota.
+     * <p>
+     * The partition name is given by the {@code partition} flag, with optional {@code quota},
+     * {@code burst} and {@code reserve} flags.
+     */
     @Override
     public MachineProvisioningLocation<MachineLocation> newSubLocation(Map<?, ?> newFlags) {
-        throw new UnsupportedOperationException();
+        Object name = newFlags.get("partition");
+        if (name == null) name = newFlags.get(CloudPartitionLocation.PARTITION_NAME.getName());
+        if (name == null) {
+            throw new IllegalArgumentException("Partition name must be supplied for new sub-location of " + this);
+        }
+        CloudPartitionLocation partition;
+        synchronized (partitions) {
+            partition = partitions.get(name.toString());
+            if (partition == null) {
+                LocationSpec<CloudPartitionLocation> spec = LocationSpec.create(CloudPartitionLocation.class)
+                        .parent(this)
+                        .configure(newFlags)
+                        .configure(CloudPartitionLocation.PARTITION_NAME, name.toString())
+                        .displayName(getDisplayName() + " " + name);
+                partition = getManagementContext().getLocationManager().createLocation(spec);
+                partitions.put(name.toString(), partition);
+                LOG.info("New partition {} of {} created", partition, this);
+            }
+        }
+        partition.fillQuota();
+        return partition;
+    }
+
+    /**
+     * Re-register the partition locations after rebind and return their owned machines to them.
+     * Machines naming a partition that no longer exists go back to the shared pool.
+     */
+    public void restorePartitions(Iterable<? extends Entity> machines) {
+        synchronized (partitions) {
+            for (Location child : getChildren()) {
+                if (child instanceof CloudPartitionLocation) {
+                    CloudPartitionLocation partition = (CloudPartitionLocation) child;
+                    partitions.put(partition.getPartitionName(), partition);
+                }
+            }
+        }
+        for (Entity member : machines) {
+            CloudMachine machine = (CloudMachine) member;
+            String name = machine.getAttribute(CloudMachine.PARTITION);
+            if (name == null) continue;
+            CloudPartitionLocation partition = getPartition(name);
+            if (partition != null) {
+                partition.restoreMachine(machine);
+            } else {
+                LOG.info("Partition {} of {} no longer exists, returning {} to the shared pool", new Object[] { name, this, machine });
+                machine.setPartition(null);
+            }
+        }
+    }
+
+    public List<CloudPartitionLocation> getPartitions() {
+        synchronized (partitions) {
+            return ImmutableList.copyOf(partitions.values());
+        }
+    }
+
+    @Nullable
+    public CloudPartitionLocation getPartition(@Nullable String name) {
+        if (name == null) return null;
+        synchronized (partitions) {
+            return partitions.get(name);
+        }
     }
 
     @Override
     public void release(MachineLocation machine) {
-        if (provisioner != null) {
-            synchronized (mutex) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Request to release machine {}", machine);
+        long start = System.nanoTime();
+        String outcome = ProvisioningMetrics.FAILURE;
+        TraceSpan span = getTracer().start("cloud.release")
+                .attribute("cloud.location.id", getId())
+                .attribute("machine.location.id", machine.getId());
+        try {
+            if (returnBorrowed(machine)) {
+                outcome = ProvisioningMetrics.BORROWED;
+                return;
+            }
+
+            if (provisioner != null) {
+                boolean released = false;
+                synchronized (mutex) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Request to release machine {}", machine);
+                    }
+                    if (machine instanceof CloudMachineLocation && !obtained.contains(machine)) {
+                        // Return to the idle pool, keeping installed software and cached artifacts
+                        CloudMachine owner = ((CloudMachineLocation) machine).getOwner();
+                        if (!shardMembership.containsKey(owner)) {
+                            throw new IllegalArgumentException("Request to release "+machine+", but its machine "+owner+" does not belong to "+getOwner());
+                        }
+                        owner.setRunningEntity(null);
+                        MachineShard shard = shardMembership.get(owner);
+                        if (shard != null) shard.update(owner);
+                        updatePartition(owner);
+                        outcome = ProvisioningMetrics.IDLE;
+                    } else if (obtained.remove(machine)) {
+                        provisionedTenants.remove(machine);
+                        if (!releaseProvisioned(machine)) {
+                            provisioner.release((SshMachineLocation) machine);
+                        }
+                        released = true;
+                        outcome = ProvisioningMetrics.FRESH;
+                    } else {
+                        throw new IllegalArgumentException("Request to release "+machine+", but this machine is not currently allocated");
+                    }
                 }
-                if (obtained.remove(machine)) {
-                    provisioner.release((SshMachineLocation) machine);
-                } else {
-                    throw new IllegalArgumentException("Request to release "+machine+", but this machine is not currently allocated");
+                if (released) record(PoolJournal.RELEASE, machine, null);
+            } else {
+                throw new IllegalStateException("No provisioner available to release "+machine);
+            }
+        } catch (RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            metrics.record(ProvisioningMetrics.RELEASE, outcome, start);
+            span.attribute("cloud.outcome", outcome).close();
+        }
+    }
+
+    /** Latency histograms for obtaining and releasing machines, and for the machines in this environment. */
+    public ProvisioningMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setTracer(@Nullable ProvisioningTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /** The tracer for provisioning spans, never null. */
+    public ProvisioningTracer getTracer() {
+        ProvisioningTracer current = tracer;
+        return current == null ? ProvisioningTracer.DISABLED : current;
+    }
+
+    public void setJournal(@Nullable PoolJournal journal) {
+        this.journal = journal;
+    }
+
+    @Nullable
+    public PoolJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Record a change to the pool in the journal if there is one, checkpointing the persisted
+     * location state every {@link CloudEnvironment#POOL_CHECKPOINT_EVERY} changes.
+     */
+    private void record(String op, MachineLocation machine, @Nullable String other) {
+        boolean due;
+        synchronized (poolState) {
+            poolState.apply(Lists.newArrayList(op, machine.getId(), other == null ? "" : other));
+            CloudEnvironment environment = getOwner();
+            int every = (environment == null) ? 1 : Math.max(1, environment.getConfig(CloudEnvironment.POOL_CHECKPOINT_EVERY));
+            due = ++poolChanges >= every;
+        }
+        PoolJournal current = journal;
+        if (current != null) {
+            current.append(op, machine.getId(), other);
+        }
+        if (due || current == null) checkpoint();
+    }
+
+    /**
+     * Write the pool state into the persisted location config, if it has changed since the last checkpoint.
+     */
+    public void checkpoint() {
+        synchronized (poolState) {
+            if (poolChanges == 0) return;
+            setConfig(OBTAINED_MACHINES, poolState.getObtained());
+            setConfig(BORROWED_MACHINES, poolState.getBorrowed());
+            setConfig(PROVISIONED_TENANTS, poolState.getTenants());
+            poolChanges = 0;
+        }
+        if (getManagementContext() != null && getManagementContext().getLocationManager().isManaged(this)) {
+            getManagementContext().getRebindManager().getChangeListener().onChanged(this);
+        }
+    }
+
+    /**
+     * Hold the machine location flags once, as config inherited by every {@link CloudMachineLocation} child,
+     * so compact machine locations need only their own machine.
+     */
+    public void shareMachineConfig(Map<String, ?> flags) {
+        getLocalConfigBag().putAll(flags);
+        if (getManagementContext() != null && getManagementContext().getLocationManager().isManaged(this)) {
+            getManagementContext().getRebindManager().getChangeListener().onChanged(this);
+        }
+    }
+
+    /**
+     * The obtained and borrowed machines and provisioned tenants from the last checkpoint of the persisted location state.
+     */
+    public PoolJournal.State getPersistedState() {
+        return PoolJournal.State.of(getConfig(OBTAINED_MACHINES), getConfig(BORROWED_MACHINES), getConfig(PROVISIONED_TENANTS));
+    }
+
+    /**
+     * Restore the obtained and borrowed machines, and the tenants of obtained machines, from the
+     * persisted or journal state, after rebind.
+     */
+    @SuppressWarnings("unchecked")
+    public void restore(PoolJournal.State state) {
+        if (mutex == null) mutex = new Object[0];
+        LocationManager manager = getManagementContext().getLocationManager();
+        int missing = 0;
+        synchronized (mutex) {
+            for (Map.Entry<String, String> entry : state.getObtained().entrySet()) {
+                Location machine = manager.getLocation(entry.getKey());
+                if (!(machine instanceof MachineLocation)) {
+                    missing++;
+                    continue;
+                }
+                obtained.add((MachineLocation) machine);
+                poolState.apply(Lists.newArrayList(PoolJournal.OBTAIN, entry.getKey(), Strings.nullToEmpty(entry.getValue())));
+                Location target = (entry.getValue() == null) ? null : manager.getLocation(entry.getValue());
+                if (target instanceof MachineProvisioningLocation) {
+                    provisionedBy.put((MachineLocation) machine, (MachineProvisioningLocation<SshMachineLocation>) target);
+                }
+                String tenantId = state.getTenants().get(entry.getKey());
+                Entity tenant = (tenantId == null) ? null : getManagementContext().getEntityManager().getEntity(tenantId);
+                if (tenant != null) {
+                    provisionedTenants.put((MachineLocation) machine, tenant);
+                    poolState.apply(Lists.newArrayList(PoolJournal.TENANT, entry.getKey(), tenantId));
                 }
             }
-        } else {
-            throw new IllegalStateException("No provisioner available to release "+machine);
         }
+        for (Map.Entry<String, String> entry : state.getBorrowed().entrySet()) {
+            Location machine = manager.getLocation(entry.getKey());
+            Location lender = manager.getLocation(entry.getValue());
+            if (machine instanceof CloudMachineLocation && lender instanceof CloudLocation) {
+                borrowed.put((MachineLocation) machine, (CloudLocation) lender);
+                poolState.apply(Lists.newArrayList(PoolJournal.BORROW, entry.getKey(), entry.getValue()));
+            } else {
+                missing++;
+            }
+        }
+        updateBorrowedCount();
+        synchronized (poolState) {
+            poolChanges++;
+        }
+        checkpoint();
+        LOG.info("Restored pool state for {}: {} obtained, {} with tenants, {} borrowed, {} no longer present",
+                new Object[] { this, obtained.size(), provisionedTenants.size(), borrowed.size(), missing });
     }
 
     @Override
@@ -70,10 +70,9 @@ public class CloudMachineLocation extends SshMachineLocation implements DynamicL
     }
 
     public CloudEnvironment getCloudEnvironment() {
-        return ((CloudMachineLocation) getParent()).getCloudEnvironment();
+        return ((CloudLocation) getParent()).getOwner();
     }
 
-
     public void setEntity(Entity entity) {
         owner.setRunningEntity(entity);
     }
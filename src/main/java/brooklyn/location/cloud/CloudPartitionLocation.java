@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.cloud.CloudMachine;
+import brooklyn.location.MachineLocation;
+import brooklyn.location.MachineProvisioningLocation;
+import brooklyn.location.NoMachinesAvailableException;
+import brooklyn.location.basic.AbstractLocation;
+import brooklyn.util.flags.SetFromFlag;
+
+import com.google.common.base.Objects.ToStringHelper;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * A named partition of a {@link CloudLocation} pool, created by {@link CloudLocation#newSubLocation(Map)}.
+ * <p>
+ * The partition sets aside up to its {@link #QUOTA quota} of idle machines from the shared pool
+ * when it is created, and again whenever a shared machine becomes idle while it is below quota.
+ * These are kept in its own idle index where other tenants cannot take them. Beyond the quota
+ * the partition obtains machines through the {@link CloudLocation#obtain(Map, CloudPartitionLocation)
+ * shared pipeline}: shared idle machines, spare idle machines of other partitions, sibling
+ * environments, hibernated machines or new ones, up to its {@link #BURST burst} limit.
+ */
+public class CloudPartitionLocation extends AbstractLocation implements MachineProvisioningLocation<MachineLocation> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudPartitionLocation.class);
+
+    /** Multiple of the quota used as the burst limit when none is configured. */
+    public static final int DEFAULT_BURST_MULTIPLE = 4;
+
+    @SetFromFlag("partition")
+    public static final ConfigKey<String> PARTITION_NAME = ConfigKeys.newStringConfigKey("cloud.partition.name", "The partition name");
+
+    @SetFromFlag("quota")
+    public static final ConfigKey<Integer> QUOTA = ConfigKeys.newIntegerConfigKey("cloud.partition.quota",
+            "Number of machines set aside for the partition from the idle pool", 0);
+
+    @SetFromFlag("burst")
+    public static final ConfigKey<Integer> BURST = ConfigKeys.newIntegerConfigKey("cloud.partition.burst",
+            "Maximum number of machines the partition may use at once; (null for " + DEFAULT_BURST_MULTIPLE + " times the quota, or at least "
+                    + DEFAULT_BURST_MULTIPLE + ")");
+
+    @SetFromFlag("reserve")
+    public static final ConfigKey<Integer> RESERVE = ConfigKeys.newIntegerConfigKey("cloud.partition.reserve",
+            "Number of idle machines the partition keeps rather than lending to other partitions", 0);
+
+    /** How a machine in use by the partition was obtained. */
+    public enum Lease { OWNED, SHARED, BORROWED, PROVISIONED }
+
+    private final Object lock = new Object[0];
+    private final Map<MachineLocation, Lease> leases = Maps.newHashMap();
+    private final Set<CloudMachine> owned = Sets.newHashSet();
+    private int pending = 0;
+    private int adopting = 0;
+    private transient MachineShard idle;
+
+    public CloudPartitionLocation() {
+        this(Maps.newLinkedHashMap());
+    }
+
+    public CloudPartitionLocation(Map properties) {
+        super(properties);
+
+        if (isLegacyConstruction()) {
+            init();
+        }
+    }
+
+    public String getPartitionName() {
+        return getConfig(PARTITION_NAME);
+    }
+
+    public CloudLocation getCloudLocation() {
+        return (CloudLocation) getParent();
+    }
+
+    public synchronized MachineShard getIdleIndex() {
+        if (idle == null) {
+            idle = new MachineShard(0, getPartitionName());
+        }
+        return idle;
+    }
+
+    public int getInUseCount() {
+        synchronized (lock) {
+            return leases.size() + pending;
+        }
+    }
+
+    public int getOwnedCount() {
+        synchronized (lock) {
+            return owned.size();
+        }
+    }
+
+    public int getBurstLimit() {
+        Integer burst = getConfig(BURST);
+        return (burst != null) ? burst : DEFAULT_BURST_MULTIPLE * Math.max(1, getConfig(QUOTA));
+    }
+
+    /**
+     * Set aside idle machines from the shared pool until the partition owns its quota.
+     */
+    public void fillQuota() {
+        CloudLocation cloud = getCloudLocation();
+        int quota = getConfig(QUOTA);
+        while (true) {
+            synchronized (lock) {
+                if (owned.size() + adopting >= quota) return;
+                adopting++;
+            }
+            CloudMachine machine = null;
+            try {
+                machine = cloud.reserveIdle(null);
+                if (machine == null) return;
+                adopt(machine);
+                cloud.unreserve(machine);
+            } finally {
+                synchronized (lock) {
+                    adopting--;
+                }
+            }
+            getIdleIndex().update(machine);
+            LOG.debug("Partition {} set aside idle machine {}", getPartitionName(), machine);
+        }
+    }
+
+    private void adopt(CloudMachine machine) {
+        synchronized (lock) {
+            owned.add(machine);
+        }
+        machine.setPartition(getPartitionName());
+    }
+
+    /**
+     * Claim an idle machine owned by the partition, then one from the shared pool, adopting it
+     * if the partition is below quota, then a spare idle machine from another partition.
+     *
+     * @return the machine, now running the entity, or null if none are idle
+     */
+    @Nullable
+    public CloudMachine claimIdle(@Nullable Entity entity) {
+        CloudLocation cloud = getCloudLocation();
+        CloudMachine claimed = getIdleIndex().claim(cloud.idleMachineOrdering(entity), entity);
+        if (claimed != null) return claimed;
+
+        claimed = cloud.claimIdle(entity);
+        if (claimed != null) {
+            boolean below;
+            synchronized (lock) {
+                below = owned.size() < getConfig(QUOTA);
+            }
+            if (below) adopt(claimed);
+            return claimed;
+        }
+
+        for (CloudPartitionLocation other : cloud.getPartitions()) {
+            if (other == this) continue;
+            claimed = other.getIdleIndex().claim(cloud.idleMachineOrdering(entity), entity, other.getConfig(RESERVE));
+            if (claimed != null) return claimed;
+        }
+        return null;
+    }
+
+    @Override
+    public MachineLocation obtain(Map<?,?> flags) throws NoMachinesAvailableException {
+        // Reserve a slot within the burst limit
+        int burst = getBurstLimit();
+        synchronized (lock) {
+            if (leases.size() + pending >= burst) {
+                throw new NoMachinesAvailableException("Partition " + getPartitionName() + " has reached its burst limit of " + burst);
+            }
+            pending++;
+        }
+
+        MachineLocation machine = null;
+        Lease lease = null;
+        try {
+            machine = getCloudLocation().obtain(flags, this);
+            lease = leaseOf(machine);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Partition {} obtained {} machine {}", new Object[] { getPartitionName(), lease, machine });
+            }
+            return machine;
+        } finally {
+            synchronized (lock) {
+                pending--;
+                if (machine != null) leases.put(machine, lease);
+            }
+        }
+    }
+
+    private Lease leaseOf(MachineLocation machine) {
+        if (!(machine instanceof CloudMachineLocation)) return Lease.PROVISIONED;
+        CloudMachine owner = ((CloudMachineLocation) machine).getOwner();
+        synchronized (lock) {
+            if (owned.contains(owner)) return Lease.OWNED;
+        }
+        if (owner.getAttribute(CloudMachine.PARTITION) != null || getCloudLocation().isBorrowed(machine)) return Lease.BORROWED;
+        return Lease.SHARED;
+    }
+
+    @Override
+    public void release(MachineLocation machine) {
+        Lease lease;
+        synchronized (lock) {
+            lease = leases.remove(machine);
+        }
+        if (lease == null) {
+            throw new IllegalArgumentException("Request to release "+machine+", but this machine is not allocated to partition "+getPartitionName());
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Partition {} releasing {} machine {}", new Object[] { getPartitionName(), lease, machine });
+        }
+        getCloudLocation().release(machine);
+    }
+
+    /**
+     * Take back an owned machine after rebind, with its lease if it is running a tenant.
+     */
+    public void restoreMachine(CloudMachine machine) {
+        synchronized (lock) {
+            owned.add(machine);
+            if (machine.getRunningEntity() != null && machine.getDynamicLocation() != null) {
+                leases.put(machine.getDynamicLocation(), Lease.OWNED);
+            }
+        }
+    }
+
+    /**
+     * Forget an owned machine that has left the environment.
+     */
+    public void removeMachine(CloudMachine machine) {
+        synchronized (lock) {
+            owned.remove(machine);
+        }
+        getIdleIndex().remove(machine);
+    }
+
+    @Override
+    public MachineProvisioningLocation<MachineLocation> newSubLocation(Map<?, ?> newFlags) {
+        throw new UnsupportedOperationException("Partitions cannot be nested");
+    }
+
+    @Override
+    public Map<String,Object> getProvisioningFlags(Collection<String> tags) {
+        return Maps.newLinkedHashMap();
+    }
+
+    @Override
+    public ToStringHelper string() {
+        return super.string()
+                .add("partition", getPartitionName())
+                .add("quota", getConfig(QUOTA))
+                .add("burst", getBurstLimit());
+    }
+
+}
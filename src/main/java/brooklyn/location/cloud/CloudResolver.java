@@ -23,6 +23,8 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.annotation.Nullable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -112,6 +114,7 @@ public class CloudResolver implements EnableableLocationResolver {
 
         Map<String, Object> filteredProperties = new LocationPropertiesFromBrooklynProperties().getLocationProperties(CLOUD, namedLocation, properties);
         MutableMap<String, Object> flags = MutableMap.<String, Object>builder().putAll(filteredProperties).putAll(locationFlags).build();
+        Object traceContext = flags.remove(TraceSpan.CONTEXT_FLAG);
 
         String environmentId = matcher.group(2);
         if (Strings.isBlank(environmentId)) {
@@ -147,6 +150,23 @@ public class CloudResolver implements EnableableLocationResolver {
         final String locationName =  name.toString();
         CloudEnvironment infrastructure = (CloudEnvironment) managementContext.getEntityManager().getEntity(environmentId);
 
+        CloudLocation cloud = (infrastructure == null) ? null : infrastructure.getDynamicLocation();
+        TraceSpan span = (cloud == null ? ProvisioningTracer.DISABLED : cloud.getTracer()).start("cloud.resolve", traceContext)
+                .attribute("cloud.spec", spec)
+                .attribute("cloud.environment.id", environmentId)
+                .attribute("cloud.machine.id", machineId);
+        try {
+            return newLocation(infrastructure, machineId, flags, locationName, displayName);
+        } catch (RuntimeException e) {
+            span.error(e);
+            throw e;
+        } finally {
+            span.close();
+        }
+    }
+
+    private Location newLocation(CloudEnvironment infrastructure, @Nullable String machineId, Map<String, Object> flags,
+            String locationName, String displayName) {
         if (machineId == null) {
             LocationSpec<CloudLocation> locationSpec = LocationSpec.create(CloudLocation.class)
                     .configure(flags)
@@ -157,6 +177,14 @@ public class CloudResolver implements EnableableLocationResolver {
         } else {
             CloudMachine machine = (CloudMachine) managementContext.getEntityManager().getEntity(machineId);
 
+            // Compact registry definitions carry no flags; the shared flags are inherited from the parent
+            if (!flags.containsKey("machine")) {
+                flags = MutableMap.<String, Object>builder()
+                        .putAll(flags)
+                        .put("machine", machine.getAttribute(CloudMachine.SSH_MACHINE))
+                        .build();
+            }
+
             LocationSpec<CloudMachineLocation> locationSpec = LocationSpec.create(CloudMachineLocation.class)
                     .parent(infrastructure.getDynamicLocation())
                     .configure(flags)
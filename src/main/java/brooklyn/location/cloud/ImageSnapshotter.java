@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import brooklyn.location.basic.SshMachineLocation;
+
+/**
+ * Creates machine images from customised machines, so later machines can boot from them.
+ */
+public interface ImageSnapshotter {
+
+    /**
+     * Snapshot the machine into a new image, blocking until the image is available.
+     *
+     * @return the id of the new image, suitable for the {@code imageId} provisioning flag
+     */
+    String snapshot(SshMachineLocation machine, String name);
+
+    /**
+     * Delete an image created by {@link #snapshot(SshMachineLocation, String)}.
+     */
+    void delete(String imageId);
+
+}
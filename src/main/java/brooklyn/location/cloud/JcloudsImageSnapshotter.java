@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.ImageTemplate;
+import org.jclouds.compute.extensions.ImageExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.jclouds.JcloudsLocation;
+import brooklyn.location.jclouds.JcloudsSshMachineLocation;
+import brooklyn.util.exceptions.Exceptions;
+
+import com.google.common.base.Optional;
+
+/**
+ * Snapshots jclouds nodes using the provider {@link ImageExtension}.
+ */
+public class JcloudsImageSnapshotter implements ImageSnapshotter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JcloudsImageSnapshotter.class);
+
+    private final JcloudsLocation location;
+
+    public JcloudsImageSnapshotter(JcloudsLocation location) {
+        this.location = checkNotNull(location, "location");
+    }
+
+    @Override
+    public String snapshot(SshMachineLocation machine, String name) {
+        if (!(machine instanceof JcloudsSshMachineLocation)) {
+            throw new IllegalArgumentException("Cannot snapshot non-jclouds machine " + machine);
+        }
+        String nodeId = ((JcloudsSshMachineLocation) machine).getNode().getId();
+        ImageExtension extension = getImageExtension();
+
+        LOG.info("Creating image {} from node {}", name, nodeId);
+        try {
+            ImageTemplate template = extension.buildImageTemplateFromNode(name, nodeId);
+            Image image = extension.createImage(template).get();
+            LOG.info("Created image {} from node {}", image.getId(), nodeId);
+            return image.getId();
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    @Override
+    public void delete(String imageId) {
+        LOG.info("Deleting image {}", imageId);
+        getImageExtension().deleteImage(imageId);
+    }
+
+    private ImageExtension getImageExtension() {
+        ComputeService compute = location.getComputeService();
+        Optional<ImageExtension> extension = compute.getImageExtension();
+        if (!extension.isPresent()) {
+            throw new UnsupportedOperationException("Provider for " + location + " does not support creating images");
+        }
+        return extension.get();
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.jclouds.JcloudsLocation;
+import brooklyn.location.jclouds.JcloudsSshMachineLocation;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.net.Networking;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Suspends and resumes jclouds nodes; on EC2 this stops and starts EBS-backed instances.
+ * <p>
+ * A node without a fixed address, such as an EC2 instance without an Elastic IP, comes back
+ * with a new one, so resuming updates the machine location with the new address.
+ */
+public class JcloudsMachineSuspender implements MachineSuspender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JcloudsMachineSuspender.class);
+
+    private final JcloudsLocation location;
+
+    public JcloudsMachineSuspender(JcloudsLocation location) {
+        this.location = checkNotNull(location, "location");
+    }
+
+    @Override
+    public void suspend(SshMachineLocation machine) {
+        String nodeId = getNodeId(machine);
+        LOG.info("Suspending node {}", nodeId);
+        location.getComputeService().suspendNode(nodeId);
+    }
+
+    @Override
+    public void resume(SshMachineLocation machine) {
+        String nodeId = getNodeId(machine);
+        LOG.info("Resuming node {}", nodeId);
+        ComputeService compute = location.getComputeService();
+        compute.resumeNode(nodeId);
+
+        NodeMetadata node = compute.getNodeMetadata(nodeId);
+        if (node == null) {
+            throw new IllegalStateException("Node " + nodeId + " not found after resuming");
+        }
+        String address = machine.getAddress().getHostAddress();
+        if (node.getPublicAddresses().contains(address) || node.getPrivateAddresses().contains(address)) {
+            return;
+        }
+        String updated = Iterables.getFirst(node.getPublicAddresses(), Iterables.getFirst(node.getPrivateAddresses(), null));
+        if (updated == null) {
+            throw new IllegalStateException("Node " + nodeId + " resumed without an address");
+        }
+        LOG.info("Node {} resumed with address {}, was {}", new Object[] { nodeId, updated, address });
+        machine.configure(MutableMap.of("address", Networking.getInetAddressWithFixedName(updated), "node", node));
+        if (machine.getManagementContext() != null) {
+            machine.getManagementContext().getRebindManager().getChangeListener().onChanged(machine);
+        }
+    }
+
+    private static String getNodeId(SshMachineLocation machine) {
+        if (!(machine instanceof JcloudsSshMachineLocation)) {
+            throw new IllegalArgumentException("Cannot suspend non-jclouds machine " + machine);
+        }
+        return ((JcloudsSshMachineLocation) machine).getNode().getId();
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Objects;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, in the style of HdrHistogram.
+ * <p>
+ * Values are recorded in microseconds. Values below 32us are exact, and above that each
+ * power of two is split into sixteen buckets, so percentiles are within about 6%.
+ * Recording is a few atomic increments and never allocates.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int LINEAR = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int LINEAR_BITS = 5;
+    private static final int MAX_EXPONENT = 62;
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - LINEAR_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long duration, TimeUnit unit) {
+        long micros = Math.max(0l, unit.toMicros(duration));
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        long current;
+        while (micros > (current = max.get())) {
+            if (max.compareAndSet(current, micros)) break;
+        }
+    }
+
+    /** Record the time elapsed since a {@link System#nanoTime()} reading. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return max.get() / 1000d;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return getPercentileMillis(50);
+    }
+
+    @Override
+    public double getP95Millis() {
+        return getPercentileMillis(95);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return getPercentileMillis(99);
+    }
+
+    /**
+     * The latency at the given percentile, between 0 and 100, in milliseconds.
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0d;
+        long target = Math.max(1l, (long) Math.ceil(total * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get()) / 1000d;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0l);
+        }
+        count.set(0l);
+        max.set(0l);
+    }
+
+    static int bucket(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int mantissa = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - LINEAR_BITS) * SUB_BUCKETS + mantissa;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + LINEAR_BITS;
+        int mantissa = (bucket - LINEAR) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("count", getCount())
+                .add("p50", getPercentileMillis(50))
+                .add("p95", getPercentileMillis(95))
+                .add("p99", getPercentileMillis(99))
+                .add("max", getMaxMillis())
+                .toString();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.LocationDefinition;
+import brooklyn.location.LocationRegistry;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Batches updates to the {@link LocationRegistry} for cloud machine locations.
+ * <p>
+ * Definitions and removals are queued by definition id, so repeated updates for one machine
+ * between flushes are coalesced, and are applied together on one background thread.
+ */
+public class LocationRegistrar {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocationRegistrar.class);
+
+    private final LocationRegistry registry;
+    private final Object lock = new Object[0];
+    private final ScheduledExecutorService executor;
+
+    /* Queued definitions by id; a null value is a removal */
+    private Map<String, LocationDefinition> pending = Maps.newLinkedHashMap();
+
+    public LocationRegistrar(LocationRegistry registry, Duration period) {
+        this.registry = registry;
+        this.executor = Executors.newSingleThreadScheduledExecutor();
+        long millis = period.toMilliseconds();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void define(LocationDefinition definition) {
+        synchronized (lock) {
+            pending.put(definition.getId(), definition);
+        }
+    }
+
+    public void remove(String id) {
+        synchronized (lock) {
+            pending.put(id, null);
+        }
+    }
+
+    /**
+     * Apply the queued updates to the registry.
+     *
+     * @return the number of updates applied
+     */
+    public int flush() {
+        Map<String, LocationDefinition> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) return 0;
+            batch = pending;
+            pending = Maps.newLinkedHashMap();
+        }
+        for (Map.Entry<String, LocationDefinition> entry : batch.entrySet()) {
+            try {
+                if (entry.getValue() != null) {
+                    registry.updateDefinedLocation(entry.getValue());
+                } else {
+                    registry.removeDefinedLocation(entry.getKey());
+                }
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Failed to update registry for location {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Applied {} location registry updates", batch.size());
+        }
+        return batch.size();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        flush();
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Application;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.SoftwareProcess;
+import brooklyn.entity.cloud.CloudMachine;
+import brooklyn.entity.group.DynamicCluster;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.MachineLocation;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Reserves machines for the rest of an application when the first of its entities obtains a machine.
+ * <p>
+ * The entity tree is walked to count the machines still needed in the {@link CloudLocation},
+ * including the missing members of each cluster. That many idle machines are held back from the
+ * pool, and new machines are provisioned in the background for the remainder, a few at a time.
+ * Later obtains for the application take a reserved machine, waiting a short time for one being
+ * provisioned if necessary before provisioning their own. Reservations not taken within the time
+ * limit are returned to the pool or released, and the application may then be reserved for again.
+ */
+public class LookaheadReservations {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LookaheadReservations.class);
+
+    private final CloudLocation location;
+    private final int maxMachines;
+    private final long ttlMillis;
+    private final long maxWaitMillis;
+    private final Map<String, Reservation> reservations = Maps.newConcurrentMap();
+    /** Applications already looked ahead for, until their reservation deadline. */
+    private final ConcurrentMap<String, Long> seen = Maps.newConcurrentMap();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor();
+
+    public LookaheadReservations(CloudLocation location, int maxMachines, Duration ttl, int concurrency, Duration maxWait) {
+        this.location = location;
+        this.maxMachines = maxMachines;
+        this.ttlMillis = ttl.toMilliseconds();
+        this.maxWaitMillis = maxWait.toMilliseconds();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        long period = Math.max(1000l, ttlMillis / 4);
+        expiry.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expire(false);
+                } catch (Exception e) {
+                    LOG.warn("Error expiring machine reservations in " + LookaheadReservations.this.location, e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reserve machines for the rest of the entity's application, the first time it is seen.
+     */
+    public void lookahead(@Nullable Entity entity) {
+        if (entity == null) return;
+        Application application = entity.getApplication();
+        long deadline = System.currentTimeMillis() + ttlMillis;
+        if (application == null || seen.putIfAbsent(application.getId(), deadline) != null) return;
+
+        // The caller obtains its own machine
+        int needed = Math.min(maxMachines, countMachines(application, false) - 1);
+        if (needed <= 0) return;
+
+        final Reservation reservation = new Reservation(deadline);
+        reservations.put(application.getId(), reservation);
+        int idle = 0;
+        while (idle < needed) {
+            CloudMachine machine = location.reserveIdle(application);
+            if (machine == null) break;
+            reservation.add(machine.getDynamicLocation());
+            idle++;
+        }
+        for (int i = idle; i < needed; i++) {
+            reservation.provisioning();
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    MachineLocation machine = null;
+                    try {
+                        machine = location.obtainNew(Maps.newLinkedHashMap());
+                    } catch (Exception e) {
+                        Exceptions.propagateIfFatal(e);
+                        LOG.warn("Failed to provision reserved machine in {}: {}", location, e.getMessage());
+                    } finally {
+                        if (!reservation.provisioned(machine) && machine != null) {
+                            cancel(machine);
+                        }
+                    }
+                }
+            });
+        }
+        LOG.info("Reserved {} idle and {} new machines in {} for {}", new Object[] { idle, needed - idle, location, application });
+    }
+
+    /**
+     * Take a machine reserved for the entity's application.
+     * <p>
+     * Newly provisioned machines are only used when the flags do not ask for a particular image
+     * or hardware, since they were provisioned without them.
+     *
+     * @return the machine, now running the entity, or null if none are reserved
+     */
+    @Nullable
+    public MachineLocation take(@Nullable Entity entity, Map<?,?> flags) {
+        if (entity == null || reservations.isEmpty()) return null;
+        String applicationId = entity.getApplicationId();
+        Reservation reservation = reservations.get(applicationId);
+        if (reservation == null) return null;
+
+        while (true) {
+            MachineLocation machine = reservation.take(isGeneric(flags), maxWaitMillis);
+            if (machine == null) {
+                if (reservation.isFinished()) reservations.remove(applicationId);
+                return null;
+            }
+            if (!(machine instanceof CloudMachineLocation)) return machine;
+            CloudMachine owner = ((CloudMachineLocation) machine).getOwner();
+            if (location.claimReserved(owner, entity)) return machine;
+        }
+    }
+
+    /**
+     * Release reservations past their time limit, or all of them, and forget the applications they were for.
+     */
+    public void expire(boolean all) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : seen.entrySet()) {
+            if (all || entry.getValue() < now) {
+                seen.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+            Reservation reservation = entry.getValue();
+            if (all || reservation.getDeadline() < now) {
+                reservations.remove(entry.getKey());
+                List<MachineLocation> unused = reservation.close();
+                if (unused.size() > 0) {
+                    LOG.info("Releasing {} unused machines reserved in {} for application {}", new Object[] { unused.size(), location, entry.getKey() });
+                }
+                for (MachineLocation machine : unused) {
+                    cancel(machine);
+                }
+            }
+        }
+    }
+
+    public int getReservedCount() {
+        int count = 0;
+        for (Reservation reservation : reservations.values()) {
+            count += reservation.size();
+        }
+        return count;
+    }
+
+    public void close() {
+        expiry.shutdownNow();
+        executor.shutdownNow();
+        expire(true);
+    }
+
+    private void cancel(MachineLocation machine) {
+        try {
+            if (machine instanceof CloudMachineLocation) {
+                location.unreserve(((CloudMachineLocation) machine).getOwner());
+            } else {
+                location.release(machine);
+            }
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Failed to release reserved machine {} in {}: {}", new Object[] { machine, location, e.getMessage() });
+        }
+    }
+
+    /**
+     * The number of machines still to be obtained in the location for the entity and its descendants.
+     * <p>
+     * Entities count if they are software processes without a machine yet, and clusters count
+     * each member still to be created up to their initial size.
+     */
+    protected int countMachines(Entity entity, boolean inherited) {
+        boolean targeted = entity.getLocations().isEmpty() ? inherited : isTargeted(entity.getLocations());
+        int count = 0;
+        if (targeted) {
+            if (entity instanceof SoftwareProcess && !hasMachine(entity)) {
+                count++;
+            }
+            if (entity instanceof DynamicCluster) {
+                EntitySpec<?> spec = entity.getConfig(DynamicCluster.MEMBER_SPEC);
+                if (spec != null && SoftwareProcess.class.isAssignableFrom(spec.getType())) {
+                    int initial = getOrZero(entity, DynamicCluster.INITIAL_SIZE);
+                    count += Math.max(0, initial - ((DynamicCluster) entity).getMembers().size());
+                }
+            }
+        }
+        for (Entity child : entity.getChildren()) {
+            count += countMachines(child, targeted);
+        }
+        return count;
+    }
+
+    private boolean isTargeted(Collection<? extends Location> locations) {
+        for (Location candidate : locations) {
+            for (Location ancestor = candidate; ancestor != null; ancestor = ancestor.getParent()) {
+                if (ancestor.equals(location)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasMachine(Entity entity) {
+        for (Location candidate : entity.getLocations()) {
+            if (candidate instanceof MachineLocation) return true;
+        }
+        return false;
+    }
+
+    private static int getOrZero(Entity entity, ConfigKey<Integer> key) {
+        Integer value = entity.getConfig(key);
+        return (value == null) ? 0 : value;
+    }
+
+    /** Whether the flags can be met by a machine provisioned with the default template. */
+    private static boolean isGeneric(Map<?,?> flags) {
+        for (ConfigKey<?> key : TemplateCache.TEMPLATE_KEYS) {
+            if (flags.get(key.getName()) != null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The machines reserved for one application, and the number still being provisioned.
+     */
+    private static class Reservation {
+
+        private final long deadline;
+        private final List<MachineLocation> idle = Lists.newLinkedList();
+        private final List<MachineLocation> fresh = Lists.newLinkedList();
+        private int pending = 0;
+        private boolean closed = false;
+
+        Reservation(long deadline) {
+            this.deadline = deadline;
+        }
+
+        long getDeadline() {
+            return deadline;
+        }
+
+        synchronized void add(CloudMachineLocation machine) {
+            idle.add(machine);
+        }
+
+        synchronized void provisioning() {
+            pending++;
+        }
+
+        /**
+         * Add a newly provisioned machine, or null if provisioning failed.
+         *
+         * @return false if the reservation has closed, so the machine must be released
+         */
+        synchronized boolean provisioned(@Nullable MachineLocation machine) {
+            pending--;
+            notifyAll();
+            if (machine == null || closed) return false;
+            fresh.add(machine);
+            return true;
+        }
+
+        /**
+         * Take a reserved machine, waiting up to the limit for one being provisioned if that is all that remains.
+         */
+        @Nullable
+        synchronized MachineLocation take(boolean useFresh, long maxWaitMillis) {
+            long until = Math.min(deadline, System.currentTimeMillis() + maxWaitMillis);
+            while (true) {
+                if (!idle.isEmpty()) return idle.remove(0);
+                if (!useFresh || closed) return null;
+                if (!fresh.isEmpty()) return fresh.remove(0);
+                long remaining = until - System.currentTimeMillis();
+                if (pending == 0 || remaining <= 0) return null;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ie) {
+                    throw Exceptions.propagate(ie);
+                }
+            }
+        }
+
+        synchronized boolean isFinished() {
+            return idle.isEmpty() && fresh.isEmpty() && pending == 0;
+        }
+
+        synchronized int size() {
+            return idle.size() + fresh.size() + pending;
+        }
+
+        synchronized List<MachineLocation> close() {
+            closed = true;
+            notifyAll();
+            List<MachineLocation> unused = ImmutableList.<MachineLocation>builder().addAll(idle).addAll(fresh).build();
+            idle.clear();
+            fresh.clear();
+            return unused;
+        }
+    }
+
+}
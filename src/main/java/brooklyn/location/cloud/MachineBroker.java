@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import brooklyn.entity.cloud.CloudEnvironment;
+import brooklyn.location.MachineProvisioningLocation;
+import brooklyn.location.jclouds.JcloudsLocationConfig;
+import brooklyn.management.ManagementContext;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
+
+/**
+ * Finds sibling {@link CloudEnvironment}s that can lend idle machines to a {@link CloudLocation}.
+ * <p>
+ * Environments are compatible when they share a {@link CloudEnvironment#LENDING_GROUP lending group},
+ * or otherwise when their machine type and primary provisioner provider, region and hardware match.
+ * <p>
+ * Environments {@link #register(CloudEnvironment) register} when they start or rebind, so finding
+ * lenders only looks at the running environments in the same management context.
+ */
+public final class MachineBroker {
+
+    private static final ConcurrentMap<ManagementContext, Set<CloudEnvironment>> ENVIRONMENTS = new MapMaker().weakKeys().makeMap();
+
+    private MachineBroker() { }
+
+    public static void register(CloudEnvironment environment) {
+        ManagementContext managementContext = environment.getManagementContext();
+        Set<CloudEnvironment> environments = ENVIRONMENTS.get(managementContext);
+        if (environments == null) {
+            ENVIRONMENTS.putIfAbsent(managementContext, Collections.newSetFromMap(Maps.<CloudEnvironment, Boolean>newConcurrentMap()));
+            environments = ENVIRONMENTS.get(managementContext);
+        }
+        environments.add(environment);
+    }
+
+    public static void unregister(CloudEnvironment environment) {
+        Set<CloudEnvironment> environments = ENVIRONMENTS.get(environment.getManagementContext());
+        if (environments != null) environments.remove(environment);
+    }
+
+    /**
+     * The registered environments in the management context.
+     */
+    public static List<CloudEnvironment> getEnvironments(ManagementContext managementContext) {
+        Set<CloudEnvironment> environments = ENVIRONMENTS.get(managementContext);
+        return (environments == null) ? ImmutableList.<CloudEnvironment>of() : ImmutableList.copyOf(environments);
+    }
+
+    /**
+     * Locations of compatible environments that lend machines, those with most idle machines first.
+     */
+    public static List<CloudLocation> findLenders(CloudLocation borrower) {
+        CloudEnvironment environment = borrower.getOwner();
+        String key = compatibilityKey(environment);
+        ManagementContext managementContext = environment.getManagementContext();
+
+        List<CloudLocation> lenders = Lists.newArrayList();
+        for (CloudEnvironment sibling : getEnvironments(managementContext)) {
+            if (sibling.getId().equals(environment.getId())) continue;
+
+            CloudLocation location = sibling.getDynamicLocation();
+            if (location != null && Boolean.TRUE.equals(sibling.getConfig(CloudEnvironment.LEND_IDLE_MACHINES))
+                    && key.equals(compatibilityKey(sibling))) {
+                lenders.add(location);
+            }
+        }
+        Collections.sort(lenders, new Ordering<CloudLocation>() {
+            @Override
+            public int compare(@Nullable CloudLocation left, @Nullable CloudLocation right) {
+                return Ints.compare(right.getIdleCount(), left.getIdleCount());
+            }
+        });
+        return lenders;
+    }
+
+    public static String compatibilityKey(CloudEnvironment environment) {
+        String group = environment.getConfig(CloudEnvironment.LENDING_GROUP);
+        if (group != null) return "group:" + group;
+
+        CloudLocation location = environment.getDynamicLocation();
+        MachineProvisioningLocation<?> provisioner = (location == null) ? null : location.getProvisioner();
+        if (provisioner == null) return "environment:" + environment.getId();
+
+        return Joiner.on(':').useForNull("").join(
+                environment.getConfig(CloudEnvironment.CLOUD_MACHINE_SPEC).getType().getName(),
+                provisioner.getClass().getName(),
+                Objects.firstNonNull(provisioner.getConfig(JcloudsLocationConfig.CLOUD_PROVIDER), provisioner.getId()),
+                provisioner.getConfig(JcloudsLocationConfig.CLOUD_REGION_ID),
+                provisioner.getConfig(JcloudsLocationConfig.HARDWARE_ID));
+    }
+
+}
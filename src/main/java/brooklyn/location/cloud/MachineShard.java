@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.cloud.CloudMachine;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+
+/**
+ * An independently locked index of the idle machines in one machine cluster, or owned by one partition.
+ * <p>
+ * The index is updated incrementally from sensor events and reads the current machine
+ * attributes under its lock, so late or reordered events cannot leave it inconsistent.
+ */
+public class MachineShard {
+
+    private final int index;
+    private final String partition;
+    private final Object lock = new Object[0];
+    private final Set<CloudMachine> idle = Sets.newLinkedHashSet();
+    private final Set<CloudMachine> retired = Sets.newHashSet();
+    private final Set<CloudMachine> reserved = Sets.newHashSet();
+
+    public MachineShard(int index) {
+        this(index, null);
+    }
+
+    /**
+     * An index of idle machines owned by the named partition, or unowned machines if null.
+     */
+    public MachineShard(int index, @Nullable String partition) {
+        this.index = index;
+        this.partition = partition;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Re-check whether the machine is idle and update the index.
+     */
+    public void update(CloudMachine machine) {
+        synchronized (lock) {
+            if (isIdle(machine) && !retired.contains(machine) && !reserved.contains(machine)) {
+                idle.add(machine);
+            } else {
+                idle.remove(machine);
+            }
+        }
+    }
+
+    public void remove(CloudMachine machine) {
+        synchronized (lock) {
+            idle.remove(machine);
+            retired.remove(machine);
+            reserved.remove(machine);
+        }
+    }
+
+    /**
+     * Take an idle machine out of the index for good, so it can be stopped.
+     *
+     * @return false if the machine is no longer idle
+     */
+    public boolean retire(CloudMachine machine) {
+        synchronized (lock) {
+            if (!idle.remove(machine)) return false;
+            retired.add(machine);
+            return true;
+        }
+    }
+
+    /**
+     * Claim the best idle machine for the entity.
+     *
+     * @return the machine, now running the entity, or null if there are no idle machines
+     */
+    @Nullable
+    public CloudMachine claim(Ordering<? super CloudMachine> ordering, @Nullable Entity entity) {
+        return claim(ordering, entity, 0);
+    }
+
+    /**
+     * Claim the best idle machine for the entity, as long as more than {@code reserve} are idle.
+     */
+    @Nullable
+    public CloudMachine claim(Ordering<? super CloudMachine> ordering, @Nullable Entity entity, int reserve) {
+        synchronized (lock) {
+            if (idle.size() <= reserve) return null;
+
+            CloudMachine best = ordering.min(idle);
+            idle.remove(best);
+            best.setRunningEntity(entity);
+            return best;
+        }
+    }
+
+    /**
+     * Hold the best idle machine back from other claims until it is {@link #claimReserved(CloudMachine, Entity) claimed}
+     * or {@link #unreserve(CloudMachine) returned}.
+     *
+     * @return the machine, or null if there are no idle machines
+     */
+    @Nullable
+    public CloudMachine reserve(Ordering<? super CloudMachine> ordering) {
+        synchronized (lock) {
+            if (idle.isEmpty()) return null;
+
+            CloudMachine best = ordering.min(idle);
+            idle.remove(best);
+            reserved.add(best);
+            return best;
+        }
+    }
+
+    /**
+     * Hold a particular idle machine back from other claims, as for {@link #reserve(Ordering)}.
+     *
+     * @return false if the machine is no longer idle
+     */
+    public boolean hold(CloudMachine machine) {
+        synchronized (lock) {
+            if (!idle.remove(machine)) return false;
+            reserved.add(machine);
+            return true;
+        }
+    }
+
+    /**
+     * Run the entity on a reserved machine.
+     *
+     * @return false if the machine is no longer reserved
+     */
+    public boolean claimReserved(CloudMachine machine, @Nullable Entity entity) {
+        synchronized (lock) {
+            if (!reserved.remove(machine)) return false;
+            machine.setRunningEntity(entity);
+            return true;
+        }
+    }
+
+    /**
+     * Return an unused reserved machine to the idle machines.
+     */
+    public void unreserve(CloudMachine machine) {
+        synchronized (lock) {
+            reserved.remove(machine);
+        }
+        update(machine);
+    }
+
+    public int getIdleCount() {
+        synchronized (lock) {
+            return idle.size();
+        }
+    }
+
+    public List<CloudMachine> getIdleMachines() {
+        synchronized (lock) {
+            return ImmutableList.copyOf(idle);
+        }
+    }
+
+    protected boolean isIdle(Entity machine) {
+        return Boolean.TRUE.equals(machine.getAttribute(CloudMachine.SERVICE_UP))
+                && machine.getAttribute(CloudMachine.ENTITY) == null
+                && Objects.equal(partition, machine.getAttribute(CloudMachine.PARTITION));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("index", index)
+                .add("partition", partition)
+                .add("idle", getIdleCount())
+                .toString();
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import brooklyn.location.basic.SshMachineLocation;
+
+/**
+ * Suspends machines while keeping their disks, so they can be resumed faster than a new machine boots.
+ */
+public interface MachineSuspender {
+
+    /**
+     * Suspend the machine, blocking until it has stopped.
+     */
+    void suspend(SshMachineLocation machine);
+
+    /**
+     * Resume a machine suspended by {@link #suspend(SshMachineLocation)}, blocking until it is running.
+     * <p>
+     * If the machine comes back on a different address the location is updated with it.
+     */
+    void resume(SshMachineLocation machine);
+
+}
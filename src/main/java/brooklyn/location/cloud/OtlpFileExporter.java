@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.FileWriteMode;
+import com.google.common.io.Files;
+
+/**
+ * Writes finished {@link TraceSpan}s to a rolling local file in the OTLP JSON encoding.
+ * <p>
+ * Spans are queued without blocking and written once a second by a background thread, each batch
+ * as one {@code ExportTraceServiceRequest} object per line, as read by the OpenTelemetry collector
+ * file receiver. Spans are dropped if the queue is full. When the file reaches its maximum size it
+ * is renamed with a numbered suffix, keeping at most {@code maxFiles} old files.
+ */
+public class OtlpFileExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OtlpFileExporter.class);
+
+    public static final String SERVICE_NAME = "brooklyn-cloud";
+    public static final int QUEUE_SIZE = 10000;
+
+    private final File file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final BlockingQueue<TraceSpan> queue = new ArrayBlockingQueue<TraceSpan>(QUEUE_SIZE);
+    private final AtomicLong dropped = new AtomicLong();
+    private final ScheduledExecutorService executor;
+    private Writer writer;
+
+    public OtlpFileExporter(File file, long maxFileSize, int maxFiles) {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(1, maxFiles);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null) dir.mkdirs();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "brooklyn-cloud-trace-exporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void offer(TraceSpan span) {
+        if (!queue.offer(span)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write the queued spans as one line.
+     */
+    public synchronized void flush() {
+        List<TraceSpan> batch = Lists.newArrayList();
+        queue.drainTo(batch);
+        if (batch.isEmpty()) return;
+        try {
+            if (writer == null) {
+                writer = Files.asCharSink(file, Charsets.UTF_8, FileWriteMode.APPEND).openStream();
+            }
+            writer.write(encode(batch));
+            writer.write('\n');
+            writer.flush();
+            if (file.length() >= maxFileSize) {
+                roll();
+            }
+        } catch (IOException ioe) {
+            LOG.warn("Failed to write {} trace spans to {}: {}", new Object[] { batch.size(), file, ioe.getMessage() });
+        }
+    }
+
+    private void roll() throws IOException {
+        closeWriter();
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists()) {
+                Files.move(older, new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        Files.move(file, new File(file.getPath() + ".1"));
+    }
+
+    public synchronized void close() {
+        executor.shutdownNow();
+        flush();
+        closeWriter();
+        if (dropped.get() > 0) {
+            LOG.info("Dropped {} trace spans for {} when the queue was full", dropped.get(), file);
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ioe) {
+                LOG.debug("Error closing trace file {}: {}", file, ioe.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    static String encode(List<TraceSpan> spans) {
+        StringBuilder json = new StringBuilder(256 * spans.size());
+        json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        attribute(json, "service.name", SERVICE_NAME);
+        json.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"brooklyn.location.cloud\"},\"spans\":[");
+        for (int i = 0; i < spans.size(); i++) {
+            TraceSpan span = spans.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"traceId\":");
+            string(json, span.getTraceId());
+            json.append(",\"spanId\":");
+            string(json, span.getSpanId());
+            if (span.getParentSpanId() != null) {
+                json.append(",\"parentSpanId\":");
+                string(json, span.getParentSpanId());
+            }
+            json.append(",\"name\":");
+            string(json, span.getName());
+            json.append(",\"kind\":1,\"startTimeUnixNano\":\"").append(span.getStartEpochNanos())
+                    .append("\",\"endTimeUnixNano\":\"").append(span.getEndEpochNanos()).append("\",\"attributes\":[");
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : span.getAttributes().entrySet()) {
+                if (!first) json.append(',');
+                first = false;
+                attribute(json, entry.getKey(), entry.getValue());
+            }
+            json.append("],\"status\":");
+            if (span.getError() == null) {
+                json.append("{\"code\":1}");
+            } else {
+                json.append("{\"code\":2,\"message\":");
+                string(json, span.getError());
+                json.append('}');
+            }
+            json.append('}');
+        }
+        json.append("]}]}]}");
+        return json.toString();
+    }
+
+    private static void attribute(StringBuilder json, String key, Object value) {
+        json.append("{\"key\":");
+        string(json, key);
+        json.append(",\"value\":{");
+        if (value instanceof Boolean) {
+            json.append("\"boolValue\":").append(value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            json.append("\"intValue\":\"").append(value).append('"');
+        } else if (value instanceof Number) {
+            json.append("\"doubleValue\":").append(value);
+        } else {
+            json.append("\"stringValue\":");
+            string(json, String.valueOf(value));
+        }
+        json.append("}}");
+    }
+
+    private static void string(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"': json.append("\\\""); break;
+            case '\\': json.append("\\\\"); break;
+            case '\n': json.append("\\n"); break;
+            case '\r': json.append("\\r"); break;
+            case '\t': json.append("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+        json.append('"');
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.FileWriteMode;
+import com.google.common.io.Files;
+
+/**
+ * A compact, incremental log of the {@link CloudLocation} pool state that is not held in entity sensors.
+ * <p>
+ * Every change is journalled locally. The same state is checkpointed into the persisted location
+ * periodically rather than on every change, for management nodes that rebind without the journal.
+ * <p>
+ * Each change is appended as one tab separated line. Every {@code checkpointEvery} changes the
+ * current state is written to a snapshot file and the log is truncated, so loading on rebind
+ * reads one snapshot and a short tail of changes.
+ */
+public class PoolJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PoolJournal.class);
+
+    public static final String OBTAIN = "obtain";
+    public static final String RELEASE = "release";
+    public static final String BORROW = "borrow";
+    public static final String RETURN = "return";
+    public static final String TENANT = "tenant";
+
+    private static final Joiner TAB_JOINER = Joiner.on('\t').useForNull("");
+    private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+
+    /**
+     * Pool state rebuilt from the journal: machine location ids mapped to provisioner or lender location ids,
+     * and to the ids of the entities running on obtained machines.
+     */
+    public static class State {
+        private final Map<String, String> obtained = Maps.newLinkedHashMap();
+        private final Map<String, String> borrowed = Maps.newLinkedHashMap();
+        private final Map<String, String> tenants = Maps.newLinkedHashMap();
+
+        public static State of(@Nullable Map<String, String> obtained, @Nullable Map<String, String> borrowed, @Nullable Map<String, String> tenants) {
+            State state = new State();
+            if (obtained != null) state.obtained.putAll(obtained);
+            if (borrowed != null) state.borrowed.putAll(borrowed);
+            if (tenants != null) state.tenants.putAll(tenants);
+            return state;
+        }
+
+        public Map<String, String> getObtained() { return ImmutableMap.copyOf(obtained); }
+        public Map<String, String> getBorrowed() { return ImmutableMap.copyOf(borrowed); }
+        public Map<String, String> getTenants() { return ImmutableMap.copyOf(tenants); }
+
+        void apply(List<String> entry) {
+            String op = entry.get(0);
+            String id = entry.get(1);
+            String other = entry.size() > 2 && entry.get(2).length() > 0 ? entry.get(2) : null;
+            if (OBTAIN.equals(op)) {
+                obtained.put(id, other);
+            } else if (RELEASE.equals(op)) {
+                obtained.remove(id);
+                tenants.remove(id);
+            } else if (BORROW.equals(op)) {
+                borrowed.put(id, other);
+            } else if (RETURN.equals(op)) {
+                borrowed.remove(id);
+            } else if (TENANT.equals(op)) {
+                if (other != null) tenants.put(id, other);
+            } else {
+                LOG.warn("Ignoring unknown pool journal entry {}", entry);
+            }
+        }
+    }
+
+    private final File snapshot;
+    private final File log;
+    private final int checkpointEvery;
+    private final State state = new State();
+    private Writer writer;
+    private int changes = 0;
+
+    public PoolJournal(File dir, String name, int checkpointEvery) {
+        dir.mkdirs();
+        this.snapshot = new File(dir, name + ".snapshot");
+        this.log = new File(dir, name + ".log");
+        this.checkpointEvery = Math.max(1, checkpointEvery);
+    }
+
+    /**
+     * Whether there is a snapshot or log to load.
+     */
+    public boolean exists() {
+        return snapshot.exists() || log.exists();
+    }
+
+    /**
+     * Read the snapshot and replay the log, in bulk.
+     */
+    public synchronized State load() {
+        try {
+            for (File file : new File[] { snapshot, log }) {
+                if (file.exists()) {
+                    for (String line : Files.readLines(file, Charsets.UTF_8)) {
+                        if (line.length() > 0) state.apply(Lists.newArrayList(TAB_SPLITTER.split(line)));
+                    }
+                }
+            }
+        } catch (IOException ioe) {
+            throw Exceptions.propagate(ioe);
+        }
+        LOG.debug("Loaded pool journal {}: {} obtained, {} borrowed", new Object[] { log, state.obtained.size(), state.borrowed.size() });
+        return state;
+    }
+
+    public synchronized void append(String op, String id, String other) {
+        List<String> entry = Lists.newArrayList(op, id, other == null ? "" : other);
+        state.apply(entry);
+        try {
+            if (writer == null) {
+                writer = Files.asCharSink(log, Charsets.UTF_8, FileWriteMode.APPEND).openStream();
+            }
+            writer.write(TAB_JOINER.join(entry));
+            writer.write('\n');
+            writer.flush();
+            if (++changes >= checkpointEvery) {
+                checkpoint();
+            }
+        } catch (IOException ioe) {
+            LOG.warn("Failed to write pool journal {}: {}", log, ioe.getMessage());
+        }
+    }
+
+    /**
+     * Write the current state to the snapshot file and truncate the log.
+     */
+    public synchronized void checkpoint() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<String, String> entry : state.obtained.entrySet()) {
+            lines.append(TAB_JOINER.join(OBTAIN, entry.getKey(), entry.getValue())).append('\n');
+        }
+        for (Map.Entry<String, String> entry : state.borrowed.entrySet()) {
+            lines.append(TAB_JOINER.join(BORROW, entry.getKey(), entry.getValue())).append('\n');
+        }
+        for (Map.Entry<String, String> entry : state.tenants.entrySet()) {
+            lines.append(TAB_JOINER.join(TENANT, entry.getKey(), entry.getValue())).append('\n');
+        }
+        File temp = new File(snapshot.getPath() + ".tmp");
+        Files.write(lines, temp, Charsets.UTF_8);
+        Files.move(temp, snapshot);
+
+        close();
+        Files.write("", log, Charsets.UTF_8);
+        changes = 0;
+    }
+
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ioe) {
+                LOG.debug("Error closing pool journal {}: {}", log, ioe.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Remove the journal files, when the pool is deleted.
+     */
+    public synchronized void delete() {
+        close();
+        snapshot.delete();
+        log.delete();
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import brooklyn.location.MachineProvisioningLocation;
+import brooklyn.location.basic.SshMachineLocation;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Objects.ToStringHelper;
+import com.google.common.base.Ticker;
+
+/**
+ * Observed behaviour of one provisioner, used to route new machine requests.
+ * <p>
+ * Latency is an exponentially weighted moving average of obtains. A failed obtain counts
+ * its elapsed time but never lowers the average, so failing fast does not make a region
+ * look quick. Until a provisioner has been sampled it is scored with a prior latency
+ * supplied by the caller. Capacity errors decay with a fixed half life so a region
+ * recovers once it stops failing.
+ */
+public class ProvisionerStats {
+
+    /** Weight of the latest sample in the latency average. */
+    public static final double LATENCY_WEIGHT = 0.3d;
+
+    /** Half life for capacity errors. */
+    public static final long ERROR_HALF_LIFE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** Score multiplier for each recent capacity error. */
+    public static final double ERROR_PENALTY = 4d;
+
+    private final MachineProvisioningLocation<SshMachineLocation> provisioner;
+    private final Ticker ticker;
+
+    private double latencyMillis = 0d;
+    private long samples = 0l;
+    private long successes = 0l;
+    private double errors = 0d;
+    private long errorsUpdated;
+
+    public ProvisionerStats(MachineProvisioningLocation<SshMachineLocation> provisioner) {
+        this(provisioner, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    ProvisionerStats(MachineProvisioningLocation<SshMachineLocation> provisioner, Ticker ticker) {
+        this.provisioner = checkNotNull(provisioner, "provisioner");
+        this.ticker = checkNotNull(ticker, "ticker");
+        this.errorsUpdated = ticker.read();
+    }
+
+    public MachineProvisioningLocation<SshMachineLocation> getProvisioner() {
+        return provisioner;
+    }
+
+    public synchronized void success(long nanos) {
+        sample(TimeUnit.NANOSECONDS.toMillis(nanos));
+        successes++;
+    }
+
+    /**
+     * A failed obtain that took the given time.
+     */
+    public synchronized void failure(long nanos) {
+        sample(Math.max(TimeUnit.NANOSECONDS.toMillis(nanos), latencyMillis));
+        failure();
+    }
+
+    /**
+     * A capacity error with no elapsed time, such as a machine rejected after it was obtained.
+     */
+    public synchronized void failure() {
+        decay();
+        errors += 1d;
+    }
+
+    private void sample(double millis) {
+        latencyMillis = (samples == 0) ? millis : (LATENCY_WEIGHT * millis) + ((1d - LATENCY_WEIGHT) * latencyMillis);
+        samples++;
+    }
+
+    /** Whether any obtain has succeeded, so the latency is a measured one. */
+    public synchronized boolean isSampled() {
+        return successes > 0;
+    }
+
+    public synchronized double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public synchronized double getErrors() {
+        decay();
+        return errors;
+    }
+
+    /**
+     * Lower scores are preferred.
+     *
+     * @param idle the idle machines from this provisioner
+     * @param priorLatencyMillis the latency assumed until this provisioner has been sampled;
+     *        a provisioner that has only failed is never assumed faster than this
+     */
+    public synchronized double score(int idle, double priorLatencyMillis) {
+        decay();
+        double latency = (successes == 0) ? Math.max(priorLatencyMillis, latencyMillis) : latencyMillis;
+        return (latency + 1d) * (1d + ERROR_PENALTY * errors) / (1d + idle);
+    }
+
+    private void decay() {
+        long now = ticker.read();
+        long elapsed = now - errorsUpdated;
+        if (elapsed > 0 && errors > 0d) {
+            errors *= Math.pow(0.5d, (double) elapsed / TimeUnit.MILLISECONDS.toNanos(ERROR_HALF_LIFE_MILLIS));
+        }
+        errorsUpdated = now;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return string().toString();
+    }
+
+    protected ToStringHelper string() {
+        return Objects.toStringHelper(this)
+                .add("provisioner", provisioner)
+                .add("latencyMillis", latencyMillis)
+                .add("successes", successes)
+                .add("errors", errors);
+    }
+
+}
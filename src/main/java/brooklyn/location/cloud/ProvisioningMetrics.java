@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Latency histograms for the provisioning path of one {@link CloudLocation}, split by outcome.
+ * <p>
+ * Each operation has a histogram of all its successful calls, named after the operation, and
+ * one per outcome, named {@code operation.outcome}. Failures are only recorded by outcome, so
+ * the operation percentiles are not skewed by fast failures. Histograms are registered as
+ * {@link LatencyHistogramMBean MBeans} once {@link #registerMBeans(String)} is called.
+ */
+public class ProvisioningMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProvisioningMetrics.class);
+
+    public static final String OBTAIN = "obtain";
+    public static final String RELEASE = "release";
+    public static final String MACHINE_START = "machine.start";
+    public static final String MACHINE_HIBERNATE = "machine.hibernate";
+    public static final String MACHINE_RESUME = "machine.resume";
+    public static final String MACHINE_BENCHMARK = "machine.benchmark";
+    public static final String LOCATION_CREATE = "location.create";
+    public static final String SENSOR_POLL = "sensor.poll";
+
+    /** Served from the idle pool, or returned to it on release. */
+    public static final String IDLE = "idle";
+    /** Served from, or returned to, a sibling environment. */
+    public static final String BORROWED = "borrowed";
+    /** Reserved ahead for the application by {@link LookaheadReservations}. */
+    public static final String RESERVED = "reserved";
+    /** Resumed from hibernation. */
+    public static final String RESUMED = "resumed";
+    /** Released for falling below the acceptance benchmark thresholds. */
+    public static final String REJECTED = "rejected";
+    /** Newly provisioned, or released to the provisioner. */
+    public static final String FRESH = "fresh";
+    public static final String SUCCESS = "success";
+    public static final String FAILURE = "failure";
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = Maps.newConcurrentMap();
+    private volatile String objectNamePrefix;
+
+    /**
+     * Record the time since {@code startNanos} for an operation with the given outcome.
+     */
+    public void record(String operation, String outcome, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        if (!FAILURE.equals(outcome)) {
+            histogram(operation).record(elapsed, TimeUnit.NANOSECONDS);
+        }
+        histogram(operation + "." + outcome).record(elapsed, TimeUnit.NANOSECONDS);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+                register(name, created);
+            }
+        }
+        return histogram;
+    }
+
+    /** The histogram with the given name, or null if nothing has been recorded. */
+    @Nullable
+    public LatencyHistogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    public long getCount(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        return histogram == null ? 0l : histogram.getCount();
+    }
+
+    public double getPercentileMillis(String name, double percentile) {
+        LatencyHistogram histogram = histograms.get(name);
+        return histogram == null ? 0d : histogram.getPercentileMillis(percentile);
+    }
+
+    public double getMaxMillis(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        return histogram == null ? 0d : histogram.getMaxMillis();
+    }
+
+    /**
+     * Counts and percentiles for every histogram, by name.
+     */
+    public Map<String, Map<String, Object>> getSummary() {
+        ImmutableSortedMap.Builder<String, Map<String, Object>> summary = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            summary.put(entry.getKey(), ImmutableMap.<String, Object>of(
+                    "count", histogram.getCount(),
+                    "p50", histogram.getP50Millis(),
+                    "p95", histogram.getP95Millis(),
+                    "p99", histogram.getP99Millis(),
+                    "max", histogram.getMaxMillis()));
+        }
+        return summary.build();
+    }
+
+    /**
+     * Register the histograms with the platform MBean server under the given environment id.
+     */
+    public void registerMBeans(String environmentId) {
+        objectNamePrefix = "brooklyn.cloud:type=ProvisioningLatency,environment=" + ObjectName.quote(environmentId) + ",name=";
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            register(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void unregisterMBeans() {
+        String prefix = objectNamePrefix;
+        objectNamePrefix = null;
+        if (prefix == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (String name : histograms.keySet()) {
+            try {
+                ObjectName objectName = new ObjectName(prefix + name);
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.debug("Failed to unregister latency MBean {}: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    private void register(String name, LatencyHistogram histogram) {
+        String prefix = objectNamePrefix;
+        if (prefix == null) return;
+        try {
+            ObjectName objectName = new ObjectName(prefix + name);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(histogram, objectName);
+            }
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Failed to register latency MBean {}: {}", name, e.getMessage());
+        }
+    }
+
+}
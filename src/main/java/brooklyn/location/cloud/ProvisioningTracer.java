@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.io.File;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Strings;
+
+/**
+ * Starts {@link TraceSpan}s for the provisioning path and hands finished spans to an {@link OtlpFileExporter}.
+ * <p>
+ * Sampling is decided once per trace, when a span is started with no parent; spans nested in a
+ * sampled trace are always recorded, using the exporter of the nearest enabled tracer. The parent
+ * is the current span on the thread, then a span passed as a {@link TraceSpan#getContext() context},
+ * then the {@link TraceSpan#inherited() span of the submitting task}.
+ */
+public class ProvisioningTracer {
+
+    /** A tracer that starts unsampled spans, unless nested in a sampled trace. */
+    public static final ProvisioningTracer DISABLED = new ProvisioningTracer(null, 0d);
+
+    private static final Pattern TRACEPARENT = Pattern.compile("00-([0-9a-f]{32})-([0-9a-f]{16})-01");
+
+    private final OtlpFileExporter exporter;
+    private final double sampleRate;
+    private final Random random = new Random();
+
+    public ProvisioningTracer(@Nullable OtlpFileExporter exporter, double sampleRate) {
+        this.exporter = exporter;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * A tracer writing to a rolling file, or {@link #DISABLED} if no file is given or the sample rate is zero.
+     */
+    public static ProvisioningTracer create(@Nullable String file, double sampleRate, long maxFileSize, int maxFiles) {
+        if (Strings.isNullOrEmpty(file) || sampleRate <= 0d) return DISABLED;
+        return new ProvisioningTracer(new OtlpFileExporter(new File(file), maxFileSize, maxFiles), sampleRate);
+    }
+
+    public boolean isEnabled() {
+        return exporter != null;
+    }
+
+    /**
+     * Start a span, as a child of the current span on this thread or the span of the submitting task.
+     */
+    public TraceSpan start(String name) {
+        return start(name, null);
+    }
+
+    /**
+     * Start a span, as a child of the current span on this thread, or else the span with the given
+     * {@link TraceSpan#getContext() context}, or else the span of the submitting task.
+     */
+    public TraceSpan start(String name, @Nullable Object parentContext) {
+        TraceSpan parent = TraceSpan.current();
+        if (parent != null) {
+            if (!parent.isSampled()) {
+                return new TraceSpan(null, name, null, null, null);
+            }
+            ProvisioningTracer owner = isEnabled() ? this : parent.getTracer();
+            return new TraceSpan(owner, name, parent.getTraceId(), id(16), parent.getSpanId());
+        }
+        Matcher context = (parentContext == null) ? null : TRACEPARENT.matcher(parentContext.toString());
+        if (context != null && context.matches() && isEnabled()) {
+            return new TraceSpan(this, name, context.group(1), id(16), context.group(2));
+        }
+        TraceSpan inherited = TraceSpan.inherited();
+        if (inherited != null) {
+            ProvisioningTracer owner = isEnabled() ? this : inherited.getTracer();
+            return new TraceSpan(owner, name, inherited.getTraceId(), id(16), inherited.getSpanId());
+        }
+        if (isEnabled() && random.nextDouble() < sampleRate) {
+            return new TraceSpan(this, name, id(32), id(16), null);
+        }
+        return new TraceSpan(null, name, null, null, null);
+    }
+
+    void export(TraceSpan span) {
+        exporter.offer(span);
+    }
+
+    public void close() {
+        if (exporter != null) exporter.close();
+    }
+
+    /** A random lower case hex id of the given length. */
+    private String id(int length) {
+        StringBuilder id = new StringBuilder(length);
+        while (id.length() < length) {
+            String part = Long.toHexString(random.nextLong());
+            id.append(Strings.repeat("0", 16 - part.length())).append(part);
+        }
+        return id.substring(0, length);
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.List;
+
+import org.jclouds.aws.ec2.compute.AWSEC2TemplateOptions;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.options.TemplateOptions;
+
+import brooklyn.location.jclouds.BasicJcloudsLocationCustomizer;
+import brooklyn.location.jclouds.JcloudsLocation;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Launches machines into security groups by the ids cached in the {@link TemplateCache},
+ * so jclouds does not look the groups up by name on every provision.
+ */
+public class SecurityGroupIdCustomizer extends BasicJcloudsLocationCustomizer {
+
+    private final List<String> ids;
+
+    public SecurityGroupIdCustomizer(List<String> ids) {
+        this.ids = ImmutableList.copyOf(ids);
+    }
+
+    @Override
+    public void customize(JcloudsLocation location, ComputeService computeService, TemplateOptions templateOptions) {
+        if (templateOptions instanceof AWSEC2TemplateOptions) {
+            ((AWSEC2TemplateOptions) templateOptions).securityGroupIds(ids);
+        }
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("ids", ids).toString();
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.SecurityGroup;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.extensions.SecurityGroupExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.location.jclouds.JcloudsLocation;
+import brooklyn.location.jclouds.JcloudsLocationConfig;
+import brooklyn.util.config.ConfigBag;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.reflect.TypeToken;
+
+/**
+ * Caches the image and hardware resolved by jclouds for a provisioner and set of template flags,
+ * and on AWS the ids of the named security groups.
+ * <p>
+ * Entries expire after a fixed time to live. Concurrent lookups for the same key share a
+ * single in-flight resolution, so only one caller goes to the cloud API.
+ */
+public class TemplateCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateCache.class);
+
+    /** Flags that change the template jclouds resolves. */
+    public static final Set<ConfigKey<?>> TEMPLATE_KEYS = ImmutableSet.<ConfigKey<?>>of(
+            JcloudsLocationConfig.HARDWARE_ID, JcloudsLocationConfig.IMAGE_ID, JcloudsLocationConfig.IMAGE_NAME_REGEX,
+            JcloudsLocationConfig.MIN_RAM, JcloudsLocationConfig.MIN_CORES, JcloudsLocationConfig.SECURITY_GROUPS);
+
+    /** The resolved ids of the {@link JcloudsLocationConfig#SECURITY_GROUPS security groups}, if all were found. */
+    public static final ConfigKey<List<String>> SECURITY_GROUP_IDS = ConfigKeys.newConfigKey(new TypeToken<List<String>>() { },
+            "cloud.securityGroupIds", "Ids of the security groups named in the template flags");
+
+    /** Providers that can launch machines into security groups by id. */
+    public static final Set<String> SECURITY_GROUP_ID_PROVIDERS = ImmutableSet.of("aws-ec2");
+
+    private final LoadingCache<TemplateKey, Map<String, Object>> cache;
+
+    public TemplateCache(Duration ttl) {
+        cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl.toMilliseconds(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build(new CacheLoader<TemplateKey, Map<String, Object>>() {
+                    @Override
+                    public Map<String, Object> load(TemplateKey key) {
+                        return resolve(key);
+                    }
+                });
+    }
+
+    /**
+     * Flags pinning the image and hardware ids that the provisioner would resolve for these flags,
+     * with the {@link #SECURITY_GROUP_IDS security group ids} where the provider supports them.
+     */
+    public Map<String, Object> getTemplateFlags(JcloudsLocation location, Map<?, ?> flags) {
+        Map<String, Object> templateFlags = Maps.newTreeMap();
+        for (ConfigKey<?> key : TEMPLATE_KEYS) {
+            Object value = flags.get(key.getName());
+            if (value != null) templateFlags.put(key.getName(), value);
+        }
+        return cache.getUnchecked(new TemplateKey(location, templateFlags));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    protected Map<String, Object> resolve(TemplateKey key) {
+        LOG.debug("Resolving template for {} with {}", key.location, key.templateFlags);
+        ConfigBag setup = ConfigBag.newInstanceExtending(key.location.getAllConfigBag(), key.templateFlags);
+        ComputeService computeService = key.location.getComputeService(setup);
+        Template template = key.location.buildTemplate(computeService, setup);
+
+        LOG.info("Resolved template for {}: image {}, hardware {}",
+                new Object[] { key.location, template.getImage().getId(), template.getHardware().getId() });
+        ImmutableMap.Builder<String, Object> result = ImmutableMap.<String, Object>builder()
+                .put(JcloudsLocationConfig.IMAGE_ID.getName(), template.getImage().getId())
+                .put(JcloudsLocationConfig.HARDWARE_ID.getName(), template.getHardware().getId());
+        List<String> groupIds = resolveSecurityGroups(key, computeService, template);
+        if (groupIds != null) {
+            result.put(SECURITY_GROUP_IDS.getName(), groupIds);
+        }
+        return result.build();
+    }
+
+    /**
+     * The ids of the named security groups in the template location.
+     *
+     * @return the ids, or null if the provider cannot use them or a group does not exist yet
+     */
+    @Nullable
+    protected List<String> resolveSecurityGroups(TemplateKey key, ComputeService computeService, Template template) {
+        Object names = key.templateFlags.get(JcloudsLocationConfig.SECURITY_GROUPS.getName());
+        if (names == null || !SECURITY_GROUP_ID_PROVIDERS.contains(key.location.getProvider())) return null;
+        Optional<SecurityGroupExtension> extension = computeService.getSecurityGroupExtension();
+        if (!extension.isPresent()) return null;
+
+        Map<String, String> idsByName = Maps.newHashMap();
+        for (SecurityGroup group : extension.get().listSecurityGroupsInLocation(template.getLocation())) {
+            idsByName.put(group.getName(), group.getId());
+        }
+        List<String> ids = Lists.newArrayList();
+        for (Object name : (names instanceof Iterable) ? (Iterable<?>) names : ImmutableList.of(names)) {
+            String id = idsByName.get(name.toString());
+            if (id == null) {
+                LOG.debug("Security group {} not found in {}, leaving it to jclouds", name, key.location);
+                return null;
+            }
+            ids.add(id);
+        }
+        LOG.info("Resolved security groups for {}: {}", key.location, ids);
+        return ImmutableList.copyOf(ids);
+    }
+
+    /**
+     * Identifies a template by the provisioner and the template flags only.
+     */
+    protected static class TemplateKey {
+        private final JcloudsLocation location;
+        private final Map<String, Object> templateFlags;
+
+        protected TemplateKey(JcloudsLocation location, Map<String, Object> templateFlags) {
+            this.location = location;
+            this.templateFlags = ImmutableSortedMap.copyOf(templateFlags);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TemplateKey)) return false;
+            TemplateKey that = (TemplateKey) obj;
+            return Objects.equal(location.getId(), that.location.getId()) && Objects.equal(templateFlags, that.templateFlags);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(location.getId(), templateFlags);
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import brooklyn.management.Task;
+import brooklyn.util.task.Tasks;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+/**
+ * One timed step of a provisioning trace, started by a {@link ProvisioningTracer}.
+ * <p>
+ * The span becomes the current span for its thread until it is {@link #close() closed}, so spans
+ * started meanwhile on the same thread are its children. A sampled span is also the span of the
+ * Brooklyn task it runs in, so spans started in tasks submitted from that task, such as effector
+ * invocations on other entities, are its children too. Across other boundaries the
+ * {@link #getContext() context} can be passed explicitly, for example as the {@link #CONTEXT_FLAG}
+ * obtain flag. Spans must be closed on the thread that started them, in a {@code finally} block.
+ * Spans in traces that were not sampled record nothing.
+ */
+public class TraceSpan implements Closeable {
+
+    /** Flag carrying the {@link #getContext() context} of the parent span, such as in obtain flags. */
+    public static final String CONTEXT_FLAG = "traceContext";
+
+    private static final ThreadLocal<TraceSpan> CURRENT = new ThreadLocal<TraceSpan>();
+    private static final ConcurrentMap<Task<?>, TraceSpan> TASK_SPANS = new MapMaker().weakKeys().makeMap();
+
+    private final ProvisioningTracer tracer;
+    private final String name;
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final long startEpochNanos;
+    private final long startNanos;
+    private final TraceSpan previous;
+    private final Task<?> task;
+    private final TraceSpan previousInTask;
+
+    private Map<String, Object> attributes;
+    private long endEpochNanos;
+    private String error;
+    private boolean closed;
+
+    TraceSpan(@Nullable ProvisioningTracer tracer, String name, @Nullable String traceId, @Nullable String spanId, @Nullable String parentSpanId) {
+        this.tracer = tracer;
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.startNanos = System.nanoTime();
+        this.startEpochNanos = (tracer == null) ? 0l : System.currentTimeMillis() * 1000000l;
+        this.previous = CURRENT.get();
+        CURRENT.set(this);
+        this.task = (tracer == null) ? null : Tasks.current();
+        this.previousInTask = (task == null) ? null : TASK_SPANS.put(task, this);
+    }
+
+    /** The innermost open span on this thread, or null. */
+    @Nullable
+    public static TraceSpan current() {
+        return CURRENT.get();
+    }
+
+    /** The innermost open sampled span of the current task or the tasks that submitted it, or null. */
+    @Nullable
+    public static TraceSpan inherited() {
+        for (Task<?> t = Tasks.current(); t != null; t = t.getSubmittedByTask()) {
+            TraceSpan span = TASK_SPANS.get(t);
+            if (span != null) return span;
+        }
+        return null;
+    }
+
+    /**
+     * The W3C {@code traceparent} of this span, to start child spans across a task boundary,
+     * or null if the trace is not sampled.
+     */
+    @Nullable
+    public String getContext() {
+        return (tracer == null) ? null : "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    public boolean isSampled() {
+        return tracer != null;
+    }
+
+    public TraceSpan attribute(String key, @Nullable Object value) {
+        if (tracer != null && value != null) {
+            if (attributes == null) attributes = Maps.newLinkedHashMap();
+            attributes.put(key, value);
+        }
+        return this;
+    }
+
+    public TraceSpan error(Throwable t) {
+        if (tracer != null) {
+            error = String.valueOf(t.getMessage() != null ? t.getMessage() : t.getClass().getName());
+        }
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (CURRENT.get() == this) {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+        if (task != null) {
+            if (previousInTask == null) {
+                TASK_SPANS.remove(task, this);
+            } else {
+                TASK_SPANS.replace(task, this, previousInTask);
+            }
+        }
+        if (tracer != null) {
+            endEpochNanos = startEpochNanos + (System.nanoTime() - startNanos);
+            tracer.export(this);
+        }
+    }
+
+    @Nullable
+    ProvisioningTracer getTracer() { return tracer; }
+
+    public String getName() { return name; }
+
+    @Nullable
+    public String getTraceId() { return traceId; }
+
+    @Nullable
+    public String getSpanId() { return spanId; }
+
+    @Nullable
+    public String getParentSpanId() { return parentSpanId; }
+
+    public long getStartEpochNanos() { return startEpochNanos; }
+
+    public long getEndEpochNanos() { return endEpochNanos; }
+
+    public Map<String, Object> getAttributes() {
+        return attributes == null ? ImmutableMap.<String, Object>of() : attributes;
+    }
+
+    @Nullable
+    public String getError() { return error; }
+
+}
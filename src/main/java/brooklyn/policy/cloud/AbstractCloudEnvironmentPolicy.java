@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.policy.cloud;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.Callable;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.cloud.CloudEnvironment;
+import brooklyn.entity.cloud.MachineEntity;
+import brooklyn.management.Task;
+import brooklyn.policy.basic.AbstractPolicy;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.task.ScheduledTask;
+import brooklyn.util.task.Tasks;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.Ordering;
+
+/**
+ * A policy attached to a {@link CloudEnvironment} that runs periodically.
+ * <p>
+ * Each run is a task in the environment execution context, so it shows in the
+ * activity view and is cancelled when the policy is destroyed. Runs are skipped
+ * while the policy is suspended.
+ */
+public abstract class AbstractCloudEnvironmentPolicy extends AbstractPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractCloudEnvironmentPolicy.class);
+
+    private transient Task<?> scheduled;
+
+    @Override
+    public void setEntity(EntityLocal entity) {
+        checkArgument(entity instanceof CloudEnvironment, "%s must be attached to a CloudEnvironment, not %s", getClass().getSimpleName(), entity);
+        super.setEntity(entity);
+
+        final String name = getDisplayName();
+        Callable<Task<?>> job = new Callable<Task<?>>() {
+            @Override
+            public Task<?> call() {
+                return Tasks.builder().name(name).body(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isRunning()) return;
+                        try {
+                            execute();
+                        } catch (Exception e) {
+                            Exceptions.propagateIfFatal(e);
+                            LOG.warn("{} of {} failed: {}", new Object[] { name, AbstractCloudEnvironmentPolicy.this.entity, e.getMessage() });
+                        }
+                    }
+                }).build();
+            }
+        };
+        Duration period = getPeriod();
+        ScheduledTask task = new ScheduledTask(MutableMap.of("displayName", name, "delay", period, "period", period), job);
+        scheduled = ((EntityInternal) entity).getExecutionContext().submit(task);
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduled != null) scheduled.cancel(true);
+        scheduled = null;
+        super.destroy();
+    }
+
+    protected CloudEnvironment getEnvironment() {
+        return (CloudEnvironment) entity;
+    }
+
+    /** Time between runs. */
+    protected abstract Duration getPeriod();
+
+    /** One run of the policy. */
+    protected abstract void execute();
+
+    /**
+     * Machines by {@link MachineEntity#CPU_USAGE}, least used first; machines not yet measured come first.
+     */
+    protected static Ordering<Entity> leastUtilisedFirst() {
+        return new Ordering<Entity>() {
+            @Override
+            public int compare(@Nullable Entity left, @Nullable Entity right) {
+                return Ordering.<Double>natural().nullsFirst().compare(
+                        left.getAttribute(MachineEntity.CPU_USAGE), right.getAttribute(MachineEntity.CPU_USAGE));
+            }
+        };
+    }
+
+}
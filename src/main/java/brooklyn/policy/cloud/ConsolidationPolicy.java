@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.policy.cloud;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Attributes;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.basic.Lifecycle;
+import brooklyn.entity.basic.SoftwareProcess;
+import brooklyn.entity.cloud.CloudEnvironment;
+import brooklyn.entity.cloud.CloudMachine;
+import brooklyn.entity.cloud.MachineHealth;
+import brooklyn.entity.software.SshEffectorTasks;
+import brooklyn.entity.trait.Startable;
+import brooklyn.location.MachineLocation;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.cloud.CloudLocation;
+import brooklyn.location.cloud.CloudMachineLocation;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.flags.SetFromFlag;
+import brooklyn.util.task.DynamicTasks;
+import brooklyn.util.task.system.ProcessTaskWrapper;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+/**
+ * Consolidates the workload of a {@link CloudEnvironment} onto fewer machines.
+ * <p>
+ * Each period the policy plans a tighter packing: {@link #RELOCATABLE relocatable} entities running
+ * on burst machines obtained outside the pool are moved onto idle pool machines, least utilised first,
+ * which releases the burst machines. Idle pool machines beyond the {@link #IDLE_HEADROOM headroom}
+ * are then retired, down to the environment initial size. At most {@link #MAX_RELOCATIONS} entities
+ * are stopped and restarted in each period.
+ */
+public class ConsolidationPolicy extends AbstractCloudEnvironmentPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConsolidationPolicy.class);
+
+    /** Set on an entity to allow the policy to stop it and restart it on another machine. */
+    public static final ConfigKey<Boolean> RELOCATABLE = ConfigKeys.newBooleanConfigKey("cloud.consolidation.relocatable",
+            "Whether the entity may be stopped and restarted on another machine to consolidate the environment", Boolean.FALSE);
+
+    @SetFromFlag("period")
+    public static final ConfigKey<Duration> PERIOD = ConfigKeys.newConfigKey(Duration.class, "cloud.consolidation.period",
+            "Time between consolidation runs", Duration.minutes(5));
+
+    @SetFromFlag("maxRelocations")
+    public static final ConfigKey<Integer> MAX_RELOCATIONS = ConfigKeys.newIntegerConfigKey("cloud.consolidation.maxRelocations",
+            "Disruption budget; the most entities restarted in each run", 1);
+
+    @SetFromFlag("maxUtilisation")
+    public static final ConfigKey<Double> MAX_UTILISATION = ConfigKeys.newDoubleConfigKey("cloud.consolidation.maxUtilisation",
+            "Entities busier than this CPU usage are left where they are", 0.5d);
+
+    @SetFromFlag("idleHeadroom")
+    public static final ConfigKey<Integer> IDLE_HEADROOM = ConfigKeys.newIntegerConfigKey("cloud.consolidation.idleHeadroom",
+            "Number of idle machines kept after consolidation", 1);
+
+    @Override
+    protected Duration getPeriod() {
+        return getConfig(PERIOD);
+    }
+
+    @Override
+    protected void execute() {
+        consolidate();
+    }
+
+    /**
+     * Run one round of relocations and retirements.
+     */
+    public void consolidate() {
+        CloudLocation cloud = getEnvironment().getDynamicLocation();
+        if (cloud == null) return;
+
+        int moved = 0;
+        for (Entity candidate : planRelocations(cloud)) {
+            if (moved >= getConfig(MAX_RELOCATIONS) || cloud.getIdleCount() == 0) break;
+            if (relocate(candidate, cloud)) moved++;
+        }
+
+        int retired = 0;
+        int floor = getEnvironment().getConfig(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE);
+        for (Entity idle : leastUtilisedFirst().sortedCopy(getEnvironment().getAvailableMachines())) {
+            if (cloud.getIdleCount() <= getConfig(IDLE_HEADROOM) || getEnvironment().getCurrentSize() <= floor) break;
+            if (getEnvironment().retireMachine((CloudMachine) idle)) retired++;
+        }
+
+        if (moved > 0 || retired > 0) {
+            LOG.info("Consolidated {}: relocated {} entities, retired {} idle machines", new Object[] { entity, moved, retired });
+        }
+    }
+
+    /**
+     * Relocatable entities that this environment placed on burst machines, least utilised first.
+     * <p>
+     * Burst machines have no {@link CloudMachine} to poll, so each is sampled over SSH here;
+     * entities whose machine cannot be sampled are still candidates, ordered last.
+     */
+    protected List<Entity> planRelocations(CloudLocation cloud) {
+        Map<MachineLocation, Entity> tenants = cloud.getProvisionedTenants();
+        if (tenants.isEmpty()) return Collections.emptyList();
+
+        Map<Entity, Double> usage = Maps.newHashMap();
+        List<Entity> candidates = Lists.newArrayList();
+        Double limit = getConfig(MAX_UTILISATION);
+        for (Map.Entry<MachineLocation, Entity> tenant : tenants.entrySet()) {
+            Entity candidate = tenant.getValue();
+            if (!Boolean.TRUE.equals(candidate.getConfig(RELOCATABLE)) || !Entities.isManaged(candidate)) continue;
+
+            Double sampled = sampleUsage(tenant.getKey());
+            if (sampled == null || sampled <= limit) {
+                candidates.add(candidate);
+                if (sampled != null) usage.put(candidate, sampled);
+            }
+        }
+        return Ordering.<Double>natural().nullsLast().onResultOf(Functions.forMap(usage, (Double) null)).sortedCopy(candidates);
+    }
+
+    /**
+     * The CPU usage of a burst machine over one second, or null if it cannot be measured.
+     */
+    @Nullable
+    protected Double sampleUsage(MachineLocation machine) {
+        if (!(machine instanceof SshMachineLocation)) return null;
+        try {
+            ProcessTaskWrapper<Integer> task = SshEffectorTasks.ssh(MachineHealth.USAGE_SAMPLE_COMMAND)
+                    .machine((SshMachineLocation) machine)
+                    .requiringExitCodeZero()
+                    .summary("cpuUsage")
+                    .newTask();
+            DynamicTasks.queueIfPossible(task).orSubmitAsync(entity);
+            return MachineHealth.parseUsageSample(task.block().getStdout());
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.debug("Cannot sample CPU usage of {}: {}", machine, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stop the entity and restart it on an idle pool machine, falling back to the pool itself if that fails.
+     * <p>
+     * The claimed machine is returned to the pool if the entity cannot be stopped or started on it.
+     * If the fallback start also fails the entity is left stopped, so it is marked
+     * {@link Lifecycle#ON_FIRE on fire} and the failure is thrown.
+     */
+    protected boolean relocate(Entity target, CloudLocation cloud) {
+        CloudMachine machine = cloud.claimIdle(target);
+        if (machine == null) return false;
+
+        CloudMachineLocation location = machine.getDynamicLocation();
+        LOG.info("Relocating {} to {}", target, machine);
+        try {
+            Entities.invokeEffector(entity, target, Startable.STOP).getUnchecked();
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Failed to stop {} to relocate it to {}, returning the machine to the pool: {}", new Object[] { target, machine, e.getMessage() });
+            cloud.release(location);
+            return false;
+        }
+        try {
+            Entities.invokeEffector(entity, target, Startable.START,
+                    MutableMap.of("locations", ImmutableList.of(location))).getUnchecked();
+            // So that stopping the entity returns the machine to the pool
+            ((EntityInternal) target).setAttribute(SoftwareProcess.PROVISIONING_LOCATION, cloud);
+            return true;
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Failed to relocate {} to {}, restarting in {}: {}", new Object[] { target, machine, cloud, e.getMessage() });
+            cloud.release(location);
+        }
+        try {
+            Entities.invokeEffector(entity, target, Startable.START,
+                    MutableMap.of("locations", ImmutableList.of(cloud))).getUnchecked();
+            return false;
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.error("Failed to restart {} in {} after a failed relocation; it is stopped: {}", new Object[] { target, cloud, e.getMessage() });
+            ((EntityInternal) target).setAttribute(Attributes.SERVICE_STATE, Lifecycle.ON_FIRE);
+            throw Exceptions.propagate(e);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.policy.cloud;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.cloud.CloudEnvironment;
+import brooklyn.entity.cloud.CloudMachine;
+import brooklyn.entity.cloud.MachineState;
+import brooklyn.location.cloud.CloudLocation;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Hibernates the idle machines of a {@link CloudEnvironment} beyond {@link CloudEnvironment#HIBERNATION_RUNNING_IDLE}.
+ * <p>
+ * Hibernated machines keep their disks and installed software, and {@link CloudLocation#obtain(java.util.Map)}
+ * resumes them when no running machine is idle, before provisioning new ones. Machines that
+ * could not be resumed are removed from the environment.
+ */
+public class HibernationPolicy extends AbstractCloudEnvironmentPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HibernationPolicy.class);
+
+    @Override
+    protected Duration getPeriod() {
+        return getEnvironment().getConfig(CloudEnvironment.HIBERNATION_PERIOD);
+    }
+
+    @Override
+    protected void execute() {
+        hibernate();
+    }
+
+    /**
+     * Remove failed machines, then hibernate idle machines beyond the running reserve, least used first.
+     */
+    public void hibernate() {
+        CloudLocation cloud = getEnvironment().getDynamicLocation();
+        if (cloud == null) return;
+
+        for (Entity machine : ImmutableList.copyOf(getEnvironment().getAvailableMachines())) {
+            if (machine.getAttribute(CloudMachine.MACHINE_STATE) == MachineState.FAILED) {
+                LOG.info("Removing machine {} that failed to hibernate or resume", machine);
+                getEnvironment().removeMachine((CloudMachine) machine);
+            }
+        }
+
+        int keep = getEnvironment().getConfig(CloudEnvironment.HIBERNATION_RUNNING_IDLE);
+        int hibernated = 0;
+        for (Entity idle : leastUtilisedFirst().sortedCopy(getEnvironment().getAvailableMachines())) {
+            if (cloud.getIdleCount() <= keep) break;
+            CloudMachine machine = (CloudMachine) idle;
+            if (machine.getAttribute(CloudMachine.MACHINE_STATE) != MachineState.RUNNING) continue;
+            if (getEnvironment().getMachineSuspender(machine.getAttribute(CloudMachine.PROVISIONING_LOCATION)) == null) continue;
+            if (!cloud.holdIdle(machine)) continue;
+
+            try {
+                machine.hibernate();
+                cloud.addHibernated(machine);
+                hibernated++;
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Failed to hibernate {}: {}", machine, e.getMessage());
+                cloud.unreserve(machine);
+            }
+        }
+
+        if (hibernated > 0) {
+            LOG.info("Hibernated {} idle machines in {}, {} hibernated in total", new Object[] { hibernated, entity, cloud.getHibernatedCount() });
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+#!/bin/bash
+#
+# Copyright 2014 by Cloudsoft Corporation Limited
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Pushes machine metrics to the Brooklyn MetricsCollector as 38 byte UDP datagrams.
+#
+# Usage: metrics-agent.sh host port key token interval
+#
+# Layout, big-endian: magic u16 (0xb10c), version u8 (1), reserved u8, key i32, token i32,
+# sequence i32, cpu u16 (per mille), load u16 (hundredths), memory used MB i32,
+# memory total MB i32, disk u16 (per mille), net rx kbps i32, net tx kbps i32
+
+HOST=$1
+PORT=$2
+KEY=$3
+TOKEN=$4
+INTERVAL=${5:-10}
+
+u8() { printf '\\x%02x' $(( $1 & 255 )); }
+u16() { u8 $(( $1 >> 8 )); u8 $1; }
+u32() { u16 $(( $1 >> 16 )); u16 $1; }
+cap16() { if [ $1 -gt 65535 ]; then echo 65535; else echo $1; fi; }
+
+cpu_sample() {
+    read _ user nice system idle iowait irq softirq steal _ < /proc/stat
+    echo $(( user + nice + system + idle + iowait + irq + softirq + steal )) $(( idle + iowait ))
+}
+
+net_sample() {
+    awk -F'[: ]+' 'NR > 2 && $2 != "lo" { rx += $3; tx += $11 } END { printf "%d %d\n", rx, tx }' /proc/net/dev
+}
+
+exec 3> /dev/udp/${HOST}/${PORT} || exit 1
+
+read total0 idle0 < <(cpu_sample)
+read rx0 tx0 < <(net_sample)
+seq=0
+
+while true; do
+    sleep ${INTERVAL}
+
+    read total1 idle1 < <(cpu_sample)
+    dtotal=$(( total1 - total0 ))
+    cpu=0
+    [ ${dtotal} -gt 0 ] && cpu=$(( 1000 * (dtotal - (idle1 - idle0)) / dtotal ))
+    total0=${total1}; idle0=${idle1}
+
+    load=$(awk '{ printf "%d", $1 * 100 }' /proc/loadavg)
+    read memtotal memavail < <(awk '/^MemTotal:/ { t = $2 } /^MemAvailable:/ { a = $2 } /^(MemFree|Buffers|Cached):/ { f += $2 }
+            END { if (a == "") a = f; printf "%d %d\n", t / 1024, a / 1024 }' /proc/meminfo)
+    disk=$(df -P / | awk 'NR == 2 { sub("%", "", $5); printf "%d", $5 * 10 }')
+
+    read rx1 tx1 < <(net_sample)
+    rx=$(( (rx1 - rx0) * 8 / 1000 / INTERVAL ))
+    tx=$(( (tx1 - tx0) * 8 / 1000 / INTERVAL ))
+    rx0=${rx1}; tx0=${tx1}
+    [ ${rx} -lt 0 ] && rx=0
+    [ ${tx} -lt 0 ] && tx=0
+
+    seq=$(( seq + 1 ))
+    packet="$(u16 45324)$(u8 1)$(u8 0)$(u32 ${KEY})$(u32 ${TOKEN})$(u32 ${seq})"
+    packet="${packet}$(u16 ${cpu})$(u16 $(cap16 ${load}))$(u32 $(( memtotal - memavail )))$(u32 ${memtotal})"
+    packet="${packet}$(u16 ${disk})$(u32 ${rx})$(u32 ${tx})"
+    # Errors such as an unreachable collector are ignored; missed datagrams show as missed heartbeats
+    printf "${packet}" >&3 2> /dev/null
+done
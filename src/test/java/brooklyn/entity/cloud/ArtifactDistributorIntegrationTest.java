@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.os.Os;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Distributes an artifact to several machines on localhost, each with its own cache directory.
+ * <p>
+ * Requires passwordless SSH to localhost, curl or wget, and python to serve from the parents.
+ */
+public class ArtifactDistributorIntegrationTest extends BrooklynAppUnitTestSupport {
+
+    private static final int MACHINES = 7;
+
+    private File tempDir;
+    private File artifact;
+    private List<CloudMachine> machines;
+
+    @BeforeMethod(alwaysRun=true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        tempDir = Files.createTempDir();
+        artifact = new File(tempDir, "artifact.txt");
+        Files.write("some artifact content", artifact, Charsets.UTF_8);
+
+        machines = Lists.newArrayList();
+        for (int i = 0; i < MACHINES; i++) {
+            SshMachineLocation localhost = mgmt.getLocationManager().createLocation(LocationSpec.create(SshMachineLocation.class)
+                    .configure("address", "localhost"));
+            CloudMachine machine = app.createAndManageChild(EntitySpec.create(CloudMachine.class)
+                    .configure(CloudMachine.ARTIFACT_CACHE_DIR, new File(tempDir, "cache-" + i).getAbsolutePath()));
+            ((EntityInternal) machine).setAttribute(CloudMachine.SSH_MACHINE, localhost);
+            machines.add(machine);
+        }
+    }
+
+    @AfterMethod(alwaysRun=true)
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        if (tempDir != null) Os.deleteRecursively(tempDir);
+    }
+
+    @Test(groups="Integration")
+    public void testChildrenFetchFromParents() {
+        Map<String, Object> summary = new ArtifactDistributor(((EntityInternal) app).getExecutionContext())
+                .seeds(2)
+                .fanout(2)
+                .distribute(artifact.toURI().toString(), machines);
+
+        assertEquals(summary.get("delivered"), MACHINES, "summary=" + summary);
+        assertEquals(summary.get("failed"), 0, "summary=" + summary);
+        assertEquals(summary.get("serverUploads"), 2, "summary=" + summary);
+        assertEquals(summary.get("peerFetches"), MACHINES - 2, "summary=" + summary);
+        assertDelivered();
+    }
+
+    @Test(groups="Integration")
+    public void testUnreachableParentsFallBackToServer() {
+        // Nothing can listen on port 1 without root, so the parents fail to serve or cannot be reached
+        Map<String, Object> summary = new ArtifactDistributor(((EntityInternal) app).getExecutionContext())
+                .seeds(1)
+                .fanout(2)
+                .retries(1)
+                .basePort(1)
+                .distribute(artifact.toURI().toString(), machines);
+
+        assertEquals(summary.get("delivered"), MACHINES, "summary=" + summary);
+        assertEquals(summary.get("failed"), 0, "summary=" + summary);
+        assertEquals(summary.get("serverUploads"), MACHINES, "summary=" + summary);
+        assertDelivered();
+    }
+
+    private void assertDelivered() {
+        for (CloudMachine machine : machines) {
+            File copy = new File(machine.getConfig(CloudMachine.ARTIFACT_CACHE_DIR), artifact.getName());
+            assertTrue(copy.isFile(), "missing " + copy);
+            assertTrue(machine.getAttribute(CloudMachine.INSTALLED_ARTIFACTS).contains(artifact.toURI().toString()));
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.entity.rebind.RebindTestUtils;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.MachineLocation;
+import brooklyn.location.basic.LocationConfigKeys;
+import brooklyn.location.cloud.CloudLocation;
+import brooklyn.location.cloud.CloudMachineLocation;
+import brooklyn.location.cloud.SimulatedProvisioningLocation;
+import brooklyn.management.internal.LocalManagementContext;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.test.entity.TestEntity;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.os.Os;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+/**
+ * Obtains and releases machines from a {@link CloudEnvironment} after the management plane is restarted.
+ */
+public class CloudEnvironmentRebindTest {
+
+    private ClassLoader classLoader = getClass().getClassLoader();
+    private File mementoDir;
+    private File journalDir;
+    private LocalManagementContext origManagementContext;
+    private LocalManagementContext newManagementContext;
+    private TestApplication origApp;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        mementoDir = Os.newTempDir(getClass());
+        journalDir = Os.newTempDir(getClass());
+        origManagementContext = RebindTestUtils.newPersistingManagementContext(mementoDir, classLoader);
+        origApp = ApplicationBuilder.newManagedApp(EntitySpec.create(TestApplication.class), origManagementContext);
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (origManagementContext != null) Entities.destroyAll(origManagementContext);
+        if (newManagementContext != null) Entities.destroyAll(newManagementContext);
+        if (mementoDir != null) RebindTestUtils.deleteMementoDir(mementoDir);
+        if (journalDir != null) Os.deleteRecursively(journalDir);
+    }
+
+    private CloudEnvironment newEnvironment(int size) {
+        return newEnvironment(size, journalDir.getAbsolutePath());
+    }
+
+    private CloudEnvironment newEnvironment(int size, String journal) {
+        LocationSpec<SimulatedProvisioningLocation> provisioner = LocationSpec.create(SimulatedProvisioningLocation.class)
+                .configure(SimulatedProvisioningLocation.FAKE_SSH, true)
+                .configure(SimulatedProvisioningLocation.BOOT_TIME, Duration.millis(20));
+        CloudEnvironment environment = origApp.createAndManageChild(EntitySpec.create(CloudEnvironment.class)
+                .configure(CloudEnvironment.CLOUD_LOCATION_SPEC, provisioner)
+                .configure(CloudEnvironment.SHARD_COUNT, 2)
+                .configure(CloudEnvironment.POOL_JOURNAL_DIR, journal)
+                .configure(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE, size));
+        origApp.start(ImmutableList.<Location>of());
+        return environment;
+    }
+
+    private CloudEnvironment rebind() throws Exception {
+        RebindTestUtils.waitForPersisted(origApp);
+        origManagementContext.getRebindManager().stop();
+        TestApplication newApp = (TestApplication) RebindTestUtils.rebind(mementoDir, classLoader);
+        newManagementContext = (LocalManagementContext) newApp.getManagementContext();
+        return (CloudEnvironment) Iterables.getOnlyElement(Iterables.filter(newApp.getChildren(), CloudEnvironment.class));
+    }
+
+    @Test
+    public void testShardsFoundOnRebind() throws Exception {
+        CloudEnvironment origEnvironment = newEnvironment(2);
+
+        CloudEnvironment newEnvironment = rebind();
+
+        assertEquals(newEnvironment.getCloudMachineShards().size(), 2);
+        assertEquals(newEnvironment.getCloudMachineList().size(), 2);
+        assertEquals(newEnvironment.getCloudMachineCluster().getId(), origEnvironment.getCloudMachineCluster().getId());
+    }
+
+    @Test
+    public void testObtainAndReleaseIdleMachineAfterRebind() throws Exception {
+        newEnvironment(2);
+
+        CloudLocation cloud = rebind().getDynamicLocation();
+        assertEquals(cloud.getIdleCount(), 2);
+
+        MachineLocation machine = cloud.obtain();
+        assertTrue(machine instanceof CloudMachineLocation, "machine=" + machine);
+        assertEquals(cloud.getIdleCount(), 1);
+
+        cloud.release(machine);
+        assertEquals(cloud.getIdleCount(), 2);
+    }
+
+    @Test
+    public void testReleaseProvisionedMachineAfterRebind() throws Exception {
+        CloudLocation origCloud = newEnvironment(1).getDynamicLocation();
+        origCloud.obtain();
+        MachineLocation burst = origCloud.obtain();
+        assertFalse(burst instanceof CloudMachineLocation, "machine=" + burst);
+
+        CloudLocation cloud = rebind().getDynamicLocation();
+        MachineLocation restored = Iterables.getOnlyElement(cloud.getProvisionedMachines());
+        assertEquals(restored.getId(), burst.getId());
+
+        cloud.release(restored);
+        assertTrue(cloud.getProvisionedMachines().isEmpty());
+    }
+
+    @Test
+    public void testProvisionedTenantRestoredFromJournal() throws Exception {
+        CloudLocation origCloud = newEnvironment(1).getDynamicLocation();
+        TestEntity tenant = origApp.createAndManageChild(EntitySpec.create(TestEntity.class));
+        origCloud.obtain();
+        MachineLocation burst = origCloud.obtain(MutableMap.of(LocationConfigKeys.CALLER_CONTEXT.getName(), tenant));
+
+        Map<MachineLocation, Entity> restored = rebind().getDynamicLocation().getProvisionedTenants();
+        Map.Entry<MachineLocation, Entity> entry = Iterables.getOnlyElement(restored.entrySet());
+        assertEquals(entry.getKey().getId(), burst.getId());
+        assertEquals(entry.getValue().getId(), tenant.getId());
+    }
+
+    @Test
+    public void testProvisionedTenantRestoredFromCheckpoint() throws Exception {
+        CloudLocation origCloud = newEnvironment(1, "").getDynamicLocation();
+        TestEntity tenant = origApp.createAndManageChild(EntitySpec.create(TestEntity.class));
+        origCloud.obtain();
+        MachineLocation burst = origCloud.obtain(MutableMap.of(LocationConfigKeys.CALLER_CONTEXT.getName(), tenant));
+
+        CloudLocation cloud = rebind().getDynamicLocation();
+        assertEquals(Iterables.getOnlyElement(cloud.getProvisionedMachines()).getId(), burst.getId());
+        assertEquals(Iterables.getOnlyElement(cloud.getProvisionedTenants().values()).getId(), tenant.getId());
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.MachineLocation;
+import brooklyn.location.basic.LocationConfigKeys;
+import brooklyn.location.cloud.CloudLocation;
+import brooklyn.location.cloud.LatencyHistogram;
+import brooklyn.location.cloud.SimulatedProvisioningLocation;
+import brooklyn.test.entity.TestEntity;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Drives a {@link CloudEnvironment} backed by a {@link SimulatedProvisioningLocation} with fake
+ * machines, to measure pool latency, throughput and server resources at thousands of machines
+ * without a cloud account.
+ * <p>
+ * Each worker thread repeatedly obtains a machine, holds it for the dwell time and releases it.
+ * The sizes can be changed with the {@code scale.machines}, {@code scale.threads}, {@code scale.seconds},
+ * {@code scale.bootMillis}, {@code scale.failureRate} and {@code scale.dwellMillis} system properties.
+ */
+public class CloudEnvironmentScaleIntegrationTest extends BrooklynAppUnitTestSupport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudEnvironmentScaleIntegrationTest.class);
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+
+    @Test(groups="Integration")
+    public void testObtainAndReleaseAtScale() throws Exception {
+        int machines = Integer.getInteger("scale.machines", 1000);
+        int threads = Integer.getInteger("scale.threads", 32);
+        int seconds = Integer.getInteger("scale.seconds", 20);
+        long bootMillis = Long.getLong("scale.bootMillis", 50l);
+        double failureRate = Double.parseDouble(System.getProperty("scale.failureRate", "0"));
+        final long dwellMillis = Long.getLong("scale.dwellMillis", 10l);
+
+        LocationSpec<SimulatedProvisioningLocation> provisioner = LocationSpec.create(SimulatedProvisioningLocation.class)
+                .configure(SimulatedProvisioningLocation.FAKE_SSH, true)
+                .configure(SimulatedProvisioningLocation.BOOT_TIME, Duration.millis(bootMillis))
+                .configure(SimulatedProvisioningLocation.LATENCY_DISTRIBUTION, SimulatedProvisioningLocation.Distribution.LOG_NORMAL)
+                .configure(SimulatedProvisioningLocation.FAILURE_RATE, failureRate);
+        CloudEnvironment environment = app.createAndManageChild(EntitySpec.create(CloudEnvironment.class)
+                .configure(CloudEnvironment.CLOUD_LOCATION_SPEC, provisioner)
+                .configure(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE, machines)
+                .configure(CloudEnvironment.COMPACT_MACHINE_LOCATIONS, true));
+
+        long heapBefore = usedHeap();
+        Stopwatch startup = Stopwatch.createStarted();
+        app.start(ImmutableList.<Location>of());
+        long startupMillis = startup.elapsed(TimeUnit.MILLISECONDS);
+        long heapAfter = usedHeap();
+        LOG.info("Started {} machines in {}ms, {} bytes heap ({} per machine)",
+                new Object[] { machines, startupMillis, heapAfter - heapBefore, (heapAfter - heapBefore) / Math.max(1, machines) });
+        assertEquals(environment.getAttribute(CloudEnvironment.SERVICE_UP), Boolean.TRUE);
+
+        final CloudLocation cloud = environment.getDynamicLocation();
+        final LatencyHistogram obtain = new LatencyHistogram();
+        final AtomicLong failures = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        long cpuBefore = processCpuNanos();
+        Stopwatch run = Stopwatch.createStarted();
+        for (int i = 0; i < threads; i++) {
+            // Each worker obtains for its own tenant, so obtained machines are held by it until released
+            final TestEntity tenant = app.createAndManageChild(EntitySpec.create(TestEntity.class).displayName("tenant-" + i));
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            long start = System.nanoTime();
+                            try {
+                                MachineLocation machine = cloud.obtain(MutableMap.of(LocationConfigKeys.CALLER_CONTEXT.getName(), tenant));
+                                obtain.recordSince(start);
+                                Time.sleep(dwellMillis);
+                                cloud.release(machine);
+                            } catch (Exception e) {
+                                Exceptions.propagateIfFatal(e);
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "scale-test-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        done.await();
+        long runMillis = run.elapsed(TimeUnit.MILLISECONDS);
+        long cpuMillis = TimeUnit.NANOSECONDS.toMillis(processCpuNanos() - cpuBefore);
+
+        LOG.info("Obtain latency (ms): {}", obtain);
+        LOG.info("Throughput: {} obtains/s, {} failures, {} threads over {}ms",
+                new Object[] { String.format("%.1f", obtain.getCount() * 1000d / Math.max(1, runMillis)), failures.get(), threads, runMillis });
+        LOG.info("Pool latency by outcome (ms): {}", cloud.getMetrics().getSummary());
+        LOG.info("Server: {} bytes heap, {} cpu ms, load average {}",
+                new Object[] { usedHeap(), cpuBefore < 0 ? "unknown" : Long.toString(cpuMillis), OS.getSystemLoadAverage() });
+
+        assertTrue(obtain.getCount() > 0, "no machines obtained");
+        if (failureRate > 0) {
+            // Only fresh provisioning can fail, so failed obtains are at most the provisioning failure rate
+            double ratio = failures.get() / (double) (obtain.getCount() + failures.get());
+            assertTrue(ratio <= failureRate, String.format("failed obtains %.4f, provisioning failure rate %.4f", ratio, failureRate));
+        } else {
+            assertEquals(failures.get(), 0l, "failed obtains");
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    /** Process CPU time where the JVM exposes it, otherwise a negative value. */
+    private static long processCpuNanos() {
+        if (OS instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) OS).getProcessCpuTime();
+        }
+        return -1l;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.Entity;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.cloud.SimulatedProvisioningLocation;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+/**
+ * Bakes images against the {@link SimulatedProvisioningLocation}, which simulates snapshot and boot times.
+ */
+public class ImageBakingTest extends BrooklynAppUnitTestSupport {
+
+    private CloudEnvironment newEnvironment(boolean bake) {
+        LocationSpec<SimulatedProvisioningLocation> provisioner = LocationSpec.create(SimulatedProvisioningLocation.class)
+                .configure(SimulatedProvisioningLocation.FAKE_SSH, true)
+                .configure(SimulatedProvisioningLocation.BOOT_TIME, Duration.millis(200))
+                .configure(SimulatedProvisioningLocation.IMAGE_BOOT_TIME, Duration.millis(20))
+                .configure(SimulatedProvisioningLocation.SNAPSHOT_TIME, Duration.millis(50));
+        CloudEnvironment environment = app.createAndManageChild(EntitySpec.create(CloudEnvironment.class)
+                .configure(CloudEnvironment.CLOUD_LOCATION_SPEC, provisioner)
+                .configure(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE, 1)
+                .configure(CloudEnvironment.BAKE_IMAGES, bake));
+        app.start(ImmutableList.<Location>of());
+        return environment;
+    }
+
+    @Test
+    public void testFirstCustomisedMachineIsBaked() {
+        CloudEnvironment environment = newEnvironment(true);
+
+        String imageId = environment.getAttribute(CloudEnvironment.BAKED_IMAGE_ID);
+        assertNotNull(imageId);
+        SimulatedProvisioningLocation provisioner = (SimulatedProvisioningLocation) environment.getDynamicLocation().getProvisioner();
+        assertTrue(provisioner.getImages().contains(imageId), "images=" + provisioner.getImages());
+
+        Entity first = Iterables.getOnlyElement(environment.getCloudMachineList());
+        assertNull(first.getAttribute(CloudMachine.IMAGE_ID), "first machine should boot from the base image");
+    }
+
+    @Test
+    public void testLaterMachinesBootFromBakedImage() {
+        CloudEnvironment environment = newEnvironment(true);
+        String imageId = environment.getAttribute(CloudEnvironment.BAKED_IMAGE_ID);
+        Entity first = Iterables.getOnlyElement(environment.getCloudMachineList());
+
+        environment.resize(2);
+
+        Entity second = Iterables.find(environment.getCloudMachineList(), Predicates.not(Predicates.<Entity>equalTo(first)));
+        assertEquals(second.getAttribute(CloudMachine.IMAGE_ID), imageId);
+    }
+
+    @Test
+    public void testNoImageWhenBakingDisabled() {
+        CloudEnvironment environment = newEnvironment(false);
+
+        environment.resize(2);
+
+        assertNull(environment.getAttribute(CloudEnvironment.BAKED_IMAGE_ID));
+        for (Entity machine : environment.getCloudMachineList()) {
+            assertNull(machine.getAttribute(CloudMachine.IMAGE_ID));
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.test.entity.TestEntity;
+
+public class MachineBenchmarkTest extends BrooklynAppUnitTestSupport {
+
+    private static final String OUTPUT = "cpu 500\ndisk 2000\nloopback 0.045\n";
+
+    private TestEntity thresholds;
+
+    @BeforeMethod(alwaysRun=true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        thresholds = app.createAndManageChild(EntitySpec.create(TestEntity.class)
+                .configure(CloudEnvironment.BENCHMARK_MIN_CPU, 1000000d)
+                .configure(CloudEnvironment.BENCHMARK_MIN_DISK_WRITE, 50d)
+                .configure(CloudEnvironment.BENCHMARK_MAX_LOOPBACK, 0.1d));
+    }
+
+    @Test
+    public void testParseConvertsToRates() {
+        MachineBenchmark benchmark = new MachineBenchmark(1000000, 100).parse(OUTPUT);
+
+        assertEquals(benchmark.getCpu(), 2000000d, 0.001d);
+        assertEquals(benchmark.getDiskWrite(), 50d, 0.001d);
+        assertEquals(benchmark.getLoopback(), 0.045d, 0.00001d);
+    }
+
+    @Test
+    public void testParseIgnoresMalformedLines() {
+        MachineBenchmark benchmark = new MachineBenchmark(1000000, 100)
+                .parse("  cpu   500  \nnoise\ndisk fast\nloopback\nunknown 12\n");
+
+        assertEquals(benchmark.getCpu(), 2000000d, 0.001d);
+        assertNull(benchmark.getDiskWrite());
+        assertNull(benchmark.getLoopback());
+    }
+
+    @Test
+    public void testZeroElapsedDoesNotDivideByZero() {
+        MachineBenchmark benchmark = new MachineBenchmark(1000, 100).parse("cpu 0\ndisk 0\n");
+
+        assertEquals(benchmark.getCpu(), 1000000d, 0.001d);
+        assertEquals(benchmark.getDiskWrite(), 100000d, 0.001d);
+    }
+
+    @Test
+    public void testUnmeasuredResultsPass() {
+        assertTrue(new MachineBenchmark(1000000, 100).parse(null).failures(thresholds).isEmpty());
+        assertTrue(new MachineBenchmark(1000000, 100).parse("").failures(thresholds).isEmpty());
+    }
+
+    @Test
+    public void testResultsWithinThresholdsPass() {
+        assertTrue(new MachineBenchmark(1000000, 100).parse(OUTPUT).failures(thresholds).isEmpty());
+    }
+
+    @Test
+    public void testEachThresholdReported() {
+        List<String> failures = new MachineBenchmark(1000000, 100)
+                .parse("cpu 5000\ndisk 4000\nloopback 0.5\n")
+                .failures(thresholds);
+
+        assertEquals(failures.size(), 3, "failures=" + failures);
+    }
+
+    @Test
+    public void testUnsetThresholdsPass() {
+        TestEntity unset = app.createAndManageChild(EntitySpec.create(TestEntity.class));
+        assertTrue(new MachineBenchmark(1000000, 100).parse("cpu 5000\ndisk 4000\nloopback 0.5\n").failures(unset).isEmpty());
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.test.entity.TestEntity;
+import brooklyn.util.time.Duration;
+
+public class MachineHealthTest extends BrooklynAppUnitTestSupport {
+
+    // user nice system idle iowait irq softirq steal guest guest_nice
+    private static final String FIRST = "cpu  100 0 50 800 50 0 0 0 0 0";
+    private static final String SECOND = "cpu  400 0 100 1150 100 0 0 150 0 0";
+
+    private TestEntity machine;
+
+    @BeforeMethod(alwaysRun=true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        machine = app.createAndManageChild(EntitySpec.create(TestEntity.class));
+    }
+
+    @Test
+    public void testParseCpuCounters() {
+        long[] counters = MachineHealth.parseCpuCounters(SECOND);
+
+        assertEquals(counters[0], 150l);  // steal
+        assertEquals(counters[1], 1900l); // total, without guest time
+        assertEquals(counters[2], 1250l); // idle and iowait
+    }
+
+    @Test
+    public void testParseCpuCountersRejectsOtherLines() {
+        assertNull(MachineHealth.parseCpuCounters(null));
+        assertNull(MachineHealth.parseCpuCounters("cpu0 100 0 50 800 50 0 0 0 0 0"));
+        assertNull(MachineHealth.parseCpuCounters("intr 12345"));
+        assertNull(MachineHealth.parseCpuCounters("cpu  100 0 50 800 50 0 0"));
+        assertNull(MachineHealth.parseCpuCounters("cpu  100 0 50 800 x 0 0 0 0 0"));
+    }
+
+    @Test
+    public void testStealAndUsage() {
+        long[] previous = MachineHealth.parseCpuCounters(FIRST);
+        long[] current = MachineHealth.parseCpuCounters(SECOND);
+
+        assertEquals(MachineHealth.steal(previous, current), 150d / 900, 0.0001d);
+        assertEquals(MachineHealth.usage(previous, current), 1d - 400d / 900, 0.0001d);
+    }
+
+    @Test
+    public void testUnchangedCountersGiveZero() {
+        long[] counters = MachineHealth.parseCpuCounters(FIRST);
+
+        assertEquals(MachineHealth.steal(counters, counters), 0d);
+        assertEquals(MachineHealth.usage(counters, counters), 0d);
+    }
+
+    @Test
+    public void testParseUsageSample() {
+        assertEquals(MachineHealth.parseUsageSample(FIRST + "\n" + SECOND + "\n"), 1d - 400d / 900, 0.0001d);
+        assertNull(MachineHealth.parseUsageSample(null));
+        assertNull(MachineHealth.parseUsageSample(FIRST));
+        assertNull(MachineHealth.parseUsageSample(FIRST + "\nhead: cannot open '/proc/stat'"));
+    }
+
+    @Test
+    public void testParseMillis() {
+        assertEquals(MachineHealth.parseMillis("warning\n 1234 \n"), Long.valueOf(1234));
+        assertNull(MachineHealth.parseMillis("1234\nfailed"));
+        assertNull(MachineHealth.parseMillis(""));
+        assertNull(MachineHealth.parseMillis(null));
+    }
+
+    @Test
+    public void testSmooth() {
+        assertEquals(MachineHealth.smooth(null, 10d), 10d);
+        assertEquals(MachineHealth.smooth(10d, 20d), 10d + MachineHealth.SMOOTHING * 10d, 0.0001d);
+    }
+
+    @Test
+    public void testScoreIsLowestSignal() {
+        Duration baseline = Duration.millis(100);
+        assertEquals(MachineHealth.score(machine, 0.2d, baseline, baseline), 1d);
+
+        machine.setAttribute(CloudAttributes.CPU_STEAL, 0.05d);
+        machine.setAttribute(CloudAttributes.PROBE_TIME, 50l);
+        machine.setAttribute(CloudAttributes.SSH_LATENCY, 400d);
+        assertEquals(MachineHealth.score(machine, 0.2d, baseline, baseline), 0.25d, 0.0001d);
+
+        machine.setAttribute(CloudAttributes.CPU_STEAL, 0.5d);
+        assertEquals(MachineHealth.score(machine, 0.2d, baseline, baseline), 0d, 0.0001d);
+    }
+
+    @Test
+    public void testIsHealthy() {
+        assertTrue(MachineHealth.isHealthy(machine, 0.5d));
+
+        machine.setAttribute(CloudAttributes.HEALTH_SCORE, 0.4d);
+        assertFalse(MachineHealth.isHealthy(machine, 0.5d));
+
+        machine.setAttribute(CloudAttributes.HEALTH_SCORE, 0.5d);
+        assertTrue(MachineHealth.isHealthy(machine, 0.5d));
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.entity.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.test.entity.TestEntity;
+import brooklyn.util.time.Duration;
+
+public class MetricsCollectorTest extends BrooklynAppUnitTestSupport {
+
+    private MetricsCollector collector;
+    private TestEntity machine;
+
+    @BeforeMethod(alwaysRun=true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        collector = new MetricsCollector(0);
+        machine = app.createAndManageChild(EntitySpec.create(TestEntity.class));
+    }
+
+    private static ByteBuffer datagram(int key, int token, int sequence) {
+        ByteBuffer buffer = ByteBuffer.allocate(MetricsCollector.DATAGRAM_LENGTH);
+        buffer.putShort(MetricsCollector.MAGIC).put(MetricsCollector.VERSION).put((byte) 0)
+                .putInt(key).putInt(token).putInt(sequence)
+                .putShort((short) 250)    // cpu, per mille
+                .putShort((short) 150)    // load average, hundredths
+                .putInt(512).putInt(2048) // memory used and total, megabytes
+                .putShort((short) 400)    // disk, per mille
+                .putInt(100).putInt(200); // network rx and tx, kilobits per second
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void testDecodeSetsSensors() {
+        MetricsCollector.Registration registration = collector.register(machine, Duration.ONE_SECOND, 3);
+
+        assertTrue(collector.decode(datagram(registration.getKey(), registration.getToken(), 1)));
+
+        assertEquals(machine.getAttribute(MachineEntity.CPU_USAGE), 0.25d, 0.0001d);
+        assertEquals(machine.getAttribute(CloudMachine.LOAD_AVERAGE), 1.5d, 0.0001d);
+        assertEquals(machine.getAttribute(CloudMachine.MEMORY_USED), Long.valueOf(512));
+        assertEquals(machine.getAttribute(CloudMachine.MEMORY_TOTAL), Long.valueOf(2048));
+        assertEquals(machine.getAttribute(CloudMachine.DISK_USAGE), 0.4d, 0.0001d);
+        assertEquals(machine.getAttribute(CloudMachine.NET_RX_RATE), Long.valueOf(100));
+        assertEquals(machine.getAttribute(CloudMachine.NET_TX_RATE), Long.valueOf(200));
+        assertEquals(machine.getAttribute(CloudMachine.AGENT_AVAILABLE), Boolean.TRUE);
+    }
+
+    @Test
+    public void testDecodeRejectsWrongTokenAndUnknownKey() {
+        MetricsCollector.Registration registration = collector.register(machine, Duration.ONE_SECOND, 3);
+
+        assertFalse(collector.decode(datagram(registration.getKey(), registration.getToken() + 1, 1)));
+        assertFalse(collector.decode(datagram(registration.getKey() + 1, registration.getToken(), 1)));
+        assertFalse(collector.decode(datagram(0, registration.getToken(), 1)));
+        assertNull(machine.getAttribute(CloudMachine.LOAD_AVERAGE));
+    }
+
+    @Test
+    public void testDecodeRejectsStaleSequence() {
+        MetricsCollector.Registration registration = collector.register(machine, Duration.ONE_SECOND, 3);
+
+        assertTrue(collector.decode(datagram(registration.getKey(), registration.getToken(), 5)));
+        assertFalse(collector.decode(datagram(registration.getKey(), registration.getToken(), 5)));
+        assertFalse(collector.decode(datagram(registration.getKey(), registration.getToken(), 4)));
+        assertTrue(collector.decode(datagram(registration.getKey(), registration.getToken(), 6)));
+    }
+
+    @Test
+    public void testDecodeRejectsMalformedDatagram() {
+        MetricsCollector.Registration registration = collector.register(machine, Duration.ONE_SECOND, 3);
+
+        ByteBuffer truncated = datagram(registration.getKey(), registration.getToken(), 1);
+        truncated.limit(truncated.limit() - 1);
+        assertFalse(collector.decode(truncated));
+
+        ByteBuffer wrongMagic = datagram(registration.getKey(), registration.getToken(), 1);
+        wrongMagic.putShort(0, (short) 0);
+        assertFalse(collector.decode(wrongMagic));
+    }
+
+    @Test
+    public void testUnregisteredMachineRejected() {
+        MetricsCollector.Registration registration = collector.register(machine, Duration.ONE_SECOND, 3);
+        collector.unregister(registration);
+
+        assertFalse(collector.decode(datagram(registration.getKey(), registration.getToken(), 1)));
+    }
+
+    @Test
+    public void testRestoredRegistrationAcceptsRunningAgent() {
+        MetricsCollector.Registration restored = collector.restore(machine, Duration.ONE_SECOND, 3, 100, 12345);
+
+        assertEquals(restored.getKey(), 100);
+        assertTrue(collector.decode(datagram(100, 12345, 42)));
+        assertNull(collector.restore(machine, Duration.ONE_SECOND, 3, 100, 54321));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testLinearBucketsAreExact() {
+        for (long micros = 0; micros < 32; micros++) {
+            assertEquals(LatencyHistogram.bucket(micros), (int) micros);
+            assertEquals(LatencyHistogram.upperBound((int) micros), micros);
+        }
+    }
+
+    @Test
+    public void testFirstLogBuckets() {
+        assertEquals(LatencyHistogram.bucket(32), 32);
+        assertEquals(LatencyHistogram.bucket(33), 32);
+        assertEquals(LatencyHistogram.upperBound(32), 33);
+        assertEquals(LatencyHistogram.bucket(34), 33);
+        assertEquals(LatencyHistogram.upperBound(33), 35);
+        assertEquals(LatencyHistogram.bucket(64), 48);
+        assertEquals(LatencyHistogram.upperBound(47), 63);
+    }
+
+    @Test
+    public void testBucketsContainTheirValues() {
+        for (long micros = 1; micros > 0 && micros < Long.MAX_VALUE / 3; micros = micros * 3 + 1) {
+            for (long value : new long[] { micros - 1, micros, micros + 1 }) {
+                int bucket = LatencyHistogram.bucket(value);
+                long upper = LatencyHistogram.upperBound(bucket);
+                assertTrue(upper >= value, "value=" + value + "; upper=" + upper);
+                if (bucket > 0) {
+                    assertTrue(LatencyHistogram.upperBound(bucket - 1) < value, "value=" + value + "; bucket=" + bucket);
+                }
+                assertTrue(upper - value <= value / 16, "value=" + value + "; upper=" + upper);
+            }
+        }
+    }
+
+    @Test
+    public void testLargestValueFitsLastBucket() {
+        int bucket = LatencyHistogram.bucket(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.upperBound(bucket), Long.MAX_VALUE);
+        new LatencyHistogram().record(Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals(histogram.getCount(), 100l);
+        assertEquals(histogram.getMaxMillis(), 100d, 0.001d);
+        assertEquals(histogram.getP50Millis(), 50d, 50d / 16);
+        assertEquals(histogram.getP99Millis(), 99d, 99d / 16);
+        assertTrue(histogram.getP99Millis() <= histogram.getMaxMillis());
+    }
+
+    @Test
+    public void testResetClearsCounts() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(5, TimeUnit.MILLISECONDS);
+        histogram.reset();
+
+        assertEquals(histogram.getCount(), 0l);
+        assertEquals(histogram.getP50Millis(), 0d);
+        assertEquals(histogram.getMaxMillis(), 0d);
+    }
+
+}
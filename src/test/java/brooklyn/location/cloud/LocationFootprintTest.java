@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.cloud.CloudEnvironment;
+import brooklyn.entity.cloud.CloudMachine;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.management.internal.LocalManagementContext;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Measures the heap used and start time for a {@link CloudEnvironment} of many fake machines,
+ * comparing full machine locations with the {@link CloudEnvironment#COMPACT_MACHINE_LOCATIONS compact} mode,
+ * where some of the machine locations are then materialised.
+ * <p>
+ * Heap measurements depend on the collector, so this is an integration test; run it with a fixed heap for stable results.
+ */
+public class LocationFootprintTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocationFootprintTest.class);
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private static final int MACHINES = 500;
+    private static final int MATERIALISE_EVERY = 10;
+    private static final int FLAGS = 20;
+
+    @Test(groups="Integration")
+    public void testCompactLocationsUseLessHeap() {
+        Map<String, Object> flags = MutableMap.of();
+        for (int i = 0; i < FLAGS; i++) {
+            flags.put("flag" + i, "value-" + i + "-with-a-realistic-length");
+        }
+
+        long full = measure(MACHINES, flags, false);
+        long compact = measure(MACHINES, flags, true);
+
+        assertTrue(compact < full, String.format("compact %d bytes, full %d bytes", compact, full));
+    }
+
+    /**
+     * @return the heap used by the environment, in bytes
+     */
+    private long measure(int count, Map<String, Object> flags, boolean compact) {
+        LocalManagementContext management = new LocalManagementContext();
+        try {
+            TestApplication app = ApplicationBuilder.newManagedApp(EntitySpec.create(TestApplication.class), management);
+            LocationSpec<SimulatedProvisioningLocation> provisioner = LocationSpec.create(SimulatedProvisioningLocation.class)
+                    .configure(SimulatedProvisioningLocation.FAKE_SSH, true)
+                    .configure(SimulatedProvisioningLocation.BOOT_TIME, Duration.millis(1));
+            CloudEnvironment environment = app.createAndManageChild(EntitySpec.create(CloudEnvironment.class)
+                    .configure(CloudEnvironment.CLOUD_LOCATION_SPEC, provisioner)
+                    .configure(CloudEnvironment.CLOUD_MACHINE_SPEC, EntitySpec.create(CloudMachine.class)
+                            .configure(CloudMachine.LOCATION_FLAGS, flags))
+                    .configure(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE, count)
+                    .configure(CloudEnvironment.REGISTER_CLOUD_MACHINE_LOCATIONS, true)
+                    .configure(CloudEnvironment.COMPACT_MACHINE_LOCATIONS, compact)
+                    .configure(CloudEnvironment.POOL_JOURNAL_DIR, ""));
+
+            long before = usedHeap();
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            app.start(ImmutableList.<Location>of());
+            long millis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+            List<Entity> machines = environment.getCloudMachineList();
+            assertEquals(machines.size(), count);
+
+            // Materialise some of the compact locations, as when they are deployed to
+            int materialised = 0;
+            for (int i = 0; i < machines.size(); i += MATERIALISE_EVERY) {
+                CloudMachineLocation location = ((CloudMachine) machines.get(i)).getDynamicLocation();
+                assertEquals(location.getAllConfig(true).get("flag0"), flags.get("flag0"));
+                materialised++;
+            }
+            if (compact) {
+                CloudMachineLocation location = ((CloudMachine) machines.get(0)).getDynamicLocation();
+                assertFalse(location.getLocalConfigBag().containsKey("flag0"), "flags copied into " + location);
+            }
+            long bytes = usedHeap() - before;
+
+            LOG.info("{}: {} machines, {} materialised, {} bytes ({} per machine), {}ms starting",
+                    new Object[] { compact ? "compact" : "full", count, compact ? materialised : count, bytes, bytes / count, millis });
+            return bytes;
+        } finally {
+            Entities.destroyAll(management);
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+}
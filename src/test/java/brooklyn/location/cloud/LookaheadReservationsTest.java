@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.EmptySoftwareProcess;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.cloud.CloudEnvironment;
+import brooklyn.entity.cloud.CloudMachine;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.MachineLocation;
+import brooklyn.location.jclouds.JcloudsLocationConfig;
+import brooklyn.test.Asserts;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class LookaheadReservationsTest extends BrooklynAppUnitTestSupport {
+
+    private static final Map<?,?> NO_FLAGS = ImmutableMap.of();
+
+    private CloudLocation cloud;
+    private LookaheadReservations reservations;
+
+    @AfterMethod(alwaysRun=true)
+    @Override
+    public void tearDown() throws Exception {
+        if (reservations != null) reservations.close();
+        super.tearDown();
+    }
+
+    private void newEnvironment(int size) {
+        LocationSpec<SimulatedProvisioningLocation> provisioner = LocationSpec.create(SimulatedProvisioningLocation.class)
+                .configure(SimulatedProvisioningLocation.FAKE_SSH, true)
+                .configure(SimulatedProvisioningLocation.BOOT_TIME, Duration.millis(20));
+        CloudEnvironment environment = app.createAndManageChild(EntitySpec.create(CloudEnvironment.class)
+                .configure(CloudEnvironment.CLOUD_LOCATION_SPEC, provisioner)
+                .configure(CloudEnvironment.POOL_JOURNAL_DIR, "")
+                .configure(CloudEnvironment.CLOUD_MACHINE_CLUSTER_MIN_SIZE, size));
+        app.start(ImmutableList.<Location>of());
+        cloud = environment.getDynamicLocation();
+        reservations = new LookaheadReservations(cloud, 50, Duration.minutes(10), 2, Duration.seconds(10));
+    }
+
+    /**
+     * An application targeting the cloud with the given number of software processes, none yet deployed.
+     */
+    private List<Entity> newTenants(int count) {
+        TestApplication tenant = ApplicationBuilder.newManagedApp(EntitySpec.create(TestApplication.class), mgmt);
+        ((EntityInternal) tenant).addLocations(ImmutableList.of(cloud));
+        List<Entity> processes = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            processes.add(tenant.createAndManageChild(EntitySpec.create(EmptySoftwareProcess.class)));
+        }
+        return processes;
+    }
+
+    @Test
+    public void testReservesIdleMachinesForRestOfApplication() {
+        newEnvironment(3);
+        List<Entity> tenants = newTenants(3);
+
+        reservations.lookahead(tenants.get(0));
+
+        assertEquals(reservations.getReservedCount(), 2);
+        assertEquals(cloud.getIdleCount(), 1);
+    }
+
+    @Test
+    public void testApplicationOnlyReservedForOnce() {
+        newEnvironment(3);
+        List<Entity> tenants = newTenants(3);
+
+        reservations.lookahead(tenants.get(0));
+        reservations.lookahead(tenants.get(1));
+
+        assertEquals(reservations.getReservedCount(), 2);
+        assertEquals(cloud.getIdleCount(), 1);
+    }
+
+    @Test
+    public void testTakeClaimsReservedMachine() {
+        newEnvironment(2);
+        List<Entity> tenants = newTenants(3);
+        reservations.lookahead(tenants.get(0));
+
+        MachineLocation machine = reservations.take(tenants.get(1), NO_FLAGS);
+
+        assertTrue(machine instanceof CloudMachineLocation, "machine=" + machine);
+        CloudMachine owner = ((CloudMachineLocation) machine).getOwner();
+        assertEquals(owner.getAttribute(CloudMachine.ENTITY), tenants.get(1));
+        assertEquals(reservations.getReservedCount(), 1);
+    }
+
+    @Test
+    public void testTakeForOtherApplicationFindsNothing() {
+        newEnvironment(2);
+        reservations.lookahead(newTenants(3).get(0));
+
+        assertNull(reservations.take(newTenants(2).get(0), NO_FLAGS));
+        assertEquals(reservations.getReservedCount(), 2);
+    }
+
+    @Test
+    public void testExpireReturnsIdleMachinesToPool() {
+        newEnvironment(2);
+        List<Entity> tenants = newTenants(3);
+        reservations.lookahead(tenants.get(0));
+        assertEquals(cloud.getIdleCount(), 0);
+
+        reservations.expire(true);
+
+        assertEquals(reservations.getReservedCount(), 0);
+        assertEquals(cloud.getIdleCount(), 2);
+
+        // The application may be reserved for again
+        reservations.lookahead(tenants.get(1));
+        assertEquals(reservations.getReservedCount(), 2);
+    }
+
+    @Test
+    public void testProvisionsRemainderAndReleasesUnused() {
+        newEnvironment(0);
+        List<Entity> tenants = newTenants(3);
+        reservations.lookahead(tenants.get(0));
+
+        MachineLocation machine = reservations.take(tenants.get(1), NO_FLAGS);
+
+        assertNotNull(machine);
+        assertFalse(machine instanceof CloudMachineLocation, "machine=" + machine);
+        assertTrue(cloud.getProvisionedMachines().contains(machine));
+        Asserts.succeedsEventually(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(cloud.getProvisionedMachines().size(), 2);
+            }
+        });
+
+        reservations.expire(true);
+
+        assertEquals(reservations.getReservedCount(), 0);
+        assertEquals(cloud.getProvisionedMachines(), ImmutableSet.of(machine));
+    }
+
+    @Test
+    public void testProvisionedMachinesNotUsedForSpecificTemplate() {
+        newEnvironment(0);
+        List<Entity> tenants = newTenants(3);
+        reservations.lookahead(tenants.get(0));
+
+        Map<?,?> flags = MutableMap.of(JcloudsLocationConfig.IMAGE_ID.getName(), "other-image");
+        assertNull(reservations.take(tenants.get(1), flags));
+        assertEquals(reservations.getReservedCount(), 2);
+    }
+
+}
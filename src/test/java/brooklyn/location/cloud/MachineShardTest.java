@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.entity.cloud.CloudMachine;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.test.entity.TestEntity;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+
+public class MachineShardTest extends BrooklynAppUnitTestSupport {
+
+    private MachineShard shard;
+    private CloudMachine first;
+    private CloudMachine second;
+    private TestEntity tenant;
+
+    @BeforeMethod(alwaysRun=true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        shard = new MachineShard(0);
+        first = newMachine("first");
+        second = newMachine("second");
+        tenant = app.createAndManageChild(EntitySpec.create(TestEntity.class));
+    }
+
+    private CloudMachine newMachine(String name) {
+        CloudMachine machine = app.createAndManageChild(EntitySpec.create(CloudMachine.class).displayName(name));
+        ((EntityInternal) machine).setAttribute(CloudMachine.SERVICE_UP, true);
+        return machine;
+    }
+
+    private static Ordering<CloudMachine> byName() {
+        return Ordering.<String>natural().onResultOf(new Function<CloudMachine, String>() {
+            @Override
+            public String apply(CloudMachine input) {
+                return input.getDisplayName();
+            }
+        });
+    }
+
+    @Test
+    public void testUpdateIndexesOnlyIdleMachines() {
+        shard.update(first);
+        ((EntityInternal) second).setAttribute(CloudMachine.SERVICE_UP, false);
+        shard.update(second);
+
+        assertEquals(ImmutableSet.copyOf(shard.getIdleMachines()), ImmutableSet.of(first));
+    }
+
+    @Test
+    public void testClaimTakesBestAndSetsEntity() {
+        shard.update(second);
+        shard.update(first);
+
+        CloudMachine claimed = shard.claim(byName(), tenant);
+
+        assertEquals(claimed, first);
+        assertEquals(first.getAttribute(CloudMachine.ENTITY), tenant);
+        assertEquals(shard.getIdleCount(), 1);
+    }
+
+    @Test
+    public void testClaimKeepsReserve() {
+        shard.update(first);
+        shard.update(second);
+
+        assertEquals(shard.claim(byName(), tenant, 1), first);
+        assertNull(shard.claim(byName(), tenant, 1));
+        assertEquals(shard.getIdleCount(), 1);
+    }
+
+    @Test
+    public void testClaimedMachineNotReindexedUntilReleased() {
+        shard.update(first);
+        shard.claim(byName(), tenant);
+
+        shard.update(first);
+        assertEquals(shard.getIdleCount(), 0);
+
+        first.setRunningEntity(null);
+        shard.update(first);
+        assertEquals(shard.getIdleCount(), 1);
+    }
+
+    @Test
+    public void testReservedMachineHeldFromClaims() {
+        shard.update(first);
+        shard.update(second);
+
+        CloudMachine reserved = shard.reserve(byName());
+        assertEquals(reserved, first);
+
+        shard.update(first);
+        assertEquals(shard.claim(byName(), tenant), second);
+        assertNull(shard.claim(byName(), tenant));
+
+        assertTrue(shard.claimReserved(first, tenant));
+        assertFalse(shard.claimReserved(first, tenant));
+        assertEquals(first.getAttribute(CloudMachine.ENTITY), tenant);
+    }
+
+    @Test
+    public void testUnreserveReturnsMachineToIdle() {
+        shard.update(first);
+        shard.reserve(byName());
+        assertEquals(shard.getIdleCount(), 0);
+
+        shard.unreserve(first);
+        assertEquals(ImmutableSet.copyOf(shard.getIdleMachines()), ImmutableSet.of(first));
+    }
+
+    @Test
+    public void testRetiredMachineNeverReindexed() {
+        shard.update(first);
+        assertTrue(shard.retire(first));
+        assertFalse(shard.retire(first));
+
+        shard.update(first);
+        assertEquals(shard.getIdleCount(), 0);
+
+        shard.remove(first);
+        shard.update(first);
+        assertEquals(shard.getIdleCount(), 1);
+    }
+
+    @Test
+    public void testPartitionShardIndexesOnlyItsMachines() {
+        MachineShard partition = new MachineShard(0, "batch");
+        first.setPartition("batch");
+        partition.update(first);
+        partition.update(second);
+        shard.update(first);
+        shard.update(second);
+
+        assertEquals(ImmutableSet.copyOf(partition.getIdleMachines()), ImmutableSet.of(first));
+        assertEquals(ImmutableSet.copyOf(shard.getIdleMachines()), ImmutableSet.of(second));
+    }
+
+}
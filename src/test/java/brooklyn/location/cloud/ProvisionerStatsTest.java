@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.location.basic.FixedListMachineProvisioningLocation;
+import brooklyn.location.basic.SshMachineLocation;
+
+import com.google.common.base.Ticker;
+
+public class ProvisionerStatsTest {
+
+    private static final double PRIOR = 60000d;
+
+    private FakeTicker ticker;
+    private ProvisionerStats working;
+    private ProvisionerStats dead;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() {
+        ticker = new FakeTicker();
+        working = new ProvisionerStats(new FixedListMachineProvisioningLocation<SshMachineLocation>(), ticker);
+        dead = new ProvisionerStats(new FixedListMachineProvisioningLocation<SshMachineLocation>(), ticker);
+    }
+
+    @Test
+    public void testUnsampledProvisionerScoresWithPrior() {
+        assertFalse(dead.isSampled());
+        assertEquals(dead.score(0, PRIOR), PRIOR + 1d);
+    }
+
+    @Test
+    public void testFailedProvisionerRankedBelowSlowWorkingOne() {
+        working.success(TimeUnit.MILLISECONDS.toNanos(60000));
+        dead.failure(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertTrue(working.isSampled());
+        assertFalse(dead.isSampled());
+        assertTrue(dead.score(0, working.getLatencyMillis()) > working.score(0, working.getLatencyMillis()),
+                "dead=" + dead + "; working=" + working);
+    }
+
+    @Test
+    public void testFailureNeverLowersLatency() {
+        working.success(TimeUnit.SECONDS.toNanos(100));
+        working.failure(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(working.getLatencyMillis(), 100000d);
+
+        working.failure(TimeUnit.SECONDS.toNanos(200));
+        assertTrue(working.getLatencyMillis() > 100000d, "latency=" + working.getLatencyMillis());
+    }
+
+    @Test
+    public void testSlowFailureCountsElapsedTime() {
+        dead.failure(TimeUnit.MINUTES.toNanos(20));
+        assertEquals(dead.getLatencyMillis(), (double) TimeUnit.MINUTES.toMillis(20));
+        assertTrue(dead.score(0, PRIOR) > (double) TimeUnit.MINUTES.toMillis(20));
+    }
+
+    @Test
+    public void testErrorsDecayWithHalfLife() {
+        dead.failure();
+        dead.failure();
+        assertEquals(dead.getErrors(), 2d, 0.0001d);
+
+        ticker.advance(ProvisionerStats.ERROR_HALF_LIFE_MILLIS);
+        assertEquals(dead.getErrors(), 1d, 0.0001d);
+
+        ticker.advance(ProvisionerStats.ERROR_HALF_LIFE_MILLIS * 10);
+        assertTrue(dead.getErrors() < 0.01d, "errors=" + dead.getErrors());
+    }
+
+    @Test
+    public void testIdleMachinesImproveScore() {
+        working.success(TimeUnit.SECONDS.toNanos(10));
+        assertTrue(working.score(3, PRIOR) < working.score(0, PRIOR));
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos = 0l;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        public void advance(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.BrooklynAppUnitTestSupport;
+import brooklyn.entity.basic.EntityInternal;
+import brooklyn.management.ExecutionContext;
+import brooklyn.util.os.Os;
+import brooklyn.util.task.Tasks;
+
+public class ProvisioningTracerTest extends BrooklynAppUnitTestSupport {
+
+    private File file;
+    private ProvisioningTracer tracer;
+    private ExecutionContext execution;
+
+    @BeforeMethod(alwaysRun=true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = Os.newTempFile(getClass(), "json");
+        tracer = ProvisioningTracer.create(file.getAbsolutePath(), 1d, 1024 * 1024, 1);
+        execution = ((EntityInternal) app).getExecutionContext();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    @Override
+    public void tearDown() throws Exception {
+        if (tracer != null) tracer.close();
+        if (file != null) file.delete();
+        super.tearDown();
+    }
+
+    @Test
+    public void testNestedSpanOnThreadIsChild() {
+        TraceSpan parent = tracer.start("parent");
+        TraceSpan child = tracer.start("child");
+        child.close();
+        parent.close();
+
+        assertEquals(child.getTraceId(), parent.getTraceId());
+        assertEquals(child.getParentSpanId(), parent.getSpanId());
+        assertNull(parent.getParentSpanId());
+    }
+
+    @Test
+    public void testSpanInSubmittedTaskIsChild() {
+        TraceSpan[] spans = execution.submit(Tasks.<TraceSpan[]>builder().name("parent").body(new Callable<TraceSpan[]>() {
+            @Override
+            public TraceSpan[] call() {
+                TraceSpan parent = tracer.start("parent");
+                try {
+                    TraceSpan child = execution.submit(Tasks.<TraceSpan>builder().name("child").body(new Callable<TraceSpan>() {
+                        @Override
+                        public TraceSpan call() {
+                            TraceSpan span = tracer.start("child");
+                            span.close();
+                            return span;
+                        }
+                    }).build()).getUnchecked();
+                    return new TraceSpan[] { parent, child };
+                } finally {
+                    parent.close();
+                }
+            }
+        }).build()).getUnchecked();
+
+        assertEquals(spans[1].getTraceId(), spans[0].getTraceId());
+        assertEquals(spans[1].getParentSpanId(), spans[0].getSpanId());
+    }
+
+    @Test
+    public void testSpanInTaskWithClosedParentIsRoot() {
+        TraceSpan parent = tracer.start("parent");
+        parent.close();
+        TraceSpan span = execution.submit(Tasks.<TraceSpan>builder().name("later").body(new Callable<TraceSpan>() {
+            @Override
+            public TraceSpan call() {
+                TraceSpan span = tracer.start("later");
+                span.close();
+                return span;
+            }
+        }).build()).getUnchecked();
+
+        assertNull(span.getParentSpanId());
+        assertFalse(span.getTraceId().equals(parent.getTraceId()));
+    }
+
+    @Test
+    public void testSpanStartedFromContextIsChild() {
+        TraceSpan parent = tracer.start("parent");
+        String context = parent.getContext();
+        parent.close();
+
+        TraceSpan child = tracer.start("child", context);
+        child.close();
+
+        assertTrue(child.isSampled());
+        assertEquals(child.getTraceId(), parent.getTraceId());
+        assertEquals(child.getParentSpanId(), parent.getSpanId());
+    }
+
+    @Test
+    public void testUnsampledSpanHasNoContext() {
+        TraceSpan span = ProvisioningTracer.DISABLED.start("unsampled");
+        span.close();
+        assertNull(span.getContext());
+    }
+
+}
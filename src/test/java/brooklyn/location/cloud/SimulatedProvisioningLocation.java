@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.NoMachinesAvailableException;
+import brooklyn.location.basic.LocalhostMachineProvisioningLocation;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.jclouds.JcloudsLocationConfig;
+import brooklyn.util.net.Networking;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * A localhost provisioner that simulates the time taken to boot machines and snapshot images.
+ * <p>
+ * Machines requested with an {@code imageId} flag naming one of the images created
+ * by {@link #snapshot(SshMachineLocation, String)} boot in {@link #IMAGE_BOOT_TIME}
+ * rather than {@link #BOOT_TIME}, and suspended machines resume in {@link #RESUME_TIME}.
+ * <p>
+ * For scale testing, boot times can follow a {@link #LATENCY_DISTRIBUTION distribution},
+ * requests can fail at random or be throttled like a cloud API, and with {@link #FAKE_SSH}
+ * machines are {@link SimulatedSshMachineLocation in-process fakes} that never connect.
+ */
+public class SimulatedProvisioningLocation extends LocalhostMachineProvisioningLocation implements ImageSnapshotter, MachineSuspender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SimulatedProvisioningLocation.class);
+
+    public static final ConfigKey<Duration> BOOT_TIME = ConfigKeys.newConfigKey(Duration.class,
+            "simulated.bootTime", "Time taken to boot and customise a machine from the base image", Duration.seconds(30));
+
+    public static final ConfigKey<Duration> IMAGE_BOOT_TIME = ConfigKeys.newConfigKey(Duration.class,
+            "simulated.imageBootTime", "Time taken to boot a machine from a snapshot image", Duration.seconds(10));
+
+    public static final ConfigKey<Duration> SNAPSHOT_TIME = ConfigKeys.newConfigKey(Duration.class,
+            "simulated.snapshotTime", "Time taken to snapshot a machine into an image", Duration.seconds(60));
+
+    public static final ConfigKey<Duration> SUSPEND_TIME = ConfigKeys.newConfigKey(Duration.class,
+            "simulated.suspendTime", "Time taken to suspend a machine", Duration.seconds(5));
+
+    public static final ConfigKey<Duration> RESUME_TIME = ConfigKeys.newConfigKey(Duration.class,
+            "simulated.resumeTime", "Time taken to resume a suspended machine", Duration.seconds(10));
+
+    public enum Distribution { FIXED, UNIFORM, EXPONENTIAL, LOG_NORMAL }
+
+    public static final ConfigKey<Distribution> LATENCY_DISTRIBUTION = ConfigKeys.newConfigKey(Distribution.class,
+            "simulated.latency.distribution", "Distribution of boot times, with the configured time as the mean", Distribution.FIXED);
+
+    public static final ConfigKey<Double> FAILURE_RATE = ConfigKeys.newDoubleConfigKey(
+            "simulated.failureRate", "Fraction of obtain requests that fail after booting", 0d);
+
+    public static final ConfigKey<Integer> MAX_CONCURRENT = ConfigKeys.newIntegerConfigKey(
+            "simulated.maxConcurrent", "Maximum number of machines booting at once; further requests wait", Integer.MAX_VALUE);
+
+    public static final ConfigKey<Double> MAX_REQUEST_RATE = ConfigKeys.newDoubleConfigKey(
+            "simulated.maxRequestRate", "Obtain requests allowed per second before requests are rejected as throttled", Double.MAX_VALUE);
+
+    public static final ConfigKey<Boolean> FAKE_SSH = ConfigKeys.newBooleanConfigKey(
+            "simulated.fakeSsh", "Return in-process fake machines rather than localhost SSH machines", Boolean.FALSE);
+
+    private final Set<String> images = Sets.newConcurrentHashSet();
+    private final Random random = new Random();
+    private transient Semaphore booting;
+    private transient RateLimiter requests;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    public SimulatedProvisioningLocation() {
+        this(Maps.newLinkedHashMap());
+    }
+
+    public SimulatedProvisioningLocation(Map properties) {
+        super(properties);
+    }
+
+    @Override
+    public SshMachineLocation obtain(Map<?,?> flags) throws NoMachinesAvailableException {
+        RateLimiter limiter = getRequestLimiter();
+        if (limiter != null && !limiter.tryAcquire()) {
+            throw new NoMachinesAvailableException("Simulated request limit exceeded for " + this);
+        }
+        Semaphore permits = getBootPermits();
+        permits.acquireUninterruptibly();
+        try {
+            Object imageId = flags.get(JcloudsLocationConfig.IMAGE_ID.getName());
+            if (imageId != null && images.contains(imageId)) {
+                Time.sleep(sample(getConfig(IMAGE_BOOT_TIME)));
+            } else {
+                Time.sleep(sample(getConfig(BOOT_TIME)));
+            }
+        } finally {
+            permits.release();
+        }
+        if (random.nextDouble() < getConfig(FAILURE_RATE)) {
+            throw new NoMachinesAvailableException("Simulated failure obtaining machine from " + this);
+        }
+
+        if (getConfig(FAKE_SSH)) {
+            return getManagementContext().getLocationManager().createLocation(LocationSpec.create(SimulatedSshMachineLocation.class)
+                    .parent(this)
+                    .configure("address", Networking.getLocalHost())
+                    .displayName("simulated-" + counter.incrementAndGet()));
+        } else {
+            return super.obtain(flags);
+        }
+    }
+
+    @Override
+    public void release(SshMachineLocation machine) {
+        if (machine instanceof SimulatedSshMachineLocation) {
+            if (getManagementContext().getLocationManager().isManaged(machine)) {
+                getManagementContext().getLocationManager().unmanage(machine);
+            }
+        } else {
+            super.release(machine);
+        }
+    }
+
+    /**
+     * A boot time drawn from the configured distribution with the given mean.
+     */
+    protected Duration sample(Duration mean) {
+        long millis = mean.toMilliseconds();
+        double sample;
+        switch (getConfig(LATENCY_DISTRIBUTION)) {
+        case UNIFORM:
+            sample = millis * (0.5d + random.nextDouble());
+            break;
+        case EXPONENTIAL:
+            sample = -millis * Math.log(1d - random.nextDouble());
+            break;
+        case LOG_NORMAL:
+            // sigma of 0.5, with mu chosen to keep the mean
+            sample = millis * Math.exp(0.5d * random.nextGaussian() - 0.125d);
+            break;
+        default:
+            sample = millis;
+        }
+        return Duration.millis((long) sample);
+    }
+
+    private synchronized Semaphore getBootPermits() {
+        if (booting == null) {
+            booting = new Semaphore(getConfig(MAX_CONCURRENT));
+        }
+        return booting;
+    }
+
+    /** The request rate limiter, or null when requests are not throttled. */
+    private synchronized RateLimiter getRequestLimiter() {
+        double rate = getConfig(MAX_REQUEST_RATE);
+        if (requests == null && rate < Double.MAX_VALUE) {
+            requests = RateLimiter.create(rate);
+        }
+        return requests;
+    }
+
+    @Override
+    public String snapshot(SshMachineLocation machine, String name) {
+        Time.sleep(getConfig(SNAPSHOT_TIME));
+        String imageId = String.format("simulated-%s-%d", name, counter.incrementAndGet());
+        images.add(imageId);
+        LOG.info("Simulated image {} from {}", imageId, machine);
+        return imageId;
+    }
+
+    @Override
+    public void suspend(SshMachineLocation machine) {
+        Time.sleep(getConfig(SUSPEND_TIME));
+        LOG.info("Simulated suspending {}", machine);
+    }
+
+    @Override
+    public void resume(SshMachineLocation machine) {
+        Time.sleep(sample(getConfig(RESUME_TIME)));
+        LOG.info("Simulated resuming {}", machine);
+    }
+
+    @Override
+    public void delete(String imageId) {
+        images.remove(imageId);
+    }
+
+    public Set<String> getImages() {
+        return ImmutableSet.copyOf(images);
+    }
+
+}
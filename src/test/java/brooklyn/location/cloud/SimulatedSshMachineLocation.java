@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.location.cloud;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+
+/**
+ * An in-process machine from the {@link SimulatedProvisioningLocation} that never opens a connection.
+ * <p>
+ * Commands, scripts and copies succeed immediately, so thousands of machines can be
+ * provisioned and customised on one host when scale testing the pool.
+ */
+public class SimulatedSshMachineLocation extends SshMachineLocation {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SimulatedSshMachineLocation.class);
+
+    public SimulatedSshMachineLocation() {
+        super();
+    }
+
+    public SimulatedSshMachineLocation(Map properties) {
+        super(properties);
+    }
+
+    @Override
+    public boolean isSshable() {
+        return true;
+    }
+
+    @Override
+    public int execCommands(Map<String,?> props, String summaryForLogging, List<String> commands, Map<String,?> env) {
+        LOG.trace("Simulated commands {} on {}: {}", new Object[] { summaryForLogging, this, commands });
+        return 0;
+    }
+
+    @Override
+    public int execScript(Map<String,?> props, String summaryForLogging, List<String> commands, Map<String,?> env) {
+        LOG.trace("Simulated script {} on {}: {}", new Object[] { summaryForLogging, this, commands });
+        return 0;
+    }
+
+    @Override
+    public int copyTo(Map<String,?> props, File src, String destination) {
+        LOG.trace("Simulated copy of {} to {} on {}", new Object[] { src, destination, this });
+        return 0;
+    }
+
+    @Override
+    public int copyTo(Map<String,?> props, InputStream src, String destination) {
+        LOG.trace("Simulated copy to {} on {}", destination, this);
+        return 0;
+    }
+
+}